@@ -0,0 +1,230 @@
+package com.mar.imagetools.objects;
+
+import com.mar.imagetools.utils.ImageUtils;
+
+/**
+ * A bit-packed binary image (mask). Each row is stored as a sequence of 64-bit words, the pixel at column x being the
+ * bit (x % 64) of the word x / 64 (least significant bit first). Bits beyond the image width in the last word of a row
+ * are always kept to 0, so that word-level operations can be applied to whole rows.
+ * @author mrenauld
+ */
+public class BinaryImage {
+
+    private final int width;
+
+    private final int height;
+
+    /** Number of 64-bit words per row. */
+    private final int nbWords;
+
+    /** Image data: height x nbWords. */
+    private final long[][] data;
+
+    /**
+     * Constructs an empty (all 0) binary image with specified size.
+     * @param pWidth
+     * @param pHeight
+     */
+    public BinaryImage(int pWidth, int pHeight) {
+        width = pWidth;
+        height = pHeight;
+        nbWords = (pWidth + 63) >>> 6;
+        data = new long[pHeight][nbWords];
+    }
+
+    /**
+     * Copy constructor.
+     * @param pImage
+     */
+    public BinaryImage(BinaryImage pImage) {
+        this(pImage.width, pImage.height);
+        for (int i = 0; i < height; ++i) {
+            System.arraycopy(pImage.data[i], 0, data[i], 0, nbWords);
+        }
+    }
+
+    /**
+     * Constructs a binary image from the specified {@link ImageProc}. A pixel is set to 1 if its grayscale value is
+     * above the specified threshold (same convention as {@link com.mar.imagetools.utils.ImageProcOps#toBlackAndWhite}).
+     * @param pImage
+     * @param pThreshold
+     */
+    public BinaryImage(ImageProc pImage, double pThreshold) {
+        this(pImage.getWidth(), pImage.getHeight());
+        double[][] r = pImage.getChannel(Image.CHANNEL_RED);
+        double[][] g = pImage.getChannel(Image.CHANNEL_GREEN);
+        double[][] b = pImage.getChannel(Image.CHANNEL_BLUE);
+        for (int i = 0; i < height; ++i) {
+            long[] row = data[i];
+            for (int j = 0; j < width; ++j) {
+                if (ImageUtils.rgbToGrayscale(r[i][j], g[i][j], b[i][j]) > pThreshold) {
+                    row[j >>> 6] |= 1L << j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets this image to the bitwise AND of this image and the specified image.
+     * @param pImage
+     */
+    public void and(BinaryImage pImage) {
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                data[i][w] &= pImage.data[i][w];
+            }
+        }
+    }
+
+    /**
+     * Sets this image to the bitwise AND of this image and the complement of the specified image.
+     * @param pImage
+     */
+    public void andNot(BinaryImage pImage) {
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                data[i][w] &= ~pImage.data[i][w];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pixels set to 1.
+     * @return
+     */
+    public long countOnes() {
+        long count = 0;
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                count += Long.bitCount(data[i][w]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value of the specified pixel.
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public boolean get(int pX, int pY) {
+        return (data[pY][pX >>> 6] & (1L << pX)) != 0;
+    }
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of 64-bit words per row.
+     * @return
+     */
+    public int getNbWords() {
+        return nbWords;
+    }
+
+    /**
+     * Returns the packed words of the specified row. The returned array is the internal storage: modifications are
+     * reflected in the image, and bits beyond the image width must be kept to 0.
+     * @param pY
+     * @return
+     */
+    public long[] getRowWords(int pY) {
+        return data[pY];
+    }
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the mask of the valid bits in the last word of a row.
+     * @return
+     */
+    public long getLastWordMask() {
+        int rem = width & 63;
+        return rem == 0 ? -1L : (1L << rem) - 1;
+    }
+
+    /**
+     * Inverts all pixels.
+     */
+    public void not() {
+        long lastMask = getLastWordMask();
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                data[i][w] = ~data[i][w];
+            }
+            if (nbWords > 0) {
+                data[i][nbWords - 1] &= lastMask;
+            }
+        }
+    }
+
+    /**
+     * Sets this image to the bitwise OR of this image and the specified image.
+     * @param pImage
+     */
+    public void or(BinaryImage pImage) {
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                data[i][w] |= pImage.data[i][w];
+            }
+        }
+    }
+
+    /**
+     * Sets the value of the specified pixel.
+     * @param pX
+     * @param pY
+     * @param pValue
+     */
+    public void set(int pX, int pY, boolean pValue) {
+        if (pValue) {
+            data[pY][pX >>> 6] |= 1L << pX;
+        }
+        else {
+            data[pY][pX >>> 6] &= ~(1L << pX);
+        }
+    }
+
+    /**
+     * Returns a new {@link ImageProc} built from this binary image: 1.0 for set pixels, 0.0 otherwise, on all color
+     * channels.
+     * @return
+     */
+    public ImageProc toImageProc() {
+        double[][] channel = new double[height][width];
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                if ((data[i][j >>> 6] & (1L << j)) != 0) {
+                    channel[i][j] = 1.0;
+                }
+            }
+        }
+        ImageProc out = new ImageProc(width, height);
+        out.setAllColorChannels(channel);
+        return out;
+    }
+
+    /**
+     * Sets this image to the bitwise XOR of this image and the specified image.
+     * @param pImage
+     */
+    public void xor(BinaryImage pImage) {
+        for (int i = 0; i < height; ++i) {
+            for (int w = 0; w < nbWords; ++w) {
+                data[i][w] ^= pImage.data[i][w];
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.mar.imagetools.objects;
+
+import java.awt.Rectangle;
+
+/**
+ * The connected components of a binary image (see {@link com.mar.imagetools.utils.ConnectedComponentOps}): a label
+ * plane, where background pixels are 0 and the pixels of each component have the same label between 1 and
+ * getNbComponents(), and the statistics of each component (area, bounding box, centroid), indexed by label.
+ * @author mrenauld
+ */
+public class ConnectedComponents {
+
+    private final int[][] labels;
+
+    private final int nbComponents;
+
+    private final long[] areas;
+
+    private final int[] minX;
+
+    private final int[] minY;
+
+    private final int[] maxX;
+
+    private final int[] maxY;
+
+    private final double[] centroidX;
+
+    private final double[] centroidY;
+
+    /**
+     * Constructs the components from a label plane and the per-label statistics (arrays of nbComponents + 1 elements,
+     * index 0 unused).
+     * @param pLabels
+     * @param pNbComponents
+     * @param pAreas
+     * @param pMinX
+     * @param pMinY
+     * @param pMaxX
+     * @param pMaxY
+     * @param pCentroidX
+     * @param pCentroidY
+     */
+    public ConnectedComponents(int[][] pLabels, int pNbComponents, long[] pAreas, int[] pMinX, int[] pMinY,
+        int[] pMaxX, int[] pMaxY, double[] pCentroidX, double[] pCentroidY) {
+        labels = pLabels;
+        nbComponents = pNbComponents;
+        areas = pAreas;
+        minX = pMinX;
+        minY = pMinY;
+        maxX = pMaxX;
+        maxY = pMaxY;
+        centroidX = pCentroidX;
+        centroidY = pCentroidY;
+    }
+
+    /**
+     * Returns the number of pixels of the specified component.
+     * @param pLabel
+     * @return
+     */
+    public long getArea(int pLabel) {
+        return areas[pLabel];
+    }
+
+    /**
+     * Returns the bounding box of the specified component.
+     * @param pLabel
+     * @return
+     */
+    public Rectangle getBoundingBox(int pLabel) {
+        return new Rectangle(minX[pLabel], minY[pLabel], maxX[pLabel] - minX[pLabel] + 1, maxY[pLabel] - minY[pLabel]
+            + 1);
+    }
+
+    /**
+     * Returns the x coordinate of the centroid of the specified component.
+     * @param pLabel
+     * @return
+     */
+    public double getCentroidX(int pLabel) {
+        return centroidX[pLabel];
+    }
+
+    /**
+     * Returns the y coordinate of the centroid of the specified component.
+     * @param pLabel
+     * @return
+     */
+    public double getCentroidY(int pLabel) {
+        return centroidY[pLabel];
+    }
+
+    /**
+     * Returns the label of the specified pixel (0 for the background).
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public int getLabel(int pX, int pY) {
+        return labels[pY][pX];
+    }
+
+    /**
+     * Returns the label plane (internal storage, height x width).
+     * @return
+     */
+    public int[][] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns the number of components.
+     * @return
+     */
+    public int getNbComponents() {
+        return nbComponents;
+    }
+}
@@ -0,0 +1,106 @@
+package com.mar.imagetools.objects;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A read-only {@link TileStore} decoding tiles on demand from an image file, using the source region of the
+ * {@link ImageReader}. Only the decoded tile is held in memory (how much of the file the codec has to parse to reach a
+ * region depends on the format).
+ * @author mrenauld
+ */
+public class DecodedTileStore implements TileStore {
+
+    private final ImageInputStream input;
+
+    private final ImageReader reader;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    /**
+     * Opens the specified image file.
+     * @param pPath
+     * @param pTileWidth
+     * @param pTileHeight
+     * @throws IOException
+     */
+    public DecodedTileStore(String pPath, int pTileWidth, int pTileHeight) throws IOException {
+        input = ImageIO.createImageInputStream(new File(pPath));
+        if (input == null) {
+            throw new IOException("Cannot open [" + pPath + "]");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No reader found for [" + pPath + "]");
+        }
+        reader = readers.next();
+        reader.setInput(input, true, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        tileWidth = pTileWidth;
+        tileHeight = pTileHeight;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
+    @Override
+    public synchronized void readTile(int pTileX, int pTileY, int[] pData) throws IOException {
+        int x0 = pTileX * tileWidth;
+        int y0 = pTileY * tileHeight;
+        int w = Math.min(tileWidth, width - x0);
+        int h = Math.min(tileHeight, height - y0);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(x0, y0, w, h));
+        BufferedImage tile = reader.read(0, param);
+        tile.getRGB(0, 0, w, h, pData, 0, tileWidth);
+    }
+
+    @Override
+    public void writeTile(int pTileX, int pTileY, int[] pData) throws IOException {
+        throw new IOException("DecodedTileStore is read-only");
+    }
+}
@@ -0,0 +1,100 @@
+package com.mar.imagetools.objects;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct (off-heap) byte buffers, used by {@link OffHeapImage} and {@link OffHeapImageProc}. Released buffers
+ * are kept, up to a maximum number of bytes, and reused by the next request of the same capacity, so that working sets
+ * of same-sized images do not allocate (and wait for the collection of) new native memory.<br/>
+ * Buffers are in native byte order. This class is thread-safe.
+ * @author mrenauld
+ */
+public class DirectBufferPool {
+
+    /** Default maximum number of pooled bytes (256 MB). */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 256L << 20;
+
+    private static final DirectBufferPool DEFAULT_POOL = new DirectBufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final long maxPooledBytes;
+
+    private final Map<Integer, Queue<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Constructs a pool keeping at most pMaxPooledBytes bytes of released buffers.
+     * @param pMaxPooledBytes
+     */
+    public DirectBufferPool(long pMaxPooledBytes) {
+        maxPooledBytes = pMaxPooledBytes;
+    }
+
+    /**
+     * Returns the shared default pool.
+     * @return
+     */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * Returns a direct buffer of the specified capacity, reused from the pool if possible. The content of a reused
+     * buffer is not cleared.
+     * @param pCapacity
+     * @return
+     */
+    public ByteBuffer acquire(int pCapacity) {
+        Queue<ByteBuffer> queue = buffers.get(pCapacity);
+        ByteBuffer buffer = queue != null ? queue.poll() : null;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(pCapacity).order(ByteOrder.nativeOrder());
+        }
+        pooledBytes.addAndGet(-pCapacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Empties the pool. The native memory of the dropped buffers is freed when they are collected.
+     */
+    public void clear() {
+        for (Queue<ByteBuffer> queue : buffers.values()) {
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held by the pool.
+     * @return
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used anymore by the caller. It is dropped if the pool is
+     * full.
+     * @param pBuffer
+     */
+    public void release(ByteBuffer pBuffer) {
+        if (!pBuffer.isDirect()) {
+            throw new IllegalArgumentException("Not a direct buffer");
+        }
+        int capacity = pBuffer.capacity();
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffers.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).add(pBuffer);
+    }
+}
@@ -15,6 +15,9 @@ import com.mar.imagetools.utils.ImageUtils;
  * <li>green</li>
  * <li>blue</li>
  * </ul>
+ * An image can also be a view (see {@link #getView(int, int, int, int)}): a rectangular region of another image,
+ * sharing its data without copy. All methods of a view read and write the region only, so the operations on images
+ * can be applied to a part of an image, and their results written back into it.
  * @author mrenauld
  */
 public class Image {
@@ -31,6 +34,16 @@ public class Image {
 
     private int[][] imageData = new int[0][0];
 
+    /** Position of the image in imageData (not 0 for a view). */
+    private int offsetX = 0;
+
+    private int offsetY = 0;
+
+    /** Size of a view, or -1 if the image covers the whole imageData. */
+    private int viewWidth = -1;
+
+    private int viewHeight = -1;
+
     /**
      * Empty constructor.
      */
@@ -51,7 +64,7 @@ public class Image {
      * @param pImage
      */
     public Image(Image pImage) {
-        imageData = ArrayUtils.copy(pImage.imageData);
+        imageData = pImage.getImageData();
     }
 
     /**
@@ -72,12 +85,28 @@ public class Image {
         imageData = pImageData;
     }
 
+    /**
+     * Constructs a view of the specified image data.
+     * @param pImageData
+     * @param pOffsetX
+     * @param pOffsetY
+     * @param pWidth
+     * @param pHeight
+     */
+    private Image(int[][] pImageData, int pOffsetX, int pOffsetY, int pWidth, int pHeight) {
+        imageData = pImageData;
+        offsetX = pOffsetX;
+        offsetY = pOffsetY;
+        viewWidth = pWidth;
+        viewHeight = pHeight;
+    }
+
     /**
      * Returns this image as a BufferedImage.
      * @return
      */
     public BufferedImage getBufferedImage() {
-        return ImageUtils.sRGBIntArrayToBufferedImage(imageData);
+        return ImageUtils.sRGBIntArrayToBufferedImage(isView() ? getImageData() : imageData);
     }
 
     /**
@@ -91,7 +120,7 @@ public class Image {
         int[][] channelData = new int[h][w];
         for (int i = 0; i < h; ++i) {
             for (int j = 0; j < w; ++j) {
-                channelData[i][j] = (imageData[i][j] >> (pChannel * 8)) & 0xff;
+                channelData[i][j] = (imageData[offsetY + i][offsetX + j] >> (pChannel * 8)) & 0xff;
             }
         }
         return channelData;
@@ -121,6 +150,9 @@ public class Image {
      * @return
      */
     public int getHeight() {
+        if (viewHeight >= 0) {
+            return viewHeight;
+        }
         return imageData.length;
     }
 
@@ -129,7 +161,88 @@ public class Image {
      * @return
      */
     public int[][] getImageData() {
-        return ArrayUtils.copy(imageData);
+        if (!isView()) {
+            return ArrayUtils.copy(imageData);
+        }
+        int h = getHeight();
+        int w = getWidth();
+        int[][] data = new int[h][w];
+        for (int i = 0; i < h; ++i) {
+            getRow(i, data[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the x position of this image in the underlying data (0 if it is not a view).
+     * @return
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * Returns the y position of this image in the underlying data (0 if it is not a view).
+     * @return
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Returns the height of the underlying data (the whole image for a view).
+     * @return
+     */
+    public int getParentHeight() {
+        return imageData.length;
+    }
+
+    /**
+     * Returns the width of the underlying data (the whole image for a view).
+     * @return
+     */
+    public int getParentWidth() {
+        return imageData.length > 0 ? imageData[0].length : 0;
+    }
+
+    /**
+     * Copies the specified row (packed ARGB values) into pRow, which must have at least getWidth() elements.
+     * @param pY
+     * @param pRow
+     */
+    public void getRow(int pY, int[] pRow) {
+        System.arraycopy(imageData[offsetY + pY], offsetX, pRow, 0, getWidth());
+    }
+
+    /**
+     * Copies pLength pixels of the specified row, starting at column pX, into pRow.
+     * @param pY
+     * @param pX
+     * @param pLength
+     * @param pRow
+     */
+    public void getRow(int pY, int pX, int pLength, int[] pRow) {
+        System.arraycopy(imageData[offsetY + pY], offsetX + pX, pRow, 0, pLength);
+    }
+
+    /**
+     * Returns a view of the region of size pWidth x pHeight at (pX, pY) of this image: an image sharing the data of
+     * this image, without copy. The region is relative to this image, and may extend beyond it (for instance to read
+     * border pixels around a view) as long as it stays inside the underlying data.
+     * @param pX
+     * @param pY
+     * @param pWidth
+     * @param pHeight
+     * @return
+     */
+    public Image getView(int pX, int pY, int pWidth, int pHeight) {
+        int x = offsetX + pX;
+        int y = offsetY + pY;
+        if (x < 0 || y < 0 || pWidth < 0 || pHeight < 0 || x + pWidth > getParentWidth()
+            || y + pHeight > getParentHeight()) {
+            throw new IllegalArgumentException("View region outside the image data");
+        }
+        return new Image(imageData, x, y, pWidth, pHeight);
     }
 
     /**
@@ -137,6 +250,9 @@ public class Image {
      * @return
      */
     public int getWidth() {
+        if (viewWidth >= 0) {
+            return viewWidth;
+        }
         if (imageData.length > 0) {
             return imageData[0].length;
         }
@@ -145,6 +261,14 @@ public class Image {
         }
     }
 
+    /**
+     * Returns true if this image is a view of a region of another image.
+     * @return
+     */
+    public boolean isView() {
+        return viewWidth >= 0;
+    }
+
     /**
      * Resets the image to a white image.
      */
@@ -162,7 +286,7 @@ public class Image {
         int w = getWidth();
         for (int i = 0; i < h; ++i) {
             for (int j = 0; j < w; ++j) {
-                imageData[i][j] = pColor;
+                imageData[offsetY + i][offsetX + j] = pColor;
             }
         }
     }
@@ -200,9 +324,10 @@ public class Image {
         int w = getWidth();
         int mask = ~(255 << (pChannel * 8));
         for (int i = 0; i < h; ++i) {
-            for (int j = 0; j < w; ++j) {
-                imageData[i][j] = imageData[i][j] & mask;
-                imageData[i][j] += (pChannelValue << (pChannel * 8));
+            int[] row = imageData[offsetY + i];
+            for (int j = offsetX; j < offsetX + w; ++j) {
+                row[j] = row[j] & mask;
+                row[j] += (pChannelValue << (pChannel * 8));
             }
         }
     }
@@ -218,18 +343,45 @@ public class Image {
         int w = getWidth();
         int mask = ~(255 << (pChannel * 8));
         for (int i = 0; i < h; ++i) {
+            int[] row = imageData[offsetY + i];
             for (int j = 0; j < w; ++j) {
-                imageData[i][j] = imageData[i][j] & mask;
-                imageData[i][j] += (pChannelData[i][j] << (pChannel * 8));
+                row[offsetX + j] = row[offsetX + j] & mask;
+                row[offsetX + j] += (pChannelData[i][j] << (pChannel * 8));
             }
         }
     }
 
     /**
-     * Sets the image data.
+     * Sets the image data. For a view, the data (which must have the size of the view) is copied into the region.
      * @param pImageData
      */
     public void setImageData(int[][] pImageData) {
-        imageData = pImageData;
+        if (!isView()) {
+            imageData = pImageData;
+            return;
+        }
+        for (int i = 0; i < getHeight(); ++i) {
+            setRow(i, pImageData[i]);
+        }
+    }
+
+    /**
+     * Sets the specified row from pRow (packed ARGB values), which must have at least getWidth() elements.
+     * @param pY
+     * @param pRow
+     */
+    public void setRow(int pY, int[] pRow) {
+        System.arraycopy(pRow, 0, imageData[offsetY + pY], offsetX, getWidth());
+    }
+
+    /**
+     * Sets pLength pixels of the specified row, starting at column pX, from pRow.
+     * @param pY
+     * @param pX
+     * @param pLength
+     * @param pRow
+     */
+    public void setRow(int pY, int pX, int pLength, int[] pRow) {
+        System.arraycopy(pRow, 0, imageData[offsetY + pY], offsetX + pX, pLength);
     }
 }
\ No newline at end of file
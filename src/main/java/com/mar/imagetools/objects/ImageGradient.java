@@ -0,0 +1,76 @@
+package com.mar.imagetools.objects;
+
+/**
+ * The gradient of a grayscale plane (see {@link com.mar.imagetools.utils.ImageEdgeOps}): the magnitude and the
+ * orientation of the gradient at each pixel. The orientation is an angle in radians between -pi and pi, measured from
+ * the x axis towards the y axis (downwards).
+ * @author mrenauld
+ */
+public class ImageGradient {
+
+    private final double[][] magnitude;
+
+    private final double[][] orientation;
+
+    /**
+     * Constructs a gradient from its magnitude and orientation planes (height x width).
+     * @param pMagnitude
+     * @param pOrientation
+     */
+    public ImageGradient(double[][] pMagnitude, double[][] pOrientation) {
+        magnitude = pMagnitude;
+        orientation = pOrientation;
+    }
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    public int getHeight() {
+        return magnitude.length;
+    }
+
+    /**
+     * Returns the magnitude plane (internal storage, height x width).
+     * @return
+     */
+    public double[][] getMagnitude() {
+        return magnitude;
+    }
+
+    /**
+     * Returns the magnitude at the specified pixel.
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public double getMagnitude(int pX, int pY) {
+        return magnitude[pY][pX];
+    }
+
+    /**
+     * Returns the orientation plane (internal storage, height x width).
+     * @return
+     */
+    public double[][] getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns the orientation at the specified pixel.
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public double getOrientation(int pX, int pY) {
+        return orientation[pY][pX];
+    }
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    public int getWidth() {
+        return magnitude.length > 0 ? magnitude[0].length : 0;
+    }
+}
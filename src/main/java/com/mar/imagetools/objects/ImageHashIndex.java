@@ -0,0 +1,273 @@
+package com.mar.imagetools.objects;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of 64-bit image hashes (see {@link com.mar.imagetools.utils.ImageHashOps}) supporting radius
+ * queries over the Hamming distance. The index is a BK-tree: the children of a node are keyed by their distance to
+ * it, and the triangle inequality restricts a query of radius r to the children at a distance d-r to d+r.<br/>
+ * Nodes are stored in flat arrays (hash, id, first child, next sibling, distance to the parent) to keep the index
+ * compact and cache-friendly. Queries can run concurrently; insertions lock the index.
+ * @author mrenauld
+ */
+public class ImageHashIndex {
+
+    /** Identifier of the index file format. */
+    private static final int MAGIC = 0x49484958;
+
+    private static final int VERSION = 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] hashes;
+
+    private long[] ids;
+
+    private int[] firstChild;
+
+    private int[] nextSibling;
+
+    private byte[] distances;
+
+    private int size = 0;
+
+    /**
+     * Constructs an empty index.
+     */
+    public ImageHashIndex() {
+        this(1024);
+    }
+
+    /**
+     * Constructs an empty index with room for pCapacity hashes.
+     * @param pCapacity
+     */
+    public ImageHashIndex(int pCapacity) {
+        allocate(Math.max(1, pCapacity));
+    }
+
+    /**
+     * Reads an index saved with {@link #save(Path)}.
+     * @param pPath
+     * @return
+     * @throws IOException
+     */
+    public static ImageHashIndex load(Path pPath) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(pPath)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not an image hash index file: " + pPath);
+            }
+            int n = input.readInt();
+            ImageHashIndex index = new ImageHashIndex(n);
+            for (int k = 0; k < n; ++k) {
+                index.hashes[k] = input.readLong();
+                index.ids[k] = input.readLong();
+                int parent = input.readInt();
+                index.distances[k] = input.readByte();
+                index.firstChild[k] = -1;
+                index.nextSibling[k] = -1;
+                if (parent >= 0) {
+                    if (parent >= k) {
+                        throw new IOException("Corrupted image hash index file: " + pPath);
+                    }
+                    index.nextSibling[k] = index.firstChild[parent];
+                    index.firstChild[parent] = k;
+                }
+            }
+            index.size = n;
+            return index;
+        }
+    }
+
+    /**
+     * Adds a hash with the associated id.
+     * @param pHash
+     * @param pId
+     */
+    public void add(long pHash, long pId) {
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(size + 1);
+            insert(pHash, pId);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds all specified hashes, with the associated ids (both arrays must have the same length).
+     * @param pHashes
+     * @param pIds
+     */
+    public void addAll(long[] pHashes, long[] pIds) {
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(size + pHashes.length);
+            for (int k = 0; k < pHashes.length; ++k) {
+                insert(pHashes[k], pIds[k]);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of all hashes at a Hamming distance of at most pRadius from pHash.
+     * @param pHash
+     * @param pRadius
+     * @return
+     */
+    public long[] query(long pHash, int pRadius) {
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return new long[0];
+            }
+            long[] result = new long[16];
+            int nbResults = 0;
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                int d = Long.bitCount(pHash ^ hashes[node]);
+                if (d <= pRadius) {
+                    if (nbResults == result.length) {
+                        result = Arrays.copyOf(result, 2 * nbResults);
+                    }
+                    result[nbResults++] = ids[node];
+                }
+                for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                    if (Math.abs(distances[child] - d) <= pRadius) {
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * top);
+                        }
+                        stack[top++] = child;
+                    }
+                }
+            }
+            return Arrays.copyOf(result, nbResults);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index to the specified file (21 bytes per hash). The tree structure is saved, so loading does not
+     * need to rebuild it.
+     * @param pPath
+     * @throws IOException
+     */
+    public void save(Path pPath) throws IOException {
+        lock.readLock().lock();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(pPath)))) {
+            int[] parents = new int[size];
+            Arrays.fill(parents, -1);
+            for (int k = 0; k < size; ++k) {
+                for (int child = firstChild[k]; child >= 0; child = nextSibling[child]) {
+                    parents[child] = k;
+                }
+            }
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(size);
+            for (int k = 0; k < size; ++k) {
+                output.writeLong(hashes[k]);
+                output.writeLong(ids[k]);
+                output.writeInt(parents[k]);
+                output.writeByte(distances[k]);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of hashes in the index.
+     * @return
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Allocates the node arrays.
+     * @param pCapacity
+     */
+    private void allocate(int pCapacity) {
+        hashes = new long[pCapacity];
+        ids = new long[pCapacity];
+        firstChild = new int[pCapacity];
+        nextSibling = new int[pCapacity];
+        distances = new byte[pCapacity];
+    }
+
+    /**
+     * Grows the node arrays to hold at least pCapacity nodes.
+     * @param pCapacity
+     */
+    private void ensureCapacity(int pCapacity) {
+        if (pCapacity <= hashes.length) {
+            return;
+        }
+        int capacity = Math.max(pCapacity, 2 * hashes.length);
+        hashes = Arrays.copyOf(hashes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+    }
+
+    /**
+     * Inserts a node in the tree (the capacity must be sufficient).
+     * @param pHash
+     * @param pId
+     */
+    private void insert(long pHash, long pId) {
+        int k = size++;
+        hashes[k] = pHash;
+        ids[k] = pId;
+        firstChild[k] = -1;
+        nextSibling[k] = -1;
+        distances[k] = 0;
+        if (k == 0) {
+            return;
+        }
+        int node = 0;
+        while (true) {
+            int d = Long.bitCount(pHash ^ hashes[node]);
+            int next = -1;
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (distances[child] == d) {
+                    next = child;
+                    break;
+                }
+            }
+            if (next < 0) {
+                distances[k] = (byte) d;
+                nextSibling[k] = firstChild[node];
+                firstChild[node] = k;
+                return;
+            }
+            node = next;
+        }
+    }
+}
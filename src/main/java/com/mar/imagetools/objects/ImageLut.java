@@ -0,0 +1,234 @@
+package com.mar.imagetools.objects;
+
+/**
+ * A lookup table mapping each 8-bit channel value of a packed ARGB pixel to a new value, with one 256-entry table per
+ * channel (red, green, blue, alpha). Tone adjustments (curves, gamma, levels, posterization, brightness/contrast) are
+ * all such maps, and a chain of them can be composed with {@link #then(ImageLut)} into a single table, which is then
+ * applied in one pass (see {@link com.mar.imagetools.utils.ImageOps#applyLut(Image, ImageLut)}).<br/>
+ * The factory methods leave the alpha channel unchanged. ImageLut objects are immutable.
+ * @author mrenauld
+ */
+public class ImageLut {
+
+    /** Number of entries of a table. */
+    public static final int SIZE = 256;
+
+    /** Tables indexed by channel (see the Image.CHANNEL_* constants), values shifted to the channel position. */
+    private final int[][] shiftedTables = new int[4][SIZE];
+
+    /**
+     * Constructs the identity table.
+     */
+    public ImageLut() {
+        this(identity(), identity(), identity(), identity());
+    }
+
+    /**
+     * Constructs a table applying pTable to the red, green and blue channels.
+     * @param pTable
+     */
+    public ImageLut(int[] pTable) {
+        this(pTable, pTable, pTable, identity());
+    }
+
+    /**
+     * Constructs a table applying a different table to each channel. Values are clamped to the 0-255 range.
+     * @param pRed
+     * @param pGreen
+     * @param pBlue
+     * @param pAlpha
+     */
+    public ImageLut(int[] pRed, int[] pGreen, int[] pBlue, int[] pAlpha) {
+        setTable(Image.CHANNEL_RED, pRed);
+        setTable(Image.CHANNEL_GREEN, pGreen);
+        setTable(Image.CHANNEL_BLUE, pBlue);
+        setTable(Image.CHANNEL_ALPHA, pAlpha);
+    }
+
+    /**
+     * Returns a brightness/contrast adjustment: v' = (v - 128) * pContrast + 128 + pBrightness * 255.
+     * @param pBrightness offset, between -1.0 and 1.0
+     * @param pContrast contrast factor (1.0 for no change)
+     * @return
+     */
+    public static ImageLut brightnessContrast(double pBrightness, double pContrast) {
+        int[] table = new int[SIZE];
+        for (int v = 0; v < SIZE; ++v) {
+            table[v] = round((v - 128.0) * pContrast + 128.0 + pBrightness * 255.0);
+        }
+        return new ImageLut(table);
+    }
+
+    /**
+     * Returns a curve going through the specified control points (input and output values in the 0-255 range, inputs
+     * in increasing order), with linear interpolation between them. The curve is constant before the first point and
+     * after the last one.
+     * @param pInputs
+     * @param pOutputs
+     * @return
+     */
+    public static ImageLut curve(int[] pInputs, int[] pOutputs) {
+        if (pInputs.length == 0 || pInputs.length != pOutputs.length) {
+            throw new IllegalArgumentException("Invalid curve control points");
+        }
+        int[] table = new int[SIZE];
+        int k = 0;
+        for (int v = 0; v < SIZE; ++v) {
+            while (k < pInputs.length && pInputs[k] < v) {
+                k++;
+            }
+            if (k == 0) {
+                table[v] = pOutputs[0];
+            }
+            else if (k == pInputs.length) {
+                table[v] = pOutputs[pInputs.length - 1];
+            }
+            else {
+                double t = (double) (v - pInputs[k - 1]) / (pInputs[k] - pInputs[k - 1]);
+                table[v] = round(pOutputs[k - 1] + t * (pOutputs[k] - pOutputs[k - 1]));
+            }
+        }
+        return new ImageLut(table);
+    }
+
+    /**
+     * Returns a gamma correction: v' = 255 * (v / 255)^(1 / pGamma).
+     * @param pGamma
+     * @return
+     */
+    public static ImageLut gamma(double pGamma) {
+        int[] table = new int[SIZE];
+        for (int v = 0; v < SIZE; ++v) {
+            table[v] = round(255.0 * Math.pow(v / 255.0, 1.0 / pGamma));
+        }
+        return new ImageLut(table);
+    }
+
+    /**
+     * Returns a levels adjustment: the input range pInBlack-pInWhite is mapped to 0.0-1.0, gamma corrected, then
+     * mapped to the output range pOutBlack-pOutWhite.
+     * @param pInBlack
+     * @param pInWhite
+     * @param pGamma
+     * @param pOutBlack
+     * @param pOutWhite
+     * @return
+     */
+    public static ImageLut levels(int pInBlack, int pInWhite, double pGamma, int pOutBlack, int pOutWhite) {
+        int[] table = new int[SIZE];
+        double range = Math.max(1, pInWhite - pInBlack);
+        for (int v = 0; v < SIZE; ++v) {
+            double t = Math.min(1.0, Math.max(0.0, (v - pInBlack) / range));
+            table[v] = round(pOutBlack + (pOutWhite - pOutBlack) * Math.pow(t, 1.0 / pGamma));
+        }
+        return new ImageLut(table);
+    }
+
+    /**
+     * Returns a posterization to pNbLevels evenly spaced levels (at least 2).
+     * @param pNbLevels
+     * @return
+     */
+    public static ImageLut posterize(int pNbLevels) {
+        int n = Math.max(2, Math.min(SIZE, pNbLevels));
+        int[] table = new int[SIZE];
+        for (int v = 0; v < SIZE; ++v) {
+            int level = v * n / SIZE;
+            table[v] = round(level * 255.0 / (n - 1));
+        }
+        return new ImageLut(table);
+    }
+
+    /**
+     * Returns the value of the specified packed ARGB pixel mapped by the table.
+     * @param pArgb
+     * @return
+     */
+    public int apply(int pArgb) {
+        return shiftedTables[Image.CHANNEL_ALPHA][pArgb >>> 24] | shiftedTables[Image.CHANNEL_RED][(pArgb >> 16) & 0xff]
+            | shiftedTables[Image.CHANNEL_GREEN][(pArgb >> 8) & 0xff] | shiftedTables[Image.CHANNEL_BLUE][pArgb & 0xff];
+    }
+
+    /**
+     * Maps the first pWidth packed ARGB pixels of pRow in place.
+     * @param pRow
+     * @param pWidth
+     */
+    public void apply(int[] pRow, int pWidth) {
+        int[] a = shiftedTables[Image.CHANNEL_ALPHA];
+        int[] r = shiftedTables[Image.CHANNEL_RED];
+        int[] g = shiftedTables[Image.CHANNEL_GREEN];
+        int[] b = shiftedTables[Image.CHANNEL_BLUE];
+        for (int j = 0; j < pWidth; ++j) {
+            int v = pRow[j];
+            pRow[j] = a[v >>> 24] | r[(v >> 16) & 0xff] | g[(v >> 8) & 0xff] | b[v & 0xff];
+        }
+    }
+
+    /**
+     * Returns the table of the specified channel (see the Image.CHANNEL_* constants), values in the 0-255 range.
+     * @param pChannel
+     * @return
+     */
+    public int[] getTable(int pChannel) {
+        int[] table = new int[SIZE];
+        for (int v = 0; v < SIZE; ++v) {
+            table[v] = (shiftedTables[pChannel][v] >>> (pChannel * 8)) & 0xff;
+        }
+        return table;
+    }
+
+    /**
+     * Returns the composition of this table followed by pNext (applying the result is equivalent to applying this
+     * table, then pNext).
+     * @param pNext
+     * @return
+     */
+    public ImageLut then(ImageLut pNext) {
+        int[][] tables = new int[4][SIZE];
+        for (int c = 0; c < 4; ++c) {
+            int[] first = getTable(c);
+            int[] next = pNext.getTable(c);
+            for (int v = 0; v < SIZE; ++v) {
+                tables[c][v] = next[first[v]];
+            }
+        }
+        return new ImageLut(tables[Image.CHANNEL_RED], tables[Image.CHANNEL_GREEN], tables[Image.CHANNEL_BLUE],
+            tables[Image.CHANNEL_ALPHA]);
+    }
+
+    /**
+     * Returns the identity table.
+     * @return
+     */
+    private static int[] identity() {
+        int[] table = new int[SIZE];
+        for (int v = 0; v < SIZE; ++v) {
+            table[v] = v;
+        }
+        return table;
+    }
+
+    /**
+     * Rounds a value to the nearest integer in the 0-255 range.
+     * @param pValue
+     * @return
+     */
+    private static int round(double pValue) {
+        return (int) Math.max(0L, Math.min(255L, Math.round(pValue)));
+    }
+
+    /**
+     * Sets the table of the specified channel.
+     * @param pChannel
+     * @param pTable
+     */
+    private void setTable(int pChannel, int[] pTable) {
+        if (pTable.length != SIZE) {
+            throw new IllegalArgumentException("A lookup table must have " + SIZE + " entries");
+        }
+        for (int v = 0; v < SIZE; ++v) {
+            shiftedTables[pChannel][v] = Math.max(0, Math.min(255, pTable[v])) << (pChannel * 8);
+        }
+    }
+}
@@ -5,6 +5,10 @@ import com.mar.algotools.mathematics.utils.ArrayUtils;
 /**
  * Represents an RGB image (without alpha channel). The data is stored as double
  * arrays, in order to have more precision than in {@link Image}.
+ * <p>
+ * Like {@link Image}, an ImageProc can be a view of a region of another
+ * ImageProc (see {@link #getView(int, int, int, int)}), sharing its data
+ * without copy: all methods of a view read and write the region only.
  *
  * @author mrenauld
  */
@@ -13,6 +17,16 @@ public class ImageProc {
     /** Image data: nb color channels x height x width. */
     private double[][][] channelData;
 
+    /** Position of the image in channelData (not 0 for a view). */
+    private int offsetX = 0;
+
+    private int offsetY = 0;
+
+    /** Size of a view, or -1 if the image covers the whole channelData. */
+    private int viewWidth = -1;
+
+    private int viewHeight = -1;
+
     /**
      * Constructs a new ImageProc from the specified {@link Image}.
      *
@@ -33,7 +47,7 @@ public class ImageProc {
     public ImageProc(ImageProc pImage) {
         channelData = new double[Image.NB_COLOR_CHANNEL][][];
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
-            channelData[c] = ArrayUtils.copy(pImage.channelData[c]);
+            channelData[c] = pImage.getChannel(c);
         }
     }
 
@@ -50,6 +64,23 @@ public class ImageProc {
         }
     }
 
+    /**
+     * Constructs a view of the specified channel data.
+     *
+     * @param pChannelData
+     * @param pOffsetX
+     * @param pOffsetY
+     * @param pWidth
+     * @param pHeight
+     */
+    private ImageProc(double[][][] pChannelData, int pOffsetX, int pOffsetY, int pWidth, int pHeight) {
+        channelData = pChannelData;
+        offsetX = pOffsetX;
+        offsetY = pOffsetY;
+        viewWidth = pWidth;
+        viewHeight = pHeight;
+    }
+
     /**
      * Adds the specified offset to all channel data.
      *
@@ -82,7 +113,7 @@ public class ImageProc {
     public void add(int pChannelId, double pOffset) {
         for (int i = 0; i < getHeight(); ++i) {
             for (int j = 0; j < getWidth(); ++j) {
-                channelData[pChannelId][i][j] += pOffset;
+                channelData[pChannelId][offsetY + i][offsetX + j] += pOffset;
             }
         }
     }
@@ -97,7 +128,7 @@ public class ImageProc {
     public void add(int pChannelId, double[][] pOffsetArray) {
         for (int i = 0; i < getHeight(); ++i) {
             for (int j = 0; j < getWidth(); ++j) {
-                channelData[pChannelId][i][j] += pOffsetArray[i][j];
+                channelData[pChannelId][offsetY + i][offsetX + j] += pOffsetArray[i][j];
             }
         }
     }
@@ -111,7 +142,8 @@ public class ImageProc {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             for (int i = 0; i < getHeight(); ++i) {
                 for (int j = 0; j < getWidth(); ++j) {
-                    channelData[c][i][j] += pImage.channelData[c][i][j];
+                    channelData[c][offsetY + i][offsetX + j] += pImage.channelData[c][pImage.offsetY + i]
+                            [pImage.offsetX + j];
                 }
             }
         }
@@ -128,7 +160,7 @@ public class ImageProc {
         int w = getWidth();
         Image image = new Image(w, h);
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
-            image.setChannel(c, channelData[c]);
+            image.setChannel(c, isView() ? getChannel(c) : channelData[c]);
         }
         return image;
     }
@@ -140,7 +172,16 @@ public class ImageProc {
      * @return
      */
     public double[][] getChannel(int pChannelId) {
-        return ArrayUtils.copy(channelData[pChannelId]);
+        if (!isView()) {
+            return ArrayUtils.copy(channelData[pChannelId]);
+        }
+        int h = getHeight();
+        int w = getWidth();
+        double[][] data = new double[h][w];
+        for (int i = 0; i < h; ++i) {
+            System.arraycopy(channelData[pChannelId][offsetY + i], offsetX, data[i], 0, w);
+        }
+        return data;
     }
 
     /**
@@ -149,15 +190,93 @@ public class ImageProc {
      * @return
      */
     public int getHeight() {
+        if (viewHeight >= 0) {
+            return viewHeight;
+        }
         return channelData[0].length;
     }
 
+    /**
+     * Returns the x position of this image in the underlying data (0 if it is
+     * not a view).
+     *
+     * @return
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * Returns the y position of this image in the underlying data (0 if it is
+     * not a view).
+     *
+     * @return
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Returns the height of the underlying data (the whole image for a view).
+     *
+     * @return
+     */
+    public int getParentHeight() {
+        return channelData[0].length;
+    }
+
+    /**
+     * Returns the width of the underlying data (the whole image for a view).
+     *
+     * @return
+     */
+    public int getParentWidth() {
+        return channelData[0].length > 0 ? channelData[0][0].length : 0;
+    }
+
+    /**
+     * Copies the specified row of the specified channel into pRow, which must
+     * have at least getWidth() elements.
+     *
+     * @param pChannelId
+     * @param pY
+     * @param pRow
+     */
+    public void getRow(int pChannelId, int pY, double[] pRow) {
+        System.arraycopy(channelData[pChannelId][offsetY + pY], offsetX, pRow, 0, getWidth());
+    }
+
+    /**
+     * Returns a view of the region of size pWidth x pHeight at (pX, pY) of
+     * this image, sharing its data without copy. The region is relative to
+     * this image, and may extend beyond it (for instance to read border pixels
+     * around a view) as long as it stays inside the underlying data.
+     *
+     * @param pX
+     * @param pY
+     * @param pWidth
+     * @param pHeight
+     * @return
+     */
+    public ImageProc getView(int pX, int pY, int pWidth, int pHeight) {
+        int x = offsetX + pX;
+        int y = offsetY + pY;
+        if (x < 0 || y < 0 || pWidth < 0 || pHeight < 0 || x + pWidth > getParentWidth()
+                || y + pHeight > getParentHeight()) {
+            throw new IllegalArgumentException("View region outside the image data");
+        }
+        return new ImageProc(channelData, x, y, pWidth, pHeight);
+    }
+
     /**
      * Returns the image width.
      *
      * @return
      */
     public int getWidth() {
+        if (viewWidth >= 0) {
+            return viewWidth;
+        }
         if (channelData[0].length > 0) {
             return channelData[0][0].length;
         } else {
@@ -173,12 +292,21 @@ public class ImageProc {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             for (int i = 0; i < getHeight(); ++i) {
                 for (int j = 0; j < getWidth(); ++j) {
-                    channelData[c][i][j] = 1.0 - channelData[c][i][j];
+                    channelData[c][offsetY + i][offsetX + j] = 1.0 - channelData[c][offsetY + i][offsetX + j];
                 }
             }
         }
     }
 
+    /**
+     * Returns true if this image is a view of a region of another image.
+     *
+     * @return
+     */
+    public boolean isView() {
+        return viewWidth >= 0;
+    }
+
     /**
      * Normalizes the data so that all data sits between 0.0 and 1.0.
      */
@@ -188,11 +316,11 @@ public class ImageProc {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             for (int i = 0; i < getHeight(); ++i) {
                 for (int j = 0; j < getWidth(); ++j) {
-                    if (channelData[c][i][j] < min) {
-                        min = channelData[c][i][j];
+                    if (channelData[c][offsetY + i][offsetX + j] < min) {
+                        min = channelData[c][offsetY + i][offsetX + j];
                     }
-                    if (channelData[c][i][j] > max) {
-                        max = channelData[c][i][j];
+                    if (channelData[c][offsetY + i][offsetX + j] > max) {
+                        max = channelData[c][offsetY + i][offsetX + j];
                     }
                 }
             }
@@ -213,11 +341,11 @@ public class ImageProc {
         double max = Double.MIN_VALUE;
         for (int i = 0; i < getHeight(); ++i) {
             for (int j = 0; j < getWidth(); ++j) {
-                if (channelData[pChannelId][i][j] < min) {
-                    min = channelData[pChannelId][i][j];
+                if (channelData[pChannelId][offsetY + i][offsetX + j] < min) {
+                    min = channelData[pChannelId][offsetY + i][offsetX + j];
                 }
-                if (channelData[pChannelId][i][j] > max) {
-                    max = channelData[pChannelId][i][j];
+                if (channelData[pChannelId][offsetY + i][offsetX + j] > max) {
+                    max = channelData[pChannelId][offsetY + i][offsetX + j];
                 }
             }
         }
@@ -233,18 +361,25 @@ public class ImageProc {
      */
     public void setAllColorChannels(double[][] pChannelData) {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
-            channelData[c] = ArrayUtils.copy(pChannelData);
+            setChannel(c, pChannelData);
         }
     }
 
     /**
-     * Sets the data for the specified channel index.
+     * Sets the data for the specified channel index. For a view, the data
+     * (which must have the size of the view) is copied into the region.
      *
      * @param pChannelId
      * @param pChannelData
      */
     public void setChannel(int pChannelId, double[][] pChannelData) {
-        channelData[pChannelId] = ArrayUtils.copy(pChannelData);
+        if (!isView()) {
+            channelData[pChannelId] = ArrayUtils.copy(pChannelData);
+            return;
+        }
+        for (int i = 0; i < getHeight(); ++i) {
+            System.arraycopy(pChannelData[i], 0, channelData[pChannelId][offsetY + i], offsetX, getWidth());
+        }
     }
 
     /**
@@ -256,7 +391,8 @@ public class ImageProc {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             for (int i = 0; i < getHeight(); ++i) {
                 for (int j = 0; j < getWidth(); ++j) {
-                    channelData[c][i][j] -= pImage.channelData[c][i][j];
+                    channelData[c][offsetY + i][offsetX + j] -= pImage.channelData[c][pImage.offsetY + i]
+                            [pImage.offsetX + j];
                 }
             }
         }
@@ -273,9 +409,9 @@ public class ImageProc {
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             for (int i = 0; i < getHeight(); ++i) {
                 for (int j = 0; j < getWidth(); ++j) {
-                    double v = Math.abs(channelData[c][i][j]);
+                    double v = Math.abs(channelData[c][offsetY + i][offsetX + j]);
                     if ((pKeepUpper && v < pThreshold) || (!pKeepUpper && v > pThreshold)) {
-                        channelData[c][i][j] = 0.0;
+                        channelData[c][offsetY + i][offsetX + j] = 0.0;
                     }
                 }
             }
@@ -314,7 +450,7 @@ public class ImageProc {
     public void times(int pChannelId, double pCoef) {
         for (int i = 0; i < getHeight(); ++i) {
             for (int j = 0; j < getWidth(); ++j) {
-                channelData[pChannelId][i][j] *= pCoef;
+                channelData[pChannelId][offsetY + i][offsetX + j] *= pCoef;
             }
         }
     }
@@ -329,7 +465,7 @@ public class ImageProc {
     public void times(int pChannelId, double[][] pCoefArray) {
         for (int i = 0; i < getHeight(); ++i) {
             for (int j = 0; j < getWidth(); ++j) {
-                channelData[pChannelId][i][j] *= pCoefArray[i][j];
+                channelData[pChannelId][offsetY + i][offsetX + j] *= pCoefArray[i][j];
             }
         }
     }
@@ -0,0 +1,167 @@
+package com.mar.imagetools.objects;
+
+/**
+ * Encoding options used by {@link com.mar.imagetools.utils.ImageIOUtils} when writing images. Options which do not
+ * apply to the chosen format are ignored. A value of -1 means "codec default".
+ * @author mrenauld
+ */
+public class ImageWriteOptions {
+
+    /** PNG row filter strategies. */
+    public enum PngFilter {
+        /** No filtering. */
+        NONE,
+        /** Difference with the left pixel. */
+        SUB,
+        /** Difference with the pixel above. */
+        UP,
+        /** Difference with the mean of the left and above pixels. */
+        AVERAGE,
+        /** Paeth predictor. */
+        PAETH,
+        /** Filter chosen per row (minimum sum of absolute differences heuristic). */
+        ADAPTIVE
+    }
+
+    /** JPEG quality, between 0.0f and 1.0f. */
+    private float quality = -1.0f;
+
+    /** PNG deflate compression level, between 0 (none) and 9 (best). */
+    private int compressionLevel = -1;
+
+    private PngFilter pngFilter = PngFilter.ADAPTIVE;
+
+    /** Progressive JPEG (or interlaced PNG when supported by the codec). */
+    private boolean progressive = false;
+
+    /** Optimized JPEG Huffman tables. */
+    private boolean optimized = false;
+
+    /** Writes no optional metadata (for instance the JPEG JFIF header). */
+    private boolean stripMetadata = false;
+
+    /** Uses the parallel PNG encoder, which deflates independent row chunks concurrently. */
+    private boolean parallelPng = false;
+
+    /**
+     * Empty constructor (codec defaults).
+     */
+    public ImageWriteOptions() {
+
+    }
+
+    /**
+     * Returns the PNG compression level (-1 for the codec default).
+     * @return
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns the PNG filter strategy.
+     * @return
+     */
+    public PngFilter getPngFilter() {
+        return pngFilter;
+    }
+
+    /**
+     * Returns the JPEG quality (-1 for the codec default).
+     * @return
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Returns true if the JPEG Huffman tables are optimized.
+     * @return
+     */
+    public boolean isOptimized() {
+        return optimized;
+    }
+
+    /**
+     * Returns true if the parallel PNG encoder is used.
+     * @return
+     */
+    public boolean isParallelPng() {
+        return parallelPng;
+    }
+
+    /**
+     * Returns true if the image is written in progressive mode.
+     * @return
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Returns true if optional metadata is stripped.
+     * @return
+     */
+    public boolean isStripMetadata() {
+        return stripMetadata;
+    }
+
+    /**
+     * Sets the PNG compression level, between 0 (none) and 9 (best), or -1 for the codec default. When the standard
+     * PNG writer cannot apply it (before Java 9), truecolor images are written with the parallel PNG encoder; indexed
+     * images are then written with the default level.
+     * @param pCompressionLevel
+     */
+    public void setCompressionLevel(int pCompressionLevel) {
+        compressionLevel = pCompressionLevel;
+    }
+
+    /**
+     * Sets whether the JPEG Huffman tables are optimized.
+     * @param pOptimized
+     */
+    public void setOptimized(boolean pOptimized) {
+        optimized = pOptimized;
+    }
+
+    /**
+     * Sets whether the parallel PNG encoder is used.
+     * @param pParallelPng
+     */
+    public void setParallelPng(boolean pParallelPng) {
+        parallelPng = pParallelPng;
+    }
+
+    /**
+     * Sets the PNG filter strategy. Only used by the parallel PNG encoder (the standard codec always chooses its own
+     * filters).
+     * @param pPngFilter
+     */
+    public void setPngFilter(PngFilter pPngFilter) {
+        pngFilter = pPngFilter;
+    }
+
+    /**
+     * Sets whether the image is written in progressive mode.
+     * @param pProgressive
+     */
+    public void setProgressive(boolean pProgressive) {
+        progressive = pProgressive;
+    }
+
+    /**
+     * Sets the JPEG quality, between 0.0f and 1.0f, or -1 for the codec default.
+     * @param pQuality
+     */
+    public void setQuality(float pQuality) {
+        quality = pQuality;
+    }
+
+    /**
+     * Sets whether optional metadata is stripped.
+     * @param pStripMetadata
+     */
+    public void setStripMetadata(boolean pStripMetadata) {
+        stripMetadata = pStripMetadata;
+    }
+}
@@ -0,0 +1,27 @@
+package com.mar.imagetools.objects;
+
+/**
+ * A spatially varying kernel, described by a scalar parameter per pixel (for instance a blur radius or an angle) and
+ * the kernel associated with a parameter value. Pixels whose parameters are equal once quantised share the same
+ * kernel, which allows it to be decomposed once and cached (see
+ * {@link com.mar.imagetools.utils.ImageFilterOps#applyVaryingKernelFilter(ImageProc, KernelField, double, double)}).
+ * @author mrenauld
+ */
+public interface KernelField {
+
+    /**
+     * Returns the kernel for the specified parameter value. Kernels may have different sizes; the kernel center is
+     * (height / 2, width / 2).
+     * @param pParameter
+     * @return
+     */
+    double[][] getKernel(double pParameter);
+
+    /**
+     * Returns the kernel parameter at the specified pixel.
+     * @param pX
+     * @param pY
+     * @return
+     */
+    double getParameter(int pX, int pY);
+}
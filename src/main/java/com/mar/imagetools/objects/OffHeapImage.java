@@ -0,0 +1,215 @@
+package com.mar.imagetools.objects;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A packed ARGB image, like {@link Image}, stored outside of the Java heap in a direct buffer (row by row) acquired
+ * from a {@link DirectBufferPool}. Large working sets of images then do not weigh on the garbage collector.<br/>
+ * The buffer is returned to the pool by {@link #close()} (the image can be used in a try-with-resources statement); the
+ * image cannot be used afterwards. Pixels can be accessed concurrently, rows are copied with bulk transfers.<br/>
+ * The row-based operations ({@link ScanlineStage}, for instance those of {@link com.mar.imagetools.utils.ScanlineOps})
+ * are applied in place by {@link #apply(ScanlineStage...)}, without a heap copy of the image.
+ * @author mrenauld
+ */
+public class OffHeapImage implements AutoCloseable {
+
+    private final int width;
+
+    private final int height;
+
+    private final DirectBufferPool pool;
+
+    private ByteBuffer buffer;
+
+    private volatile IntBuffer pixels;
+
+    /**
+     * Constructs an off-heap copy of the specified image, with a buffer from the default pool.
+     * @param pImage
+     */
+    public OffHeapImage(Image pImage) {
+        this(pImage, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * Constructs an off-heap copy of the specified image, with a buffer from the specified pool.
+     * @param pImage
+     * @param pPool
+     */
+    public OffHeapImage(Image pImage, DirectBufferPool pPool) {
+        this(pImage.getWidth(), pImage.getHeight(), pPool);
+        int[] row = new int[width];
+        for (int i = 0; i < height; ++i) {
+            pImage.getRow(i, row);
+            setRow(i, row);
+        }
+    }
+
+    /**
+     * Constructs an image with the specified size, with a buffer from the default pool. The content is undefined (see
+     * {@link #fill(int)}).
+     * @param pWidth
+     * @param pHeight
+     */
+    public OffHeapImage(int pWidth, int pHeight) {
+        this(pWidth, pHeight, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * Constructs an image with the specified size, with a buffer from the specified pool. The content is undefined (see
+     * {@link #fill(int)}).
+     * @param pWidth
+     * @param pHeight
+     * @param pPool
+     */
+    public OffHeapImage(int pWidth, int pHeight, DirectBufferPool pPool) {
+        long bytes = 4L * pWidth * pHeight;
+        if (pWidth < 0 || pHeight < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid image size: " + pWidth + "x" + pHeight);
+        }
+        width = pWidth;
+        height = pHeight;
+        pool = pPool;
+        buffer = pool.acquire((int) bytes);
+        pixels = buffer.asIntBuffer();
+    }
+
+    /**
+     * Applies the specified stages to each row, in place (rows in parallel, each copied once to the heap and back).
+     * @param pStages
+     */
+    public void apply(ScanlineStage... pStages) {
+        IntBuffer data = getPixels();
+        IntStream.range(0, height).parallel().forEach(i -> {
+            IntBuffer buffer = data.duplicate();
+            int[] row = new int[width];
+            buffer.position(i * width);
+            buffer.get(row);
+            for (ScanlineStage stage : pStages) {
+                stage.apply(row, width);
+            }
+            buffer.position(i * width);
+            buffer.put(row);
+        });
+    }
+
+    /**
+     * Returns the buffer to the pool. Does nothing if the image is already closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        pool.release(buffer);
+        buffer = null;
+        pixels = null;
+    }
+
+    /**
+     * Sets all the pixels to the specified color (packed ARGB).
+     * @param pColor
+     */
+    public void fill(int pColor) {
+        IntBuffer data = getPixels().duplicate();
+        int[] row = new int[width];
+        Arrays.fill(row, pColor);
+        data.position(0);
+        for (int i = 0; i < height; ++i) {
+            data.put(row);
+        }
+    }
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the specified pixel (packed ARGB).
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public int getPixel(int pX, int pY) {
+        return getPixels().get(pY * width + pX);
+    }
+
+    /**
+     * Copies the specified row (packed ARGB values) into pRow, which must have at least getWidth() elements.
+     * @param pY
+     * @param pRow
+     */
+    public void getRow(int pY, int[] pRow) {
+        IntBuffer data = getPixels().duplicate();
+        data.position(pY * width);
+        data.get(pRow, 0, width);
+    }
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns true if the image has been closed.
+     * @return
+     */
+    public synchronized boolean isClosed() {
+        return buffer == null;
+    }
+
+    /**
+     * Sets the specified pixel (packed ARGB).
+     * @param pX
+     * @param pY
+     * @param pColor
+     */
+    public void setPixel(int pX, int pY, int pColor) {
+        getPixels().put(pY * width + pX, pColor);
+    }
+
+    /**
+     * Sets the specified row from pRow (packed ARGB values), which must have at least getWidth() elements.
+     * @param pY
+     * @param pRow
+     */
+    public void setRow(int pY, int[] pRow) {
+        IntBuffer data = getPixels().duplicate();
+        data.position(pY * width);
+        data.put(pRow, 0, width);
+    }
+
+    /**
+     * Returns a heap copy of this image.
+     * @return
+     */
+    public Image toImage() {
+        int[][] data = new int[height][width];
+        for (int i = 0; i < height; ++i) {
+            getRow(i, data[i]);
+        }
+        return new Image(data);
+    }
+
+    /**
+     * Returns the pixel buffer, or throws an exception if the image is closed.
+     * @return
+     */
+    private IntBuffer getPixels() {
+        IntBuffer data = pixels;
+        if (data == null) {
+            throw new IllegalStateException("Image closed");
+        }
+        return data;
+    }
+}
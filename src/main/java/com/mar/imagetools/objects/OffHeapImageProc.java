@@ -0,0 +1,311 @@
+package com.mar.imagetools.objects;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * An RGB image with double values, like {@link ImageProc}, stored outside of the Java heap: each color channel is a
+ * direct buffer (row by row) acquired from a {@link DirectBufferPool}. Large working sets of images then do not weigh
+ * on the garbage collector.<br/>
+ * The buffers are returned to the pool by {@link #close()} (the image can be used in a try-with-resources statement);
+ * the image cannot be used afterwards. Pixels can be accessed concurrently, rows are copied with bulk transfers. The
+ * point operations of {@link ImageProc} work in place, row by row; the Gaussian, unsharp masking and bilateral filters
+ * of {@link com.mar.imagetools.utils.ImageFilterOps} work by rows or strips of rows, into a new off-heap image. Other
+ * operations need a heap copy ({@link #toImageProc()}).
+ * @author mrenauld
+ */
+public class OffHeapImageProc implements AutoCloseable {
+
+    private final int width;
+
+    private final int height;
+
+    private final DirectBufferPool pool;
+
+    private ByteBuffer[] buffers;
+
+    private volatile DoubleBuffer[] channels;
+
+    /**
+     * Constructs an off-heap copy of the specified image, with buffers from the default pool.
+     * @param pImage
+     */
+    public OffHeapImageProc(ImageProc pImage) {
+        this(pImage, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * Constructs an off-heap copy of the specified image, with buffers from the specified pool.
+     * @param pImage
+     * @param pPool
+     */
+    public OffHeapImageProc(ImageProc pImage, DirectBufferPool pPool) {
+        this(pImage.getWidth(), pImage.getHeight(), pPool);
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            setChannel(c, pImage.getChannel(c));
+        }
+    }
+
+    /**
+     * Constructs an image with the specified size, with buffers from the default pool. The content is undefined (see
+     * {@link #fill(double)}).
+     * @param pWidth
+     * @param pHeight
+     */
+    public OffHeapImageProc(int pWidth, int pHeight) {
+        this(pWidth, pHeight, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * Constructs an image with the specified size, with buffers from the specified pool. The content is undefined (see
+     * {@link #fill(double)}).
+     * @param pWidth
+     * @param pHeight
+     * @param pPool
+     */
+    public OffHeapImageProc(int pWidth, int pHeight, DirectBufferPool pPool) {
+        long bytes = 8L * pWidth * pHeight;
+        if (pWidth < 0 || pHeight < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid image size: " + pWidth + "x" + pHeight);
+        }
+        width = pWidth;
+        height = pHeight;
+        pool = pPool;
+        buffers = new ByteBuffer[Image.NB_COLOR_CHANNEL];
+        channels = new DoubleBuffer[Image.NB_COLOR_CHANNEL];
+        try {
+            for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+                buffers[c] = pool.acquire((int) bytes);
+                channels[c] = buffers[c].asDoubleBuffer();
+            }
+        }
+        catch (RuntimeException | Error e) {
+            /* Returns the buffers already acquired. */
+            for (ByteBuffer buffer : buffers) {
+                if (buffer != null) {
+                    pool.release(buffer);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the specified offset to all the values of all channels, in place (rows in parallel).
+     * @param pOffset
+     */
+    public void add(double pOffset) {
+        transform(v -> v + pOffset);
+    }
+
+    /**
+     * Returns the buffers to the pool. Does nothing if the image is already closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (buffers == null) {
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers = null;
+        channels = null;
+    }
+
+    /**
+     * Sets all the values of all channels to pValue.
+     * @param pValue
+     */
+    public void fill(double pValue) {
+        DoubleBuffer[] data = getChannels();
+        double[] row = new double[width];
+        Arrays.fill(row, pValue);
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            for (int i = 0; i < height; ++i) {
+                DoubleBuffer buffer = data[c].duplicate();
+                buffer.position(i * width);
+                buffer.put(row);
+            }
+        }
+    }
+
+    /**
+     * Returns a heap copy of the specified channel.
+     * @param pChannelId
+     * @return
+     */
+    public double[][] getChannel(int pChannelId) {
+        double[][] channel = new double[height][width];
+        for (int i = 0; i < height; ++i) {
+            getRow(pChannelId, i, channel[i]);
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pool of the buffers of this image.
+     * @return
+     */
+    public DirectBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Copies the specified row of the specified channel into pRow, which must have at least getWidth() elements.
+     * @param pChannelId
+     * @param pY
+     * @param pRow
+     */
+    public void getRow(int pChannelId, int pY, double[] pRow) {
+        DoubleBuffer buffer = getChannels()[pChannelId].duplicate();
+        buffer.position(pY * width);
+        buffer.get(pRow, 0, width);
+    }
+
+    /**
+     * Returns the value of the specified channel at the specified pixel.
+     * @param pChannelId
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public double getValue(int pChannelId, int pX, int pY) {
+        return getChannels()[pChannelId].get(pY * width + pX);
+    }
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Inverts the values: for each channel, for each pixel the new value is 1.0 minus the old one (see
+     * {@link ImageProc#invert()}), in place (rows in parallel).
+     */
+    public void invert() {
+        transform(v -> 1.0 - v);
+    }
+
+    /**
+     * Returns true if the image has been closed.
+     * @return
+     */
+    public synchronized boolean isClosed() {
+        return buffers == null;
+    }
+
+    /**
+     * Sets the specified channel from a heap array (height x width).
+     * @param pChannelId
+     * @param pChannelData
+     */
+    public void setChannel(int pChannelId, double[][] pChannelData) {
+        for (int i = 0; i < height; ++i) {
+            setRow(pChannelId, i, pChannelData[i]);
+        }
+    }
+
+    /**
+     * Sets the specified row of the specified channel from pRow, which must have at least getWidth() elements.
+     * @param pChannelId
+     * @param pY
+     * @param pRow
+     */
+    public void setRow(int pChannelId, int pY, double[] pRow) {
+        DoubleBuffer buffer = getChannels()[pChannelId].duplicate();
+        buffer.position(pY * width);
+        buffer.put(pRow, 0, width);
+    }
+
+    /**
+     * Sets the value of the specified channel at the specified pixel.
+     * @param pChannelId
+     * @param pX
+     * @param pY
+     * @param pValue
+     */
+    public void setValue(int pChannelId, int pX, int pY, double pValue) {
+        getChannels()[pChannelId].put(pY * width + pX, pValue);
+    }
+
+    /**
+     * Keeps only the values whose absolute value is above or below the specified threshold, the other values are set
+     * to 0.0 (see {@link ImageProc#threshold(double, boolean)}), in place (rows in parallel).
+     * @param pThreshold
+     * @param pKeepUpper
+     */
+    public void threshold(double pThreshold, boolean pKeepUpper) {
+        transform(v -> {
+            double a = Math.abs(v);
+            return (pKeepUpper && a < pThreshold) || (!pKeepUpper && a > pThreshold) ? 0.0 : v;
+        });
+    }
+
+    /**
+     * Multiplies all the values of all channels by pCoef, in place (rows in parallel).
+     * @param pCoef
+     */
+    public void times(double pCoef) {
+        transform(v -> v * pCoef);
+    }
+
+    /**
+     * Returns a heap copy of this image.
+     * @return
+     */
+    public ImageProc toImageProc() {
+        ImageProc image = new ImageProc(width, height);
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            image.setChannel(c, getChannel(c));
+        }
+        return image;
+    }
+
+    /**
+     * Returns the channel buffers, or throws an exception if the image is closed.
+     * @return
+     */
+    private DoubleBuffer[] getChannels() {
+        DoubleBuffer[] data = channels;
+        if (data == null) {
+            throw new IllegalStateException("Image closed");
+        }
+        return data;
+    }
+
+    /**
+     * Applies the specified operator to all the values of all channels, in place (rows in parallel, each copied once to
+     * the heap and back).
+     * @param pOperator
+     */
+    private void transform(DoubleUnaryOperator pOperator) {
+        DoubleBuffer[] data = getChannels();
+        IntStream.range(0, Image.NB_COLOR_CHANNEL * height).parallel().forEach(k -> {
+            DoubleBuffer buffer = data[k / height].duplicate();
+            double[] row = new double[width];
+            int start = (k % height) * width;
+            buffer.position(start);
+            buffer.get(row);
+            for (int j = 0; j < width; ++j) {
+                row[j] = pOperator.applyAsDouble(row[j]);
+            }
+            buffer.position(start);
+            buffer.put(row);
+        });
+    }
+}
@@ -0,0 +1,166 @@
+package com.mar.imagetools.objects;
+
+import java.awt.image.IndexColorModel;
+import java.util.stream.IntStream;
+
+/**
+ * A color palette of at most 256 colors (see {@link com.mar.imagetools.utils.PaletteOps}), with an inverse color map:
+ * a 32x32x32 lookup table giving the nearest palette color of each cell of the RGB cube, so that the palette index of a
+ * color is found in constant time.<br/>
+ * A palette may have a transparent entry, used for the pixels whose alpha is below 128; the other entries are opaque.
+ * @author mrenauld
+ */
+public class Palette {
+
+    /** Maximum number of colors. */
+    public static final int MAX_SIZE = 256;
+
+    /** Number of bits per channel of the inverse color map. */
+    private static final int LUT_BITS = 5;
+
+    private final int[] colors;
+
+    private final int transparentIndex;
+
+    /** Inverse color map, indexed by (r << 10) | (g << 5) | b (5 most significant bits of each channel). */
+    private final byte[] inverseMap;
+
+    /**
+     * Constructs a palette of the specified colors (packed ARGB). The first color whose alpha is 0, if any, is the
+     * transparent entry; the alpha of the other colors is ignored.
+     * @param pColors
+     */
+    public Palette(int[] pColors) {
+        if (pColors.length == 0 || pColors.length > MAX_SIZE) {
+            throw new IllegalArgumentException("A palette must have between 1 and " + MAX_SIZE + " colors");
+        }
+        colors = new int[pColors.length];
+        int transparent = -1;
+        for (int k = 0; k < pColors.length; ++k) {
+            if (transparent < 0 && (pColors[k] >>> 24) == 0) {
+                transparent = k;
+                colors[k] = pColors[k] & 0xffffff;
+            }
+            else {
+                colors[k] = pColors[k] | 0xff000000;
+            }
+        }
+        if (transparent >= 0 && pColors.length == 1) {
+            throw new IllegalArgumentException("A palette must have at least one opaque color");
+        }
+        transparentIndex = transparent;
+        inverseMap = buildInverseMap();
+    }
+
+    /**
+     * Returns the specified color (packed ARGB).
+     * @param pIndex
+     * @return
+     */
+    public int getColor(int pIndex) {
+        return colors[pIndex];
+    }
+
+    /**
+     * Returns a copy of the colors (packed ARGB).
+     * @return
+     */
+    public int[] getColors() {
+        return colors.clone();
+    }
+
+    /**
+     * Returns the palette index of the specified color (packed ARGB): the transparent entry if the alpha is below 128
+     * and the palette has one, else the nearest opaque color.
+     * @param pArgb
+     * @return
+     */
+    public int getIndex(int pArgb) {
+        if (transparentIndex >= 0 && (pArgb >>> 24) < 128) {
+            return transparentIndex;
+        }
+        return getNearestIndex((pArgb >> 16) & 0xff, (pArgb >> 8) & 0xff, pArgb & 0xff);
+    }
+
+    /**
+     * Returns the index of the opaque color nearest to the specified color (channel values between 0 and 255), from
+     * the inverse color map.
+     * @param pRed
+     * @param pGreen
+     * @param pBlue
+     * @return
+     */
+    public int getNearestIndex(int pRed, int pGreen, int pBlue) {
+        int shift = 8 - LUT_BITS;
+        return inverseMap[((pRed >> shift) << (2 * LUT_BITS)) | ((pGreen >> shift) << LUT_BITS) | (pBlue >> shift)]
+            & 0xff;
+    }
+
+    /**
+     * Returns the number of colors.
+     * @return
+     */
+    public int getSize() {
+        return colors.length;
+    }
+
+    /**
+     * Returns the index of the transparent entry, or -1 if there is none.
+     * @return
+     */
+    public int getTransparentIndex() {
+        return transparentIndex;
+    }
+
+    /**
+     * Returns the 8-bit color model of this palette.
+     * @return
+     */
+    public IndexColorModel toIndexColorModel() {
+        int n = colors.length;
+        byte[] r = new byte[n];
+        byte[] g = new byte[n];
+        byte[] b = new byte[n];
+        for (int k = 0; k < n; ++k) {
+            r[k] = (byte) (colors[k] >> 16);
+            g[k] = (byte) (colors[k] >> 8);
+            b[k] = (byte) colors[k];
+        }
+        return new IndexColorModel(8, n, r, g, b, transparentIndex);
+    }
+
+    /**
+     * Builds the inverse color map: the nearest opaque color of the center of each cell (cells in parallel).
+     * @return
+     */
+    private byte[] buildInverseMap() {
+        int cells = 1 << LUT_BITS;
+        int shift = 8 - LUT_BITS;
+        int half = 1 << (shift - 1);
+        byte[] map = new byte[cells * cells * cells];
+        IntStream.range(0, cells * cells).parallel().forEach(rg -> {
+            int r = ((rg >> LUT_BITS) << shift) + half;
+            int g = ((rg & (cells - 1)) << shift) + half;
+            for (int bc = 0; bc < cells; ++bc) {
+                int b = (bc << shift) + half;
+                int best = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int k = 0; k < colors.length; ++k) {
+                    if (k == transparentIndex) {
+                        continue;
+                    }
+                    int dr = ((colors[k] >> 16) & 0xff) - r;
+                    int dg = ((colors[k] >> 8) & 0xff) - g;
+                    int db = (colors[k] & 0xff) - b;
+                    int distance = dr * dr + dg * dg + db * db;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = k;
+                    }
+                }
+                map[(rg << LUT_BITS) | bc] = (byte) best;
+            }
+        });
+        return map;
+    }
+}
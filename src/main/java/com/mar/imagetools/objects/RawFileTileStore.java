@@ -0,0 +1,164 @@
+package com.mar.imagetools.objects;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link TileStore} backed by a raw file of packed ARGB integers (big endian, 4 bytes per pixel), stored row by row
+ * for the whole image. Tiles are read and written with positional channel I/O, so files larger than the heap (and
+ * larger than 2 GB) are supported, and several tiles can be accessed concurrently.
+ * @author mrenauld
+ */
+public class RawFileTileStore implements TileStore {
+
+    private final FileChannel channel;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    private final boolean readOnly;
+
+    /**
+     * Opens (or creates, if pCreate is true) the raw file at the specified path, for reading and writing.
+     * @param pPath
+     * @param pWidth
+     * @param pHeight
+     * @param pTileWidth
+     * @param pTileHeight
+     * @param pCreate
+     * @throws IOException
+     */
+    public RawFileTileStore(Path pPath, int pWidth, int pHeight, int pTileWidth, int pTileHeight, boolean pCreate)
+        throws IOException {
+        this(pPath, pWidth, pHeight, pTileWidth, pTileHeight, pCreate, false);
+    }
+
+    /**
+     * Opens (or creates, if pCreate is true) the raw file at the specified path. If pReadOnly is true, the file is
+     * opened for reading only (it can then be on a read-only file system), and tiles cannot be written back (see
+     * {@link #isWritable()}). An existing file must hold at least pWidth x pHeight pixels.
+     * @param pPath
+     * @param pWidth
+     * @param pHeight
+     * @param pTileWidth
+     * @param pTileHeight
+     * @param pCreate
+     * @param pReadOnly
+     * @throws IOException
+     */
+    public RawFileTileStore(Path pPath, int pWidth, int pHeight, int pTileWidth, int pTileHeight, boolean pCreate,
+        boolean pReadOnly) throws IOException {
+        if (pCreate && pReadOnly) {
+            throw new IllegalArgumentException("A created file cannot be read-only");
+        }
+        long size = 4L * pWidth * pHeight;
+        if (pCreate) {
+            channel = FileChannel.open(pPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        else {
+            if (pReadOnly) {
+                channel = FileChannel.open(pPath, StandardOpenOption.READ);
+            }
+            else {
+                channel = FileChannel.open(pPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            if (channel.size() < size) {
+                long actual = channel.size();
+                channel.close();
+                throw new IOException("File too short for a " + pWidth + "x" + pHeight + " image: " + actual
+                    + " bytes instead of " + size + " [" + pPath + "]");
+            }
+        }
+        width = pWidth;
+        height = pHeight;
+        tileWidth = pTileWidth;
+        tileHeight = pTileHeight;
+        readOnly = pReadOnly;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return !readOnly;
+    }
+
+    @Override
+    public void readTile(int pTileX, int pTileY, int[] pData) throws IOException {
+        int x0 = pTileX * tileWidth;
+        int y0 = pTileY * tileHeight;
+        int w = Math.min(tileWidth, width - x0);
+        int h = Math.min(tileHeight, height - y0);
+        ByteBuffer buffer = ByteBuffer.allocate(4 * w);
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int r = 0; r < h; ++r) {
+            buffer.clear();
+            long position = 4L * ((long) (y0 + r) * width + x0);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at row " + (y0 + r));
+                }
+            }
+            ints.clear();
+            ints.get(pData, r * tileWidth, w);
+        }
+    }
+
+    @Override
+    public void writeTile(int pTileX, int pTileY, int[] pData) throws IOException {
+        if (readOnly) {
+            throw new IOException("RawFileTileStore opened read-only");
+        }
+        int x0 = pTileX * tileWidth;
+        int y0 = pTileY * tileHeight;
+        int w = Math.min(tileWidth, width - x0);
+        int h = Math.min(tileHeight, height - y0);
+        ByteBuffer buffer = ByteBuffer.allocate(4 * w);
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int r = 0; r < h; ++r) {
+            ints.clear();
+            ints.put(pData, r * tileWidth, w);
+            buffer.clear();
+            long position = 4L * ((long) (y0 + r) * width + x0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+    }
+}
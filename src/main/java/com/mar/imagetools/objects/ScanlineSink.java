@@ -0,0 +1,28 @@
+package com.mar.imagetools.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination of image rows (scanlines), written from top to bottom. Pixels are packed ARGB integers (same format as
+ * {@link Image}). Closing the sink completes the output; a failed job aborts it instead (see {@link #abort()}).
+ * @author mrenauld
+ */
+public interface ScanlineSink extends Closeable {
+
+    /**
+     * Releases the sink after a failure, without completing the output. By default, closes the sink; sinks whose
+     * {@link #close()} finalizes the output (for instance a file format trailer) should override it.
+     * @throws IOException
+     */
+    default void abort() throws IOException {
+        close();
+    }
+
+    /**
+     * Writes the next row (of size at least the image width).
+     * @param pRow
+     * @throws IOException
+     */
+    void writeRow(int[] pRow) throws IOException;
+}
@@ -0,0 +1,32 @@
+package com.mar.imagetools.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of image rows (scanlines), read from top to bottom. Pixels are packed ARGB integers (same format as
+ * {@link Image}).
+ * @author mrenauld
+ */
+public interface ScanlineSource extends Closeable {
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    int getHeight();
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    int getWidth();
+
+    /**
+     * Reads the next row into pRow (of size at least getWidth()). Returns false if all rows have been read.
+     * @param pRow
+     * @return
+     * @throws IOException
+     */
+    boolean readRow(int[] pRow) throws IOException;
+}
@@ -0,0 +1,16 @@
+package com.mar.imagetools.objects;
+
+/**
+ * A per-row point operation of a scanline pipeline. The row (packed ARGB integers, same format as {@link Image}) is
+ * modified in place.
+ * @author mrenauld
+ */
+public interface ScanlineStage {
+
+    /**
+     * Applies the operation on the specified row.
+     * @param pRow
+     * @param pWidth
+     */
+    void apply(int[] pRow, int pWidth);
+}
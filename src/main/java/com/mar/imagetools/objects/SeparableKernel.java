@@ -0,0 +1,222 @@
+package com.mar.imagetools.objects;
+
+import java.util.Arrays;
+
+/**
+ * A 2D kernel written as a sum of separable (rank 1) terms: kernel[y][x] = sum over t of vertical_t[y] *
+ * horizontal_t[x]. Filtering with a term costs one horizontal and one vertical 1D pass, so a kernel of size K x K
+ * with r terms costs 2.r.K operations per pixel instead of K^2.<br/>
+ * The terms are obtained from the singular value decomposition of the kernel (one-sided Jacobi): a separable kernel
+ * gives a single exact term, other kernels are truncated to the fewest terms whose discarded singular values stay
+ * within the requested tolerance.
+ * @author mrenauld
+ */
+public class SeparableKernel {
+
+    /** Maximum number of Jacobi sweeps of the SVD. */
+    private static final int MAX_SWEEPS = 60;
+
+    private final double[][] verticals;
+
+    private final double[][] horizontals;
+
+    private final double error;
+
+    /**
+     * Constructs a separable kernel from its terms.
+     * @param pVerticals vertical vectors (one per term, kernel height elements)
+     * @param pHorizontals horizontal vectors (one per term, kernel width elements)
+     * @param pError Frobenius norm of the difference with the decomposed kernel
+     */
+    public SeparableKernel(double[][] pVerticals, double[][] pHorizontals, double pError) {
+        verticals = pVerticals;
+        horizontals = pHorizontals;
+        error = pError;
+    }
+
+    /**
+     * Decomposes the specified kernel (rectangular, non empty) into separable terms. Terms are kept, by decreasing
+     * singular value, until the Frobenius norm of the discarded part is at most pTolerance times the norm of the
+     * kernel (use 0.0 to keep all non-zero terms).
+     * @param pKernel
+     * @param pTolerance
+     * @return
+     */
+    public static SeparableKernel decompose(double[][] pKernel, double pTolerance) {
+        int h = pKernel.length;
+        int w = pKernel[0].length;
+        boolean transposed = h < w;
+        int m = transposed ? w : h;
+        int n = transposed ? h : w;
+
+        /* One-sided Jacobi: the columns of u are rotated until orthogonal, v accumulates the rotations. */
+        double[][] u = new double[m][n];
+        for (int i = 0; i < h; ++i) {
+            for (int j = 0; j < w; ++j) {
+                if (transposed) {
+                    u[j][i] = pKernel[i][j];
+                }
+                else {
+                    u[i][j] = pKernel[i][j];
+                }
+            }
+        }
+        double[][] v = new double[n][n];
+        for (int j = 0; j < n; ++j) {
+            v[j][j] = 1.0;
+        }
+        for (int sweep = 0; sweep < MAX_SWEEPS; ++sweep) {
+            boolean rotated = false;
+            for (int p = 0; p < n - 1; ++p) {
+                for (int q = p + 1; q < n; ++q) {
+                    double alpha = 0.0;
+                    double beta = 0.0;
+                    double gamma = 0.0;
+                    for (int i = 0; i < m; ++i) {
+                        alpha += u[i][p] * u[i][p];
+                        beta += u[i][q] * u[i][q];
+                        gamma += u[i][p] * u[i][q];
+                    }
+                    if (Math.abs(gamma) <= 1e-15 * Math.sqrt(alpha * beta) || gamma == 0.0) {
+                        continue;
+                    }
+                    rotated = true;
+                    double zeta = (beta - alpha) / (2.0 * gamma);
+                    double t = Math.signum(zeta == 0.0 ? 1.0 : zeta) / (Math.abs(zeta) + Math.sqrt(1.0 + zeta * zeta));
+                    double c = 1.0 / Math.sqrt(1.0 + t * t);
+                    double s = c * t;
+                    rotate(u, p, q, c, s);
+                    rotate(v, p, q, c, s);
+                }
+            }
+            if (!rotated) {
+                break;
+            }
+        }
+
+        /* Singular values, by decreasing order. */
+        double[] sigmas = new double[n];
+        Integer[] order = new Integer[n];
+        double total = 0.0;
+        for (int j = 0; j < n; ++j) {
+            double norm = 0.0;
+            for (int i = 0; i < m; ++i) {
+                norm += u[i][j] * u[i][j];
+            }
+            sigmas[j] = Math.sqrt(norm);
+            order[j] = j;
+            total += norm;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(sigmas[b], sigmas[a]));
+
+        /* Number of terms: the discarded energy must stay within the tolerance. */
+        double maxDiscarded = pTolerance * pTolerance * total;
+        int rank = n;
+        double discarded = 0.0;
+        while (rank > 1 && discarded + sigmas[order[rank - 1]] * sigmas[order[rank - 1]] <= maxDiscarded) {
+            discarded += sigmas[order[rank - 1]] * sigmas[order[rank - 1]];
+            rank--;
+        }
+
+        double[][] verticals = new double[rank][h];
+        double[][] horizontals = new double[rank][w];
+        for (int t = 0; t < rank; ++t) {
+            int j = order[t];
+            /* Term: sigma * uNormalized * v^T = u[:, j] * v[:, j]^T. */
+            double[] left = new double[m];
+            double[] right = new double[n];
+            for (int i = 0; i < m; ++i) {
+                left[i] = u[i][j];
+            }
+            for (int i = 0; i < n; ++i) {
+                right[i] = v[i][j];
+            }
+            verticals[t] = transposed ? right : left;
+            horizontals[t] = transposed ? left : right;
+        }
+        return new SeparableKernel(verticals, horizontals, Math.sqrt(discarded));
+    }
+
+    /**
+     * Returns the Frobenius norm of the difference between this kernel and the decomposed kernel.
+     * @return
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Returns the kernel height.
+     * @return
+     */
+    public int getHeight() {
+        return verticals[0].length;
+    }
+
+    /**
+     * Returns the horizontal vector of the specified term (internal storage, not to be modified).
+     * @param pTerm
+     * @return
+     */
+    public double[] getHorizontal(int pTerm) {
+        return horizontals[pTerm];
+    }
+
+    /**
+     * Returns the number of separable terms.
+     * @return
+     */
+    public int getRank() {
+        return verticals.length;
+    }
+
+    /**
+     * Returns the vertical vector of the specified term (internal storage, not to be modified).
+     * @param pTerm
+     * @return
+     */
+    public double[] getVertical(int pTerm) {
+        return verticals[pTerm];
+    }
+
+    /**
+     * Returns the kernel width.
+     * @return
+     */
+    public int getWidth() {
+        return horizontals[0].length;
+    }
+
+    /**
+     * Returns the full 2D kernel represented by the terms.
+     * @return
+     */
+    public double[][] toKernel() {
+        double[][] kernel = new double[getHeight()][getWidth()];
+        for (int t = 0; t < getRank(); ++t) {
+            for (int y = 0; y < getHeight(); ++y) {
+                for (int x = 0; x < getWidth(); ++x) {
+                    kernel[y][x] += verticals[t][y] * horizontals[t][x];
+                }
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Applies a Jacobi rotation to columns pP and pQ of pMatrix.
+     * @param pMatrix
+     * @param pP
+     * @param pQ
+     * @param pC
+     * @param pS
+     */
+    private static void rotate(double[][] pMatrix, int pP, int pQ, double pC, double pS) {
+        for (double[] row : pMatrix) {
+            double a = row[pP];
+            double b = row[pQ];
+            row[pP] = pC * a - pS * b;
+            row[pQ] = pS * a + pC * b;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.mar.imagetools.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Backing store of a {@link TiledImage}. The image is split into tiles of getTileWidth() x getTileHeight() pixels
+ * (tiles on the right and bottom borders may be smaller). Tiles are exchanged as packed ARGB integer arrays (same
+ * format as {@link Image}), row by row, with a row length equal to getTileWidth().
+ * @author mrenauld
+ */
+public interface TileStore extends Closeable {
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    int getHeight();
+
+    /**
+     * Returns the tile height.
+     * @return
+     */
+    int getTileHeight();
+
+    /**
+     * Returns the tile width.
+     * @return
+     */
+    int getTileWidth();
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    int getWidth();
+
+    /**
+     * Returns true if tiles can be written back to this store.
+     * @return
+     */
+    boolean isWritable();
+
+    /**
+     * Reads the specified tile into pData (of size getTileWidth() * getTileHeight()).
+     * @param pTileX
+     * @param pTileY
+     * @param pData
+     * @throws IOException
+     */
+    void readTile(int pTileX, int pTileY, int[] pData) throws IOException;
+
+    /**
+     * Writes the specified tile from pData (of size getTileWidth() * getTileHeight()).
+     * @param pTileX
+     * @param pTileY
+     * @param pData
+     * @throws IOException
+     */
+    void writeTile(int pTileX, int pTileY, int[] pData) throws IOException;
+}
@@ -0,0 +1,325 @@
+package com.mar.imagetools.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An image split into tiles loaded on demand from a {@link TileStore}. At most getMaxCachedTiles() tiles are kept in
+ * memory: when the cache is full, the least recently used tile is evicted, and written back to the store first if it
+ * was modified. The image can therefore be much larger than the heap.<br/>
+ * Pixels are packed ARGB integers (same format as {@link Image}). Regions are read and written as {@link Image}
+ * objects, which lets the usual operations run tile by tile (see
+ * {@link com.mar.imagetools.utils.TiledImageOps}). All methods are thread-safe. I/O errors of the store are reported
+ * as {@link UncheckedIOException}. Writes to an image whose store is read-only (see {@link TileStore#isWritable()})
+ * are rejected with an {@link UnsupportedOperationException}.
+ * @author mrenauld
+ */
+public class TiledImage implements Closeable {
+
+    /** A cached tile. */
+    private static class Tile {
+
+        private final int[] data;
+
+        private boolean dirty;
+
+        private Tile(int pSize) {
+            data = new int[pSize];
+        }
+    }
+
+    private final TileStore store;
+
+    private final int maxCachedTiles;
+
+    private final int nbTilesX;
+
+    private final int nbTilesY;
+
+    /** Cached tiles by index (tileY * nbTilesX + tileX), in access order. */
+    private final LinkedHashMap<Integer, Tile> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long nbLoads = 0;
+
+    private long nbWriteBacks = 0;
+
+    /**
+     * Constructs a tiled image on the specified store, keeping at most pMaxCachedTiles tiles in memory.
+     * @param pStore
+     * @param pMaxCachedTiles
+     */
+    public TiledImage(TileStore pStore, int pMaxCachedTiles) {
+        store = pStore;
+        maxCachedTiles = Math.max(1, pMaxCachedTiles);
+        nbTilesX = (pStore.getWidth() + pStore.getTileWidth() - 1) / pStore.getTileWidth();
+        nbTilesY = (pStore.getHeight() + pStore.getTileHeight() - 1) / pStore.getTileHeight();
+    }
+
+    /**
+     * Writes back all modified tiles, then closes the store.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (store.isWritable()) {
+            flush();
+        }
+        cache.clear();
+        store.close();
+    }
+
+    /**
+     * Writes back all modified tiles to the store (tiles stay in the cache).
+     */
+    public synchronized void flush() {
+        for (Map.Entry<Integer, Tile> entry : cache.entrySet()) {
+            writeBack(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the image height.
+     * @return
+     */
+    public int getHeight() {
+        return store.getHeight();
+    }
+
+    /**
+     * Returns the maximum number of tiles kept in memory.
+     * @return
+     */
+    public int getMaxCachedTiles() {
+        return maxCachedTiles;
+    }
+
+    /**
+     * Returns the number of tiles loaded from the store since this image was created.
+     * @return
+     */
+    public synchronized long getNbLoads() {
+        return nbLoads;
+    }
+
+    /**
+     * Returns the number of tiles in the horizontal direction.
+     * @return
+     */
+    public int getNbTilesX() {
+        return nbTilesX;
+    }
+
+    /**
+     * Returns the number of tiles in the vertical direction.
+     * @return
+     */
+    public int getNbTilesY() {
+        return nbTilesY;
+    }
+
+    /**
+     * Returns the number of tiles written back to the store since this image was created.
+     * @return
+     */
+    public synchronized long getNbWriteBacks() {
+        return nbWriteBacks;
+    }
+
+    /**
+     * Returns the specified pixel (packed ARGB).
+     * @param pX
+     * @param pY
+     * @return
+     */
+    public synchronized int getPixel(int pX, int pY) {
+        int tw = store.getTileWidth();
+        int th = store.getTileHeight();
+        Tile tile = getTile(pX / tw, pY / th);
+        return tile.data[(pY % th) * tw + pX % tw];
+    }
+
+    /**
+     * Returns the tile height.
+     * @return
+     */
+    public int getTileHeight() {
+        return store.getTileHeight();
+    }
+
+    /**
+     * Returns the tile width.
+     * @return
+     */
+    public int getTileWidth() {
+        return store.getTileWidth();
+    }
+
+    /**
+     * Returns the image width.
+     * @return
+     */
+    public int getWidth() {
+        return store.getWidth();
+    }
+
+    /**
+     * Returns a copy of the specified region as an {@link Image}. The region must be inside the image.
+     * @param pX
+     * @param pY
+     * @param pWidth
+     * @param pHeight
+     * @return
+     */
+    public synchronized Image readRegion(int pX, int pY, int pWidth, int pHeight) {
+        int[][] data = new int[pHeight][pWidth];
+        int tw = store.getTileWidth();
+        int th = store.getTileHeight();
+        for (int ty = pY / th; ty <= (pY + pHeight - 1) / th; ++ty) {
+            for (int tx = pX / tw; tx <= (pX + pWidth - 1) / tw; ++tx) {
+                Tile tile = getTile(tx, ty);
+                int x0 = Math.max(pX, tx * tw);
+                int x1 = Math.min(pX + pWidth, (tx + 1) * tw);
+                int y0 = Math.max(pY, ty * th);
+                int y1 = Math.min(pY + pHeight, (ty + 1) * th);
+                for (int y = y0; y < y1; ++y) {
+                    System.arraycopy(tile.data, (y - ty * th) * tw + x0 - tx * tw, data[y - pY], x0 - pX, x1 - x0);
+                }
+            }
+        }
+        return new Image(data);
+    }
+
+    /**
+     * Sets the specified pixel (packed ARGB).
+     * @param pX
+     * @param pY
+     * @param pColor
+     * @throws UnsupportedOperationException if the store is read-only
+     */
+    public synchronized void setPixel(int pX, int pY, int pColor) {
+        checkWritable();
+        int tw = store.getTileWidth();
+        int th = store.getTileHeight();
+        Tile tile = getTile(pX / tw, pY / th);
+        tile.data[(pY % th) * tw + pX % tw] = pColor;
+        tile.dirty = true;
+    }
+
+    /**
+     * Copies pHeight x pWidth pixels of the specified image, starting at (pSrcX, pSrcY), into this image at (pX, pY).
+     * @param pImage
+     * @param pSrcX
+     * @param pSrcY
+     * @param pWidth
+     * @param pHeight
+     * @param pX
+     * @param pY
+     * @throws UnsupportedOperationException if the store is read-only
+     */
+    public synchronized void writeRegion(Image pImage, int pSrcX, int pSrcY, int pWidth, int pHeight, int pX,
+        int pY) {
+        checkWritable();
+        int[][] data = pImage.getImageData();
+        int tw = store.getTileWidth();
+        int th = store.getTileHeight();
+        for (int ty = pY / th; ty <= (pY + pHeight - 1) / th; ++ty) {
+            for (int tx = pX / tw; tx <= (pX + pWidth - 1) / tw; ++tx) {
+                Tile tile = getTile(tx, ty);
+                int x0 = Math.max(pX, tx * tw);
+                int x1 = Math.min(pX + pWidth, (tx + 1) * tw);
+                int y0 = Math.max(pY, ty * th);
+                int y1 = Math.min(pY + pHeight, (ty + 1) * th);
+                for (int y = y0; y < y1; ++y) {
+                    System.arraycopy(data[y - pY + pSrcY], x0 - pX + pSrcX, tile.data, (y - ty * th) * tw + x0
+                        - tx * tw, x1 - x0);
+                }
+                tile.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the specified image into this image at (pX, pY).
+     * @param pImage
+     * @param pX
+     * @param pY
+     * @throws UnsupportedOperationException if the store is read-only
+     */
+    public void writeRegion(Image pImage, int pX, int pY) {
+        writeRegion(pImage, 0, 0, pImage.getWidth(), pImage.getHeight(), pX, pY);
+    }
+
+    /**
+     * Returns the specified tile, loading it from the store (and evicting the least recently used tiles) if needed.
+     * @param pTileX
+     * @param pTileY
+     * @return
+     */
+    private Tile getTile(int pTileX, int pTileY) {
+        int key = pTileY * nbTilesX + pTileX;
+        Tile tile = cache.get(key);
+        if (tile == null) {
+            evict(maxCachedTiles - 1);
+            tile = new Tile(store.getTileWidth() * store.getTileHeight());
+            try {
+                store.readTile(pTileX, pTileY, tile.data);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            nbLoads++;
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Throws an exception if the store is read-only, before any tile is modified (a modified tile could not be written
+     * back when evicted).
+     */
+    private void checkWritable() {
+        if (!store.isWritable()) {
+            throw new UnsupportedOperationException("The tile store of this image is read-only");
+        }
+    }
+
+    /**
+     * Evicts the least recently used tiles until at most pMaxTiles tiles are cached.
+     * @param pMaxTiles
+     */
+    private void evict(int pMaxTiles) {
+        List<Integer> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Integer, Tile>> it = cache.entrySet().iterator();
+        while (cache.size() - evicted.size() > pMaxTiles && it.hasNext()) {
+            Map.Entry<Integer, Tile> entry = it.next();
+            writeBack(entry.getKey(), entry.getValue());
+            evicted.add(entry.getKey());
+        }
+        for (Integer key : evicted) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Writes the specified tile back to the store if it was modified.
+     * @param pKey
+     * @param pTile
+     */
+    private void writeBack(int pKey, Tile pTile) {
+        if (pTile.dirty) {
+            try {
+                store.writeTile(pKey % nbTilesX, pKey / nbTilesX, pTile.data);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pTile.dirty = false;
+            nbWriteBacks++;
+        }
+    }
+}
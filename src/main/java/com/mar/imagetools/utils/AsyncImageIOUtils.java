@@ -0,0 +1,406 @@
+package com.mar.imagetools.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageWriteOptions;
+import com.mar.imagetools.utils.ImageIOException.Reason;
+
+/**
+ * Non-blocking image I/O. Images are decoded from and encoded to in-memory buffers, streams or channels on an
+ * executor, and results are returned as {@link CompletableFuture}. Failures complete the future exceptionally with an
+ * {@link ImageIOException} (never a null image).<br/>
+ * By default, the codec work runs on virtual threads when the JDK provides them (Java 21+), and otherwise on a pool
+ * bounded to the number of processors. Another executor can be set globally or passed per call.
+ * @author mrenauld
+ */
+public class AsyncImageIOUtils {
+
+    /** An I/O task. */
+    private interface IOTask<T> {
+
+        T run() throws IOException;
+    }
+
+    /** An input stream reading the remaining bytes of a buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer pBuffer) {
+            buffer = pBuffer;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] pBytes, int pOffset, int pLength) {
+            if (pLength == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(pLength, buffer.remaining());
+            buffer.get(pBytes, pOffset, n);
+            return n;
+        }
+    }
+
+    private static volatile Executor defaultExecutor;
+
+    /**
+     * Returns the executor used when none is specified.
+     * @return
+     */
+    public static Executor getDefaultExecutor() {
+        Executor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (AsyncImageIOUtils.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = createDefaultExecutor();
+                }
+                executor = defaultExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Decodes an image from the specified bytes.
+     * @param pData
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(byte[] pData) {
+        return readImage(pData, getDefaultExecutor());
+    }
+
+    /**
+     * Decodes an image from the specified bytes, on the specified executor.
+     * @param pData
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(byte[] pData, Executor pExecutor) {
+        return submit(() -> decode(new ByteArrayInputStream(pData)), pExecutor);
+    }
+
+    /**
+     * Decodes an image from the remaining bytes of the specified buffer (whose position is not modified).
+     * @param pBuffer
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(ByteBuffer pBuffer) {
+        return readImage(pBuffer, getDefaultExecutor());
+    }
+
+    /**
+     * Decodes an image from the remaining bytes of the specified buffer (whose position is not modified), on the
+     * specified executor.
+     * @param pBuffer
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(ByteBuffer pBuffer, Executor pExecutor) {
+        ByteBuffer buffer = pBuffer.duplicate();
+        return submit(() -> decode(new ByteBufferInputStream(buffer)), pExecutor);
+    }
+
+    /**
+     * Decodes an image from the specified stream (which is not closed).
+     * @param pInput
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(InputStream pInput) {
+        return readImage(pInput, getDefaultExecutor());
+    }
+
+    /**
+     * Decodes an image from the specified stream (which is not closed), on the specified executor.
+     * @param pInput
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(InputStream pInput, Executor pExecutor) {
+        return submit(() -> decode(pInput), pExecutor);
+    }
+
+    /**
+     * Decodes an image from the specified channel (which is not closed).
+     * @param pChannel
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(ReadableByteChannel pChannel) {
+        return readImage(pChannel, getDefaultExecutor());
+    }
+
+    /**
+     * Decodes an image from the specified channel (which is not closed), on the specified executor.
+     * @param pChannel
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Image> readImage(ReadableByteChannel pChannel, Executor pExecutor) {
+        return submit(() -> decode(Channels.newInputStream(pChannel)), pExecutor);
+    }
+
+    /**
+     * Sets the executor used when none is specified.
+     * @param pExecutor
+     */
+    public static void setDefaultExecutor(Executor pExecutor) {
+        defaultExecutor = pExecutor;
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options, and returns the encoded bytes.
+     * @param pImage
+     * @param pFormat
+     * @param pOptions
+     * @return
+     */
+    public static CompletableFuture<byte[]> writeImage(Image pImage, String pFormat, ImageWriteOptions pOptions) {
+        return writeImage(pImage, pFormat, pOptions, getDefaultExecutor());
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options on the specified executor, and returns the
+     * encoded bytes.
+     * @param pImage
+     * @param pFormat
+     * @param pOptions
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<byte[]> writeImage(Image pImage, String pFormat, ImageWriteOptions pOptions,
+        Executor pExecutor) {
+        return submit(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encode(pImage, out, pFormat, pOptions);
+            return out.toByteArray();
+        }, pExecutor);
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options into the specified stream (which is not
+     * closed).
+     * @param pImage
+     * @param pOutput
+     * @param pFormat
+     * @param pOptions
+     * @return
+     */
+    public static CompletableFuture<Void> writeImage(Image pImage, OutputStream pOutput, String pFormat,
+        ImageWriteOptions pOptions) {
+        return writeImage(pImage, pOutput, pFormat, pOptions, getDefaultExecutor());
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options into the specified stream (which is not
+     * closed), on the specified executor.
+     * @param pImage
+     * @param pOutput
+     * @param pFormat
+     * @param pOptions
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Void> writeImage(Image pImage, OutputStream pOutput, String pFormat,
+        ImageWriteOptions pOptions, Executor pExecutor) {
+        return submit(() -> {
+            encode(pImage, pOutput, pFormat, pOptions);
+            return null;
+        }, pExecutor);
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options into the specified channel (which is not
+     * closed).
+     * @param pImage
+     * @param pChannel
+     * @param pFormat
+     * @param pOptions
+     * @return
+     */
+    public static CompletableFuture<Void> writeImage(Image pImage, WritableByteChannel pChannel, String pFormat,
+        ImageWriteOptions pOptions) {
+        return writeImage(pImage, pChannel, pFormat, pOptions, getDefaultExecutor());
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options into the specified channel (which is not
+     * closed), on the specified executor.
+     * @param pImage
+     * @param pChannel
+     * @param pFormat
+     * @param pOptions
+     * @param pExecutor
+     * @return
+     */
+    public static CompletableFuture<Void> writeImage(Image pImage, WritableByteChannel pChannel, String pFormat,
+        ImageWriteOptions pOptions, Executor pExecutor) {
+        return submit(() -> {
+            OutputStream out = Channels.newOutputStream(pChannel);
+            encode(pImage, out, pFormat, pOptions);
+            out.flush();
+            return null;
+        }, pExecutor);
+    }
+
+    /**
+     * Encodes the specified image with the specified format and options, and returns the encoded bytes in a buffer
+     * (ready to be read).
+     * @param pImage
+     * @param pFormat
+     * @param pOptions
+     * @return
+     */
+    public static CompletableFuture<ByteBuffer> writeImageToBuffer(Image pImage, String pFormat,
+        ImageWriteOptions pOptions) {
+        return writeImage(pImage, pFormat, pOptions).thenApply(ByteBuffer::wrap);
+    }
+
+    /**
+     * Creates the default executor: virtual threads if available, a bounded pool of daemon threads otherwise.
+     * @return
+     */
+    private static Executor createDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            /* Java < 21. */
+        }
+        int nbThreads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads, nbThreads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "image-io-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Decodes an image from the specified stream.
+     * @param pInput
+     * @return
+     * @throws ImageIOException
+     */
+    private static Image decode(InputStream pInput) throws ImageIOException {
+        /* Cache in memory rather than in a temporary file. */
+        ImageInputStream input = new MemoryCacheImageInputStream(pInput);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new ImageIOException(Reason.UNSUPPORTED_FORMAT, "No reader found for the input data");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                BufferedImage image = reader.read(0, reader.getDefaultReadParam());
+                return new Image(image);
+            }
+            catch (IIOException | IndexOutOfBoundsException e) {
+                throw new ImageIOException(Reason.DECODE_FAILED, "Cannot decode image [" + e.toString() + "]", e);
+            }
+            catch (IOException e) {
+                throw new ImageIOException(Reason.IO_FAILED, "Cannot read input [" + e.toString() + "]", e);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        finally {
+            try {
+                input.close();
+            }
+            catch (IOException e) {
+                /* Nothing to release. */
+            }
+        }
+    }
+
+    /**
+     * Encodes the specified image into the specified stream.
+     * @param pImage
+     * @param pOutput
+     * @param pFormat
+     * @param pOptions
+     * @throws ImageIOException
+     */
+    private static void encode(Image pImage, OutputStream pOutput, String pFormat, ImageWriteOptions pOptions)
+        throws ImageIOException {
+        if (!ImageIO.getImageWritersByFormatName(pFormat).hasNext()) {
+            throw new ImageIOException(Reason.UNSUPPORTED_FORMAT, "No writer found for format [" + pFormat + "]");
+        }
+        try {
+            ImageIOUtils.writeImage(pImage.getBufferedImage(), pOutput, pFormat, pOptions);
+        }
+        catch (IIOException e) {
+            throw new ImageIOException(Reason.ENCODE_FAILED, "Cannot encode image [" + e.toString() + "]", e);
+        }
+        catch (IOException e) {
+            throw new ImageIOException(Reason.IO_FAILED, "Cannot write output [" + e.toString() + "]", e);
+        }
+    }
+
+    /**
+     * Runs the specified task on the specified executor. The returned future is completed exceptionally with the
+     * exception thrown by the task (not wrapped).
+     * @param pTask
+     * @param pExecutor
+     * @return
+     */
+    private static <T> CompletableFuture<T> submit(IOTask<T> pTask, Executor pExecutor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            pExecutor.execute(() -> {
+                try {
+                    future.complete(pTask.run());
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
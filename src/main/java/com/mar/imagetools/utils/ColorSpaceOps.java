@@ -0,0 +1,503 @@
+package com.mar.imagetools.utils;
+
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Color space conversions of whole images. The conversion is done in one pass per pixel on the planar channels
+ * (decoding, gamma and matrix transforms fused), and the image is processed by tiles in parallel. The sRGB gamma uses
+ * precomputed tables: 256 entries for 8-bit input, 4096 entries with linear interpolation otherwise.<br/>
+ * In an {@link ImageProc}, the three components of a color space are stored in the red, green and blue channels (in
+ * this order). Component ranges:
+ * <ul>
+ * <li>SRGB, LINEAR_RGB: 0.0 to 1.0.</li>
+ * <li>HSV, HSL: hue 0.0 to 1.0 (fraction of a turn), saturation and value/lightness 0.0 to 1.0.</li>
+ * <li>YCBCR: full range BT.601 (JPEG), Y 0.0 to 1.0, Cb and Cr 0.0 to 1.0 centered on 0.5.</li>
+ * <li>XYZ: D65 white point, Y 0.0 to 1.0.</li>
+ * <li>LAB: CIELAB (D65), L 0.0 to 100.0, a and b roughly -128.0 to 127.0.</li>
+ * </ul>
+ * @author mrenauld
+ */
+public class ColorSpaceOps {
+
+    /** Supported color spaces. */
+    public enum ColorSpace {
+        SRGB(false), LINEAR_RGB(true), HSV(false), HSL(false), YCBCR(false), XYZ(true), LAB(true);
+
+        /** True if the color space is derived from linear RGB (false: from gamma encoded sRGB). */
+        private final boolean linear;
+
+        private ColorSpace(boolean pLinear) {
+            linear = pLinear;
+        }
+    }
+
+    /** Tile size for the parallel processing. */
+    private static final int TILE_SIZE = 128;
+
+    /** Number of intervals of the interpolated gamma tables. */
+    private static final int LUT_SIZE = 4096;
+
+    /** 8-bit sRGB value to linear value. */
+    private static final double[] BYTE_TO_LINEAR = new double[256];
+
+    /** sRGB value to linear value, at LUT_SIZE + 1 regularly spaced sRGB values. */
+    private static final double[] SRGB_TO_LINEAR = new double[LUT_SIZE + 1];
+
+    /** Linear value to sRGB value, at LUT_SIZE + 1 regularly spaced linear values. */
+    private static final double[] LINEAR_TO_SRGB = new double[LUT_SIZE + 1];
+
+    /** D65 white point. */
+    private static final double XN = 0.95047;
+
+    private static final double YN = 1.0;
+
+    private static final double ZN = 1.08883;
+
+    /** CIELAB threshold (6/29). */
+    private static final double LAB_DELTA = 6.0 / 29.0;
+
+    static {
+        for (int k = 0; k < 256; ++k) {
+            BYTE_TO_LINEAR[k] = srgbToLinearExact(k / 255.0);
+        }
+        for (int k = 0; k <= LUT_SIZE; ++k) {
+            SRGB_TO_LINEAR[k] = srgbToLinearExact((double) k / LUT_SIZE);
+            LINEAR_TO_SRGB[k] = linearToSrgbExact((double) k / LUT_SIZE);
+        }
+    }
+
+    /**
+     * Returns a new {@link ImageProc} with the colors of pImage converted from pFrom to pTo.
+     * @param pImage
+     * @param pFrom
+     * @param pTo
+     * @return
+     */
+    public static ImageProc convert(ImageProc pImage, ColorSpace pFrom, ColorSpace pTo) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        double[][] in0 = pImage.getChannel(Image.CHANNEL_RED);
+        double[][] in1 = pImage.getChannel(Image.CHANNEL_GREEN);
+        double[][] in2 = pImage.getChannel(Image.CHANNEL_BLUE);
+        double[][] out0 = new double[h][w];
+        double[][] out1 = new double[h][w];
+        double[][] out2 = new double[h][w];
+        forEachTile(w, h, (i0, i1, j0, j1) -> {
+            double[] px = new double[3];
+            for (int i = i0; i < i1; ++i) {
+                for (int j = j0; j < j1; ++j) {
+                    px[0] = in0[i][j];
+                    px[1] = in1[i][j];
+                    px[2] = in2[i][j];
+                    convertPixel(px, pFrom, pTo);
+                    out0[i][j] = px[0];
+                    out1[i][j] = px[1];
+                    out2[i][j] = px[2];
+                }
+            }
+        });
+        return toImageProc(w, h, out0, out1, out2);
+    }
+
+    /**
+     * Returns the sRGB value of the specified linear value (uses the interpolated table between 0.0 and 1.0).
+     * @param pValue
+     * @return
+     */
+    public static double linearToSrgb(double pValue) {
+        return interpolate(LINEAR_TO_SRGB, pValue, true);
+    }
+
+    /**
+     * Returns the linear value of the specified sRGB value (uses the interpolated table between 0.0 and 1.0).
+     * @param pValue
+     * @return
+     */
+    public static double srgbToLinear(double pValue) {
+        return interpolate(SRGB_TO_LINEAR, pValue, false);
+    }
+
+    /**
+     * Returns a new {@link ImageProc} with the colors of pImage (sRGB) converted to pTo. The alpha channel is ignored.
+     * @param pImage
+     * @param pTo
+     * @return
+     */
+    public static ImageProc toColorSpace(Image pImage, ColorSpace pTo) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        double[][] out0 = new double[h][w];
+        double[][] out1 = new double[h][w];
+        double[][] out2 = new double[h][w];
+        forEachTile(w, h, (i0, i1, j0, j1) -> {
+            double[] px = new double[3];
+            int[] row = new int[j1 - j0];
+            for (int i = i0; i < i1; ++i) {
+                pImage.getRow(i, j0, j1 - j0, row);
+                for (int j = j0; j < j1; ++j) {
+                    int v = row[j - j0];
+                    if (pTo.linear) {
+                        px[0] = BYTE_TO_LINEAR[(v >> 16) & 0xff];
+                        px[1] = BYTE_TO_LINEAR[(v >> 8) & 0xff];
+                        px[2] = BYTE_TO_LINEAR[v & 0xff];
+                    }
+                    else {
+                        px[0] = ((v >> 16) & 0xff) / 255.0;
+                        px[1] = ((v >> 8) & 0xff) / 255.0;
+                        px[2] = (v & 0xff) / 255.0;
+                    }
+                    fromRgb(px, pTo);
+                    out0[i][j] = px[0];
+                    out1[i][j] = px[1];
+                    out2[i][j] = px[2];
+                }
+            }
+        });
+        return toImageProc(w, h, out0, out1, out2);
+    }
+
+    /**
+     * Returns a new opaque {@link Image} (sRGB) from pImage, whose colors are in pFrom. Out of gamut colors are
+     * clamped.
+     * @param pImage
+     * @param pFrom
+     * @return
+     */
+    public static Image toImage(ImageProc pImage, ColorSpace pFrom) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        double[][] in0 = pImage.getChannel(Image.CHANNEL_RED);
+        double[][] in1 = pImage.getChannel(Image.CHANNEL_GREEN);
+        double[][] in2 = pImage.getChannel(Image.CHANNEL_BLUE);
+        int[][] data = new int[h][w];
+        forEachTile(w, h, (i0, i1, j0, j1) -> {
+            double[] px = new double[3];
+            for (int i = i0; i < i1; ++i) {
+                for (int j = j0; j < j1; ++j) {
+                    px[0] = in0[i][j];
+                    px[1] = in1[i][j];
+                    px[2] = in2[i][j];
+                    toRgb(px, pFrom);
+                    if (pFrom.linear) {
+                        for (int k = 0; k < 3; ++k) {
+                            px[k] = interpolate(LINEAR_TO_SRGB, px[k], true);
+                        }
+                    }
+                    data[i][j] = 0xff000000 | (toByte(px[0]) << 16) | (toByte(px[1]) << 8) | toByte(px[2]);
+                }
+            }
+        });
+        return new Image(data);
+    }
+
+    /** Processes the pixels of a tile, rows pRow0 to pRow1 and columns pCol0 to pCol1 (exclusive). */
+    private interface TileTask {
+
+        void run(int pRow0, int pRow1, int pCol0, int pCol1);
+    }
+
+    /**
+     * Converts a pixel from pFrom to pTo, in place.
+     * @param pPixel
+     * @param pFrom
+     * @param pTo
+     */
+    private static void convertPixel(double[] pPixel, ColorSpace pFrom, ColorSpace pTo) {
+        if (pFrom == pTo) {
+            return;
+        }
+        toRgb(pPixel, pFrom);
+        if (pFrom.linear != pTo.linear) {
+            double[] lut = pFrom.linear ? LINEAR_TO_SRGB : SRGB_TO_LINEAR;
+            for (int k = 0; k < 3; ++k) {
+                pPixel[k] = interpolate(lut, pPixel[k], pFrom.linear);
+            }
+        }
+        fromRgb(pPixel, pTo);
+    }
+
+    /**
+     * Runs pTask on all tiles of a pWidth x pHeight image, in parallel.
+     * @param pWidth
+     * @param pHeight
+     * @param pTask
+     */
+    private static void forEachTile(int pWidth, int pHeight, TileTask pTask) {
+        int nbTilesX = (pWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int nbTilesY = (pHeight + TILE_SIZE - 1) / TILE_SIZE;
+        IntStream.range(0, nbTilesX * nbTilesY).parallel().forEach(t -> {
+            int i0 = (t / nbTilesX) * TILE_SIZE;
+            int j0 = (t % nbTilesX) * TILE_SIZE;
+            pTask.run(i0, Math.min(pHeight, i0 + TILE_SIZE), j0, Math.min(pWidth, j0 + TILE_SIZE));
+        });
+    }
+
+    /**
+     * Converts a pixel from RGB (sRGB or linear RGB, depending on pTo) to pTo, in place.
+     * @param pPixel
+     * @param pTo
+     */
+    private static void fromRgb(double[] pPixel, ColorSpace pTo) {
+        double r = pPixel[0];
+        double g = pPixel[1];
+        double b = pPixel[2];
+        switch (pTo) {
+        case HSV: {
+            double max = Math.max(r, Math.max(g, b));
+            double min = Math.min(r, Math.min(g, b));
+            pPixel[0] = hue(r, g, b, max, min);
+            pPixel[1] = max > 0.0 ? (max - min) / max : 0.0;
+            pPixel[2] = max;
+            break;
+        }
+        case HSL: {
+            double max = Math.max(r, Math.max(g, b));
+            double min = Math.min(r, Math.min(g, b));
+            double l = 0.5 * (max + min);
+            double d = 1.0 - Math.abs(2.0 * l - 1.0);
+            pPixel[0] = hue(r, g, b, max, min);
+            pPixel[1] = d > 0.0 ? (max - min) / d : 0.0;
+            pPixel[2] = l;
+            break;
+        }
+        case YCBCR:
+            pPixel[0] = 0.299 * r + 0.587 * g + 0.114 * b;
+            pPixel[1] = 0.5 - 0.168736 * r - 0.331264 * g + 0.5 * b;
+            pPixel[2] = 0.5 + 0.5 * r - 0.418688 * g - 0.081312 * b;
+            break;
+        case XYZ:
+            pPixel[0] = 0.4124564 * r + 0.3575761 * g + 0.1804375 * b;
+            pPixel[1] = 0.2126729 * r + 0.7151522 * g + 0.0721750 * b;
+            pPixel[2] = 0.0193339 * r + 0.1191920 * g + 0.9503041 * b;
+            break;
+        case LAB: {
+            double fx = labF((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / XN);
+            double fy = labF((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / YN);
+            double fz = labF((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / ZN);
+            pPixel[0] = 116.0 * fy - 16.0;
+            pPixel[1] = 500.0 * (fx - fy);
+            pPixel[2] = 200.0 * (fy - fz);
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Returns the hue (0.0 to 1.0) of an RGB color with the specified maximum and minimum components.
+     * @param pR
+     * @param pG
+     * @param pB
+     * @param pMax
+     * @param pMin
+     * @return
+     */
+    private static double hue(double pR, double pG, double pB, double pMax, double pMin) {
+        double d = pMax - pMin;
+        if (d <= 0.0) {
+            return 0.0;
+        }
+        double h;
+        if (pMax == pR) {
+            h = (pG - pB) / d;
+            if (h < 0.0) {
+                h += 6.0;
+            }
+        }
+        else if (pMax == pG) {
+            h = (pB - pR) / d + 2.0;
+        }
+        else {
+            h = (pR - pG) / d + 4.0;
+        }
+        return h / 6.0;
+    }
+
+    /**
+     * Returns the RGB components of a color given by its hue, chroma and minimum component, in pPixel.
+     * @param pPixel
+     * @param pHue
+     * @param pChroma
+     * @param pMin
+     */
+    private static void hueToRgb(double[] pPixel, double pHue, double pChroma, double pMin) {
+        double h = (pHue - Math.floor(pHue)) * 6.0;
+        double x = pChroma * (1.0 - Math.abs(h % 2.0 - 1.0));
+        double r;
+        double g;
+        double b;
+        if (h < 1.0) {
+            r = pChroma;
+            g = x;
+            b = 0.0;
+        }
+        else if (h < 2.0) {
+            r = x;
+            g = pChroma;
+            b = 0.0;
+        }
+        else if (h < 3.0) {
+            r = 0.0;
+            g = pChroma;
+            b = x;
+        }
+        else if (h < 4.0) {
+            r = 0.0;
+            g = x;
+            b = pChroma;
+        }
+        else if (h < 5.0) {
+            r = x;
+            g = 0.0;
+            b = pChroma;
+        }
+        else {
+            r = pChroma;
+            g = 0.0;
+            b = x;
+        }
+        pPixel[0] = r + pMin;
+        pPixel[1] = g + pMin;
+        pPixel[2] = b + pMin;
+    }
+
+    /**
+     * Returns the value of the table pLut (LUT_SIZE intervals over 0.0 to 1.0) at pValue, by linear interpolation.
+     * Values outside 0.0 to 1.0 are computed exactly.
+     * @param pLut
+     * @param pValue
+     * @param pToSrgb true for the linear to sRGB table, false for the sRGB to linear table
+     * @return
+     */
+    private static double interpolate(double[] pLut, double pValue, boolean pToSrgb) {
+        if (!(pValue >= 0.0 && pValue < 1.0)) {
+            return pToSrgb ? linearToSrgbExact(pValue) : srgbToLinearExact(pValue);
+        }
+        double x = pValue * LUT_SIZE;
+        int k = (int) x;
+        double t = x - k;
+        return pLut[k] + t * (pLut[k + 1] - pLut[k]);
+    }
+
+    /**
+     * CIELAB function f.
+     * @param pT
+     * @return
+     */
+    private static double labF(double pT) {
+        if (pT > LAB_DELTA * LAB_DELTA * LAB_DELTA) {
+            return Math.cbrt(pT);
+        }
+        return pT / (3.0 * LAB_DELTA * LAB_DELTA) + 4.0 / 29.0;
+    }
+
+    /**
+     * Inverse of the CIELAB function f.
+     * @param pF
+     * @return
+     */
+    private static double labFInverse(double pF) {
+        if (pF > LAB_DELTA) {
+            return pF * pF * pF;
+        }
+        return 3.0 * LAB_DELTA * LAB_DELTA * (pF - 4.0 / 29.0);
+    }
+
+    /**
+     * sRGB gamma encoding (exact formula, odd extension for negative values).
+     * @param pValue
+     * @return
+     */
+    private static double linearToSrgbExact(double pValue) {
+        double v = Math.abs(pValue);
+        double s = v <= 0.0031308 ? 12.92 * v : 1.055 * Math.pow(v, 1.0 / 2.4) - 0.055;
+        return Math.copySign(s, pValue);
+    }
+
+    /**
+     * sRGB gamma decoding (exact formula, odd extension for negative values).
+     * @param pValue
+     * @return
+     */
+    private static double srgbToLinearExact(double pValue) {
+        double v = Math.abs(pValue);
+        double l = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+        return Math.copySign(l, pValue);
+    }
+
+    /**
+     * Converts a value between 0.0 and 1.0 to a channel value between 0 and 255 (clamped).
+     * @param pValue
+     * @return
+     */
+    private static int toByte(double pValue) {
+        int v = (int) (pValue * 255.0 + 0.5);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * Returns an {@link ImageProc} with the specified components in the red, green and blue channels.
+     * @param pWidth
+     * @param pHeight
+     * @param pC0
+     * @param pC1
+     * @param pC2
+     * @return
+     */
+    private static ImageProc toImageProc(int pWidth, int pHeight, double[][] pC0, double[][] pC1, double[][] pC2) {
+        ImageProc image = new ImageProc(pWidth, pHeight);
+        image.setChannel(Image.CHANNEL_RED, pC0);
+        image.setChannel(Image.CHANNEL_GREEN, pC1);
+        image.setChannel(Image.CHANNEL_BLUE, pC2);
+        return image;
+    }
+
+    /**
+     * Converts a pixel from pFrom to RGB (sRGB or linear RGB, depending on pFrom), in place.
+     * @param pPixel
+     * @param pFrom
+     */
+    private static void toRgb(double[] pPixel, ColorSpace pFrom) {
+        double c0 = pPixel[0];
+        double c1 = pPixel[1];
+        double c2 = pPixel[2];
+        switch (pFrom) {
+        case HSV: {
+            double chroma = c2 * c1;
+            hueToRgb(pPixel, c0, chroma, c2 - chroma);
+            break;
+        }
+        case HSL: {
+            double chroma = (1.0 - Math.abs(2.0 * c2 - 1.0)) * c1;
+            hueToRgb(pPixel, c0, chroma, c2 - 0.5 * chroma);
+            break;
+        }
+        case YCBCR:
+            pPixel[0] = c0 + 1.402 * (c2 - 0.5);
+            pPixel[1] = c0 - 0.344136 * (c1 - 0.5) - 0.714136 * (c2 - 0.5);
+            pPixel[2] = c0 + 1.772 * (c1 - 0.5);
+            break;
+        case XYZ:
+            pPixel[0] = 3.2404542 * c0 - 1.5371385 * c1 - 0.4985314 * c2;
+            pPixel[1] = -0.9692660 * c0 + 1.8760108 * c1 + 0.0415560 * c2;
+            pPixel[2] = 0.0556434 * c0 - 0.2040259 * c1 + 1.0572252 * c2;
+            break;
+        case LAB: {
+            double fy = (c0 + 16.0) / 116.0;
+            double x = XN * labFInverse(fy + c1 / 500.0);
+            double y = YN * labFInverse(fy);
+            double z = ZN * labFInverse(fy - c2 / 200.0);
+            pPixel[0] = 3.2404542 * x - 1.5371385 * y - 0.4985314 * z;
+            pPixel[1] = -0.9692660 * x + 1.8760108 * y + 0.0415560 * z;
+            pPixel[2] = 0.0556434 * x - 0.2040259 * y + 1.0572252 * z;
+            break;
+        }
+        default:
+            break;
+        }
+    }
+}
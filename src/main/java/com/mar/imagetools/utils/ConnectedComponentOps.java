@@ -0,0 +1,305 @@
+package com.mar.imagetools.utils;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.BinaryImage;
+import com.mar.imagetools.objects.ConnectedComponents;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Connected component labelling of binary images, with 4- or 8-connectivity.<br/>
+ * Two-pass union-find algorithm, parallelized by strips of rows: each strip is labelled independently (first pass,
+ * provisional labels and their statistics), the labels of adjacent strips are then merged along the strip boundaries,
+ * and the second pass writes the final labels in parallel. Labels are numbered in raster order of the first pixel of
+ * each component.
+ * @author mrenauld
+ */
+public class ConnectedComponentOps {
+
+    /** Number of rows of the strips labelled in parallel. */
+    private static final int STRIP_HEIGHT = 256;
+
+    /** Provisional labels and statistics of a strip. */
+    private static class StripLabels {
+
+        private int nbLabels = 0;
+
+        private int[] parents = new int[64];
+
+        private long[] areas = new long[64];
+
+        private long[] sumX = new long[64];
+
+        private long[] sumY = new long[64];
+
+        private int[] minX = new int[64];
+
+        private int[] minY = new int[64];
+
+        private int[] maxX = new int[64];
+
+        private int[] maxY = new int[64];
+
+        /**
+         * Creates a new label (labels start at 1).
+         * @return
+         */
+        private int newLabel() {
+            int label = ++nbLabels;
+            if (label >= parents.length) {
+                int n = 2 * parents.length;
+                parents = Arrays.copyOf(parents, n);
+                areas = Arrays.copyOf(areas, n);
+                sumX = Arrays.copyOf(sumX, n);
+                sumY = Arrays.copyOf(sumY, n);
+                minX = Arrays.copyOf(minX, n);
+                minY = Arrays.copyOf(minY, n);
+                maxX = Arrays.copyOf(maxX, n);
+                maxY = Arrays.copyOf(maxY, n);
+            }
+            parents[label] = label;
+            minX[label] = Integer.MAX_VALUE;
+            minY[label] = Integer.MAX_VALUE;
+            maxX[label] = -1;
+            maxY[label] = -1;
+            return label;
+        }
+
+        /**
+         * Adds a pixel to the statistics of the specified label.
+         * @param pLabel
+         * @param pX
+         * @param pY
+         */
+        private void addPixel(int pLabel, int pX, int pY) {
+            areas[pLabel]++;
+            sumX[pLabel] += pX;
+            sumY[pLabel] += pY;
+            minX[pLabel] = Math.min(minX[pLabel], pX);
+            minY[pLabel] = Math.min(minY[pLabel], pY);
+            maxX[pLabel] = Math.max(maxX[pLabel], pX);
+            maxY[pLabel] = Math.max(maxY[pLabel], pY);
+        }
+    }
+
+    /**
+     * Labels the connected components of the set pixels of the specified binary image.
+     * @param pImage
+     * @param pConnectivity 4 or 8
+     * @return
+     */
+    public static ConnectedComponents label(BinaryImage pImage, int pConnectivity) {
+        if (pConnectivity != 4 && pConnectivity != 8) {
+            throw new IllegalArgumentException("Connectivity must be 4 or 8");
+        }
+        boolean eight = pConnectivity == 8;
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int[][] labels = new int[h][w];
+        int nbStrips = Math.max(1, (h + STRIP_HEIGHT - 1) / STRIP_HEIGHT);
+
+        /* First pass: provisional labels, local to each strip. */
+        StripLabels[] strips = new StripLabels[nbStrips];
+        IntStream.range(0, nbStrips).parallel().forEach(s -> {
+            strips[s] = labelStrip(pImage, labels, s * STRIP_HEIGHT, Math.min(h, (s + 1) * STRIP_HEIGHT), eight);
+        });
+
+        /* Global provisional labels: offset of each strip, and union-find over all labels. */
+        int[] offsets = new int[nbStrips];
+        int total = 0;
+        for (int s = 0; s < nbStrips; ++s) {
+            offsets[s] = total;
+            total += strips[s].nbLabels;
+        }
+        int[] parents = new int[total + 1];
+        for (int s = 0; s < nbStrips; ++s) {
+            StripLabels strip = strips[s];
+            for (int l = 1; l <= strip.nbLabels; ++l) {
+                parents[offsets[s] + l] = offsets[s] + find(strip.parents, l);
+            }
+        }
+
+        /* Merge the labels along the strip boundaries. */
+        for (int s = 1; s < nbStrips; ++s) {
+            int i = s * STRIP_HEIGHT;
+            int[] row = labels[i];
+            int[] above = labels[i - 1];
+            for (int j = 0; j < w; ++j) {
+                if (row[j] == 0) {
+                    continue;
+                }
+                int label = offsets[s] + row[j];
+                for (int dj = eight ? -1 : 0; dj <= (eight ? 1 : 0); ++dj) {
+                    int k = j + dj;
+                    if (k >= 0 && k < w && above[k] != 0) {
+                        union(parents, label, offsets[s - 1] + above[k]);
+                    }
+                }
+            }
+        }
+
+        /* Final labels (roots always precede their children) and statistics. */
+        int[] finalLabels = new int[total + 1];
+        int nbComponents = 0;
+        for (int l = 1; l <= total; ++l) {
+            int root = find(parents, l);
+            finalLabels[l] = root == l ? ++nbComponents : finalLabels[root];
+        }
+        long[] areas = new long[nbComponents + 1];
+        long[] sumX = new long[nbComponents + 1];
+        long[] sumY = new long[nbComponents + 1];
+        int[] minX = new int[nbComponents + 1];
+        int[] minY = new int[nbComponents + 1];
+        int[] maxX = new int[nbComponents + 1];
+        int[] maxY = new int[nbComponents + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+        for (int s = 0; s < nbStrips; ++s) {
+            StripLabels strip = strips[s];
+            for (int l = 1; l <= strip.nbLabels; ++l) {
+                int f = finalLabels[offsets[s] + l];
+                areas[f] += strip.areas[l];
+                sumX[f] += strip.sumX[l];
+                sumY[f] += strip.sumY[l];
+                minX[f] = Math.min(minX[f], strip.minX[l]);
+                minY[f] = Math.min(minY[f], strip.minY[l]);
+                maxX[f] = Math.max(maxX[f], strip.maxX[l]);
+                maxY[f] = Math.max(maxY[f], strip.maxY[l]);
+            }
+        }
+        double[] centroidX = new double[nbComponents + 1];
+        double[] centroidY = new double[nbComponents + 1];
+        for (int f = 1; f <= nbComponents; ++f) {
+            centroidX[f] = (double) sumX[f] / areas[f];
+            centroidY[f] = (double) sumY[f] / areas[f];
+        }
+
+        /* Second pass: final labels. */
+        IntStream.range(0, nbStrips).parallel().forEach(s -> {
+            int offset = offsets[s];
+            for (int i = s * STRIP_HEIGHT; i < Math.min(h, (s + 1) * STRIP_HEIGHT); ++i) {
+                int[] row = labels[i];
+                for (int j = 0; j < w; ++j) {
+                    if (row[j] != 0) {
+                        row[j] = finalLabels[offset + row[j]];
+                    }
+                }
+            }
+        });
+
+        return new ConnectedComponents(labels, nbComponents, areas, minX, minY, maxX, maxY, centroidX, centroidY);
+    }
+
+    /**
+     * Labels the connected components of the pixels of the specified image whose grayscale value is above pThreshold
+     * (see {@link BinaryImage#BinaryImage(ImageProc, double)}).
+     * @param pImage
+     * @param pThreshold
+     * @param pConnectivity 4 or 8
+     * @return
+     */
+    public static ConnectedComponents label(ImageProc pImage, double pThreshold, int pConnectivity) {
+        return label(new BinaryImage(pImage, pThreshold), pConnectivity);
+    }
+
+    /**
+     * Returns the root of the specified label, compressing the path.
+     * @param pParents
+     * @param pLabel
+     * @return
+     */
+    private static int find(int[] pParents, int pLabel) {
+        int root = pLabel;
+        while (pParents[root] != root) {
+            root = pParents[root];
+        }
+        int l = pLabel;
+        while (pParents[l] != root) {
+            int next = pParents[l];
+            pParents[l] = root;
+            l = next;
+        }
+        return root;
+    }
+
+    /**
+     * First pass on rows pRow0 to pRow1 (exclusive): writes provisional labels, local to the strip, in pLabels.
+     * @param pImage
+     * @param pLabels
+     * @param pRow0
+     * @param pRow1
+     * @param pEight
+     * @return
+     */
+    private static StripLabels labelStrip(BinaryImage pImage, int[][] pLabels, int pRow0, int pRow1, boolean pEight) {
+        StripLabels strip = new StripLabels();
+        int w = pImage.getWidth();
+        for (int i = pRow0; i < pRow1; ++i) {
+            long[] words = pImage.getRowWords(i);
+            int[] row = pLabels[i];
+            int[] above = i > pRow0 ? pLabels[i - 1] : null;
+            for (int j = 0; j < w; ++j) {
+                if (((words[j >> 6] >>> (j & 63)) & 1L) == 0) {
+                    continue;
+                }
+                int label = j > 0 ? row[j - 1] : 0;
+                if (above != null) {
+                    if (above[j] != 0) {
+                        /* The upper left and upper right neighbours, if set, are already connected to it. */
+                        label = merge(strip.parents, label, above[j]);
+                    }
+                    else if (pEight) {
+                        if (j > 0 && above[j - 1] != 0) {
+                            label = merge(strip.parents, label, above[j - 1]);
+                        }
+                        if (j < w - 1 && above[j + 1] != 0) {
+                            label = merge(strip.parents, label, above[j + 1]);
+                        }
+                    }
+                }
+                if (label == 0) {
+                    label = strip.newLabel();
+                }
+                row[j] = label;
+                strip.addPixel(label, j, i);
+            }
+        }
+        return strip;
+    }
+
+    /**
+     * Returns the label of a pixel connected to a pixel labelled pLabel (0 if none yet) and to a neighbour labelled
+     * pNeighbour, merging both labels if needed.
+     * @param pParents
+     * @param pLabel
+     * @param pNeighbour
+     * @return
+     */
+    private static int merge(int[] pParents, int pLabel, int pNeighbour) {
+        if (pLabel == 0 || pLabel == pNeighbour) {
+            return pNeighbour;
+        }
+        union(pParents, pLabel, pNeighbour);
+        return pLabel;
+    }
+
+    /**
+     * Merges the sets of the two labels; the smaller root becomes the root of the union.
+     * @param pParents
+     * @param pLabel1
+     * @param pLabel2
+     */
+    private static void union(int[] pParents, int pLabel1, int pLabel2) {
+        int r1 = find(pParents, pLabel1);
+        int r2 = find(pParents, pLabel2);
+        if (r1 < r2) {
+            pParents[r2] = r1;
+        }
+        else if (r2 < r1) {
+            pParents[r1] = r2;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package com.mar.imagetools.utils;
+
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Image comparison metrics: MSE/PSNR over the color channels, and SSIM/MS-SSIM over the luminance (Wang et al.,
+ * 11x11 Gaussian window with sigma 1.5, computed on the valid part of the image).<br/>
+ * SSIM is computed in a single fused pass: the five local statistics (means, variances, covariance) are obtained with
+ * the same separable Gaussian filtering, strip by strip, in parallel. The "isXxx" methods stop as soon as the answer is
+ * known: the image is processed in batches of strips, and the computation ends once the remaining strips cannot
+ * change the result.<br/>
+ * {@link Image} values are compared in the 0-255 range, {@link ImageProc} values in the 0.0-1.0 range. Both images
+ * must have the same size.
+ * @author mrenauld
+ */
+public class ImageCompareOps {
+
+    /** SSIM window half size. */
+    private static final int SSIM_RADIUS = 5;
+
+    /** SSIM window sigma. */
+    private static final double SSIM_SIGMA = 1.5;
+
+    /** MS-SSIM weights (Wang et al.), from the finest to the coarsest scale. */
+    private static final double[] MS_SSIM_WEIGHTS = { 0.0448, 0.2856, 0.3001, 0.2363, 0.1333 };
+
+    /** Number of rows per strip processed by a single task. */
+    private static final int STRIP_HEIGHT = 32;
+
+    /** Luminance plane of an image. */
+    private static class Plane {
+
+        private final float[] data;
+
+        private final int width;
+
+        private final int height;
+
+        private Plane(float[] pData, int pWidth, int pHeight) {
+            data = pData;
+            width = pWidth;
+            height = pHeight;
+        }
+    }
+
+    /**
+     * Returns the mean squared error over the color channels (values in the 0-255 range).
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeMse(Image pImage1, Image pImage2) {
+        return sumSquaredErrors(pImage1, pImage2, Double.POSITIVE_INFINITY) / nbSamples(pImage1);
+    }
+
+    /**
+     * Returns the mean squared error over the color channels (values in the 0.0-1.0 range).
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeMse(ImageProc pImage1, ImageProc pImage2) {
+        return sumSquaredErrors(pImage1, pImage2, Double.POSITIVE_INFINITY)
+            / ((double) Image.NB_COLOR_CHANNEL * pImage1.getWidth() * pImage1.getHeight());
+    }
+
+    /**
+     * Returns the multi-scale SSIM of the luminance of the specified images. Fewer than 5 scales are used for small
+     * images.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeMsSsim(Image pImage1, Image pImage2) {
+        return msSsim(toLuminance(pImage1), toLuminance(pImage2), 255.0);
+    }
+
+    /**
+     * Returns the multi-scale SSIM of the luminance of the specified images. Fewer than 5 scales are used for small
+     * images.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeMsSsim(ImageProc pImage1, ImageProc pImage2) {
+        return msSsim(toLuminance(pImage1), toLuminance(pImage2), 1.0);
+    }
+
+    /**
+     * Returns the PSNR (in dB) over the color channels. Identical images give an infinite PSNR.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computePsnr(Image pImage1, Image pImage2) {
+        return mseToPsnr(computeMse(pImage1, pImage2), 255.0);
+    }
+
+    /**
+     * Returns the PSNR (in dB) over the color channels. Identical images give an infinite PSNR.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computePsnr(ImageProc pImage1, ImageProc pImage2) {
+        return mseToPsnr(computeMse(pImage1, pImage2), 1.0);
+    }
+
+    /**
+     * Returns the SSIM of the luminance of the specified images.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeSsim(Image pImage1, Image pImage2) {
+        return ssim(toLuminance(pImage1), toLuminance(pImage2), 255.0, Double.NaN)[0];
+    }
+
+    /**
+     * Returns the SSIM of the luminance of the specified images.
+     * @param pImage1
+     * @param pImage2
+     * @return
+     */
+    public static double computeSsim(ImageProc pImage1, ImageProc pImage2) {
+        return ssim(toLuminance(pImage1), toLuminance(pImage2), 1.0, Double.NaN)[0];
+    }
+
+    /**
+     * Returns true if the PSNR of the specified images is at least pMinPsnr. The computation stops as soon as the
+     * accumulated error exceeds the corresponding MSE.
+     * @param pImage1
+     * @param pImage2
+     * @param pMinPsnr
+     * @return
+     */
+    public static boolean isPsnrAbove(Image pImage1, Image pImage2, double pMinPsnr) {
+        double maxSum = psnrToMse(pMinPsnr, 255.0) * nbSamples(pImage1);
+        return sumSquaredErrors(pImage1, pImage2, maxSum) <= maxSum;
+    }
+
+    /**
+     * Returns true if the PSNR of the specified images is at least pMinPsnr. The computation stops as soon as the
+     * accumulated error exceeds the corresponding MSE.
+     * @param pImage1
+     * @param pImage2
+     * @param pMinPsnr
+     * @return
+     */
+    public static boolean isPsnrAbove(ImageProc pImage1, ImageProc pImage2, double pMinPsnr) {
+        double maxSum = psnrToMse(pMinPsnr, 1.0) * Image.NB_COLOR_CHANNEL * pImage1.getWidth()
+            * pImage1.getHeight();
+        return sumSquaredErrors(pImage1, pImage2, maxSum) <= maxSum;
+    }
+
+    /**
+     * Returns true if the SSIM of the specified images is at least pMinSsim. The computation stops as soon as the
+     * strips already processed decide the answer.
+     * @param pImage1
+     * @param pImage2
+     * @param pMinSsim
+     * @return
+     */
+    public static boolean isSsimAbove(Image pImage1, Image pImage2, double pMinSsim) {
+        return ssim(toLuminance(pImage1), toLuminance(pImage2), 255.0, pMinSsim)[0] >= pMinSsim;
+    }
+
+    /**
+     * Returns true if the SSIM of the specified images is at least pMinSsim. The computation stops as soon as the
+     * strips already processed decide the answer.
+     * @param pImage1
+     * @param pImage2
+     * @param pMinSsim
+     * @return
+     */
+    public static boolean isSsimAbove(ImageProc pImage1, ImageProc pImage2, double pMinSsim) {
+        return ssim(toLuminance(pImage1), toLuminance(pImage2), 1.0, pMinSsim)[0] >= pMinSsim;
+    }
+
+    /**
+     * Returns the plane downsampled by 2 (2x2 averages).
+     * @param pPlane
+     * @return
+     */
+    private static Plane downsample(Plane pPlane) {
+        int w = pPlane.width / 2;
+        int h = pPlane.height / 2;
+        float[] out = new float[w * h];
+        for (int i = 0; i < h; ++i) {
+            int r0 = 2 * i * pPlane.width;
+            int r1 = r0 + pPlane.width;
+            for (int j = 0; j < w; ++j) {
+                out[i * w + j] = 0.25f * (pPlane.data[r0 + 2 * j] + pPlane.data[r0 + 2 * j + 1]
+                    + pPlane.data[r1 + 2 * j] + pPlane.data[r1 + 2 * j + 1]);
+            }
+        }
+        return new Plane(out, w, h);
+    }
+
+    /**
+     * Returns the normalized 1D Gaussian window of the specified radius.
+     * @param pRadius
+     * @return
+     */
+    private static double[] gaussianWindow(int pRadius) {
+        double[] window = new double[2 * pRadius + 1];
+        double sum = 0.0;
+        for (int k = -pRadius; k <= pRadius; ++k) {
+            window[k + pRadius] = Math.exp(-k * k / (2.0 * SSIM_SIGMA * SSIM_SIGMA));
+            sum += window[k + pRadius];
+        }
+        for (int k = 0; k < window.length; ++k) {
+            window[k] /= sum;
+        }
+        return window;
+    }
+
+    /**
+     * Returns the multi-scale SSIM of the specified planes.
+     * @param pPlane1
+     * @param pPlane2
+     * @param pRange
+     * @return
+     */
+    private static double msSsim(Plane pPlane1, Plane pPlane2, double pRange) {
+        Plane p1 = pPlane1;
+        Plane p2 = pPlane2;
+        int nbScales = 1;
+        while (nbScales < MS_SSIM_WEIGHTS.length && Math.min(p1.width, p1.height) >> nbScales >= 2 * SSIM_RADIUS
+            + 1) {
+            nbScales++;
+        }
+        double weightSum = 0.0;
+        for (int s = 0; s < nbScales; ++s) {
+            weightSum += MS_SSIM_WEIGHTS[s];
+        }
+
+        double result = 1.0;
+        for (int s = 0; s < nbScales; ++s) {
+            double[] stats = ssim(p1, p2, pRange, Double.NaN);
+            double weight = MS_SSIM_WEIGHTS[s] / weightSum;
+            double value = s == nbScales - 1 ? stats[0] : stats[1];
+            result *= Math.pow(Math.max(0.0, value), weight);
+            if (s < nbScales - 1) {
+                p1 = downsample(p1);
+                p2 = downsample(p2);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts a MSE to a PSNR.
+     * @param pMse
+     * @param pRange
+     * @return
+     */
+    private static double mseToPsnr(double pMse, double pRange) {
+        return 10.0 * Math.log10(pRange * pRange / pMse);
+    }
+
+    /**
+     * Returns the number of color samples of the specified image.
+     * @param pImage
+     * @return
+     */
+    private static double nbSamples(Image pImage) {
+        return (double) Image.NB_COLOR_CHANNEL * pImage.getWidth() * pImage.getHeight();
+    }
+
+    /**
+     * Converts a PSNR to a MSE.
+     * @param pPsnr
+     * @param pRange
+     * @return
+     */
+    private static double psnrToMse(double pPsnr, double pRange) {
+        return pRange * pRange / Math.pow(10.0, pPsnr / 10.0);
+    }
+
+    /**
+     * Returns the mean SSIM and the mean contrast-structure term of the specified planes. If pThreshold is not NaN,
+     * the computation stops as soon as the mean SSIM is known to be above or below pThreshold (the returned value is
+     * then a bound on the correct side of the threshold).
+     * @param pPlane1
+     * @param pPlane2
+     * @param pRange
+     * @param pThreshold
+     * @return
+     */
+    private static double[] ssim(Plane pPlane1, Plane pPlane2, double pRange, double pThreshold) {
+        int w = pPlane1.width;
+        int h = pPlane1.height;
+        int radius = Math.max(0, Math.min(SSIM_RADIUS, (Math.min(w, h) - 1) / 2));
+        double[] window = gaussianWindow(radius);
+        int outW = w - 2 * radius;
+        int outH = h - 2 * radius;
+        double c1 = (0.01 * pRange) * (0.01 * pRange);
+        double c2 = (0.03 * pRange) * (0.03 * pRange);
+        double total = (double) outW * outH;
+        if (total <= 0) {
+            return new double[] { 1.0, 1.0 };
+        }
+
+        int nbStrips = (outH + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+        int batchSize = Double.isNaN(pThreshold) ? nbStrips : 2 * Runtime.getRuntime().availableProcessors();
+        double sumSsim = 0.0;
+        double sumCs = 0.0;
+        long nbDone = 0;
+        for (int b0 = 0; b0 < nbStrips; b0 += batchSize) {
+            int b1 = Math.min(nbStrips, b0 + batchSize);
+            double[][] results = IntStream.range(b0, b1).parallel()
+                .mapToObj(s -> ssimStrip(pPlane1, pPlane2, window, radius, c1, c2, s * STRIP_HEIGHT,
+                    Math.min(outH, (s + 1) * STRIP_HEIGHT)))
+                .toArray(double[][]::new);
+            for (double[] r : results) {
+                sumSsim += r[0];
+                sumCs += r[1];
+                nbDone += (long) r[2];
+            }
+            if (!Double.isNaN(pThreshold)) {
+                double remaining = total - nbDone;
+                if ((sumSsim + remaining) / total < pThreshold) {
+                    return new double[] { (sumSsim + remaining) / total, Double.NaN };
+                }
+                if ((sumSsim - remaining) / total >= pThreshold) {
+                    return new double[] { (sumSsim - remaining) / total, Double.NaN };
+                }
+            }
+        }
+        return new double[] { sumSsim / total, sumCs / total };
+    }
+
+    /**
+     * Computes the sums of the SSIM and contrast-structure maps over output rows pRow0 to pRow1 (exclusive). The five
+     * local statistics are filtered horizontally for all needed input rows, then vertically.
+     * @param pPlane1
+     * @param pPlane2
+     * @param pWindow
+     * @param pRadius
+     * @param pC1
+     * @param pC2
+     * @param pRow0
+     * @param pRow1
+     * @return sum of SSIM, sum of contrast-structure, number of pixels
+     */
+    private static double[] ssimStrip(Plane pPlane1, Plane pPlane2, double[] pWindow, int pRadius, double pC1,
+        double pC2, int pRow0, int pRow1) {
+        int w = pPlane1.width;
+        int outW = w - 2 * pRadius;
+        int size = 2 * pRadius + 1;
+        int nbIn = pRow1 - pRow0 + 2 * pRadius;
+        float[] x = pPlane1.data;
+        float[] y = pPlane2.data;
+
+        /* Horizontal pass: mu1, mu2, E[x^2], E[y^2], E[xy] for each input row of the strip. */
+        double[][] hor = new double[5][nbIn * outW];
+        for (int r = 0; r < nbIn; ++r) {
+            int rowOffset = (pRow0 + r) * w;
+            int outOffset = r * outW;
+            for (int j = 0; j < outW; ++j) {
+                double m1 = 0.0;
+                double m2 = 0.0;
+                double s11 = 0.0;
+                double s22 = 0.0;
+                double s12 = 0.0;
+                for (int k = 0; k < size; ++k) {
+                    double g = pWindow[k];
+                    double a = x[rowOffset + j + k];
+                    double b = y[rowOffset + j + k];
+                    m1 += g * a;
+                    m2 += g * b;
+                    s11 += g * a * a;
+                    s22 += g * b * b;
+                    s12 += g * a * b;
+                }
+                hor[0][outOffset + j] = m1;
+                hor[1][outOffset + j] = m2;
+                hor[2][outOffset + j] = s11;
+                hor[3][outOffset + j] = s22;
+                hor[4][outOffset + j] = s12;
+            }
+        }
+
+        /* Vertical pass and SSIM. */
+        double sumSsim = 0.0;
+        double sumCs = 0.0;
+        for (int i = 0; i < pRow1 - pRow0; ++i) {
+            for (int j = 0; j < outW; ++j) {
+                double m1 = 0.0;
+                double m2 = 0.0;
+                double s11 = 0.0;
+                double s22 = 0.0;
+                double s12 = 0.0;
+                for (int k = 0; k < size; ++k) {
+                    double g = pWindow[k];
+                    int idx = (i + k) * outW + j;
+                    m1 += g * hor[0][idx];
+                    m2 += g * hor[1][idx];
+                    s11 += g * hor[2][idx];
+                    s22 += g * hor[3][idx];
+                    s12 += g * hor[4][idx];
+                }
+                double var1 = s11 - m1 * m1;
+                double var2 = s22 - m2 * m2;
+                double cov = s12 - m1 * m2;
+                double cs = (2.0 * cov + pC2) / (var1 + var2 + pC2);
+                sumCs += cs;
+                sumSsim += cs * (2.0 * m1 * m2 + pC1) / (m1 * m1 + m2 * m2 + pC1);
+            }
+        }
+        return new double[] { sumSsim, sumCs, (double) (pRow1 - pRow0) * outW };
+    }
+
+    /**
+     * Returns the sum of squared errors over the color channels. The computation stops as soon as the sum exceeds
+     * pMaxSum (the returned value is then only known to be above pMaxSum).
+     * @param pImage1
+     * @param pImage2
+     * @param pMaxSum
+     * @return
+     */
+    private static double sumSquaredErrors(Image pImage1, Image pImage2, double pMaxSum) {
+        int w = pImage1.getWidth();
+        int h = pImage1.getHeight();
+        return sumByStrips(h, pMaxSum, (i0, i1) -> {
+            int[] row1 = new int[w];
+            int[] row2 = new int[w];
+            long sum = 0;
+            for (int i = i0; i < i1; ++i) {
+                pImage1.getRow(i, row1);
+                pImage2.getRow(i, row2);
+                for (int j = 0; j < w; ++j) {
+                    int a = row1[j];
+                    int b = row2[j];
+                    int dr = ((a >> 16) & 0xff) - ((b >> 16) & 0xff);
+                    int dg = ((a >> 8) & 0xff) - ((b >> 8) & 0xff);
+                    int db = (a & 0xff) - (b & 0xff);
+                    sum += dr * dr + dg * dg + db * db;
+                }
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Returns the sum of squared errors over the color channels. The computation stops as soon as the sum exceeds
+     * pMaxSum (the returned value is then only known to be above pMaxSum).
+     * @param pImage1
+     * @param pImage2
+     * @param pMaxSum
+     * @return
+     */
+    private static double sumSquaredErrors(ImageProc pImage1, ImageProc pImage2, double pMaxSum) {
+        int h = pImage1.getHeight();
+        double[][][] c1 = new double[Image.NB_COLOR_CHANNEL][][];
+        double[][][] c2 = new double[Image.NB_COLOR_CHANNEL][][];
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            c1[c] = pImage1.getChannel(c);
+            c2[c] = pImage2.getChannel(c);
+        }
+        return sumByStrips(h, pMaxSum, (i0, i1) -> {
+            double sum = 0.0;
+            for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+                for (int i = i0; i < i1; ++i) {
+                    double[] row1 = c1[c][i];
+                    double[] row2 = c2[c][i];
+                    for (int j = 0; j < row1.length; ++j) {
+                        double d = row1[j] - row2[j];
+                        sum += d * d;
+                    }
+                }
+            }
+            return sum;
+        });
+    }
+
+    /** Computes a partial sum over rows pRow0 to pRow1 (exclusive). */
+    private interface StripSum {
+
+        double sum(int pRow0, int pRow1);
+    }
+
+    /**
+     * Sums the partial sums of all strips of rows, in parallel batches, and stops as soon as the sum exceeds pMaxSum.
+     * @param pHeight
+     * @param pMaxSum
+     * @param pStripSum
+     * @return
+     */
+    private static double sumByStrips(int pHeight, double pMaxSum, StripSum pStripSum) {
+        int nbStrips = (pHeight + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+        int batchSize = Double.isInfinite(pMaxSum) ? Math.max(1, nbStrips)
+            : 2 * Runtime.getRuntime().availableProcessors();
+        double sum = 0.0;
+        for (int b0 = 0; b0 < nbStrips && sum <= pMaxSum; b0 += batchSize) {
+            int b1 = Math.min(nbStrips, b0 + batchSize);
+            sum += IntStream.range(b0, b1).parallel()
+                .mapToDouble(s -> pStripSum.sum(s * STRIP_HEIGHT, Math.min(pHeight, (s + 1) * STRIP_HEIGHT))).sum();
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the luminance plane (0-255 range) of the specified image.
+     * @param pImage
+     * @return
+     */
+    private static Plane toLuminance(Image pImage) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        float[] data = new float[w * h];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            int[] row = new int[w];
+            pImage.getRow(i, row);
+            for (int j = 0; j < w; ++j) {
+                int v = row[j];
+                data[i * w + j] = ImageUtils.rgbToGrayscale((float) ((v >> 16) & 0xff), (float) ((v >> 8) & 0xff),
+                    (float) (v & 0xff));
+            }
+        });
+        return new Plane(data, w, h);
+    }
+
+    /**
+     * Returns the luminance plane (0.0-1.0 range) of the specified image.
+     * @param pImage
+     * @return
+     */
+    private static Plane toLuminance(ImageProc pImage) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        double[][] r = pImage.getChannel(Image.CHANNEL_RED);
+        double[][] g = pImage.getChannel(Image.CHANNEL_GREEN);
+        double[][] b = pImage.getChannel(Image.CHANNEL_BLUE);
+        float[] data = new float[w * h];
+        for (int i = 0; i < h; ++i) {
+            for (int j = 0; j < w; ++j) {
+                data[i * w + j] = (float) ImageUtils.rgbToGrayscale(r[i][j], g[i][j], b[i][j]);
+            }
+        }
+        return new Plane(data, w, h);
+    }
+}
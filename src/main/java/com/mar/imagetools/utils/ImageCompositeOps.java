@@ -0,0 +1,274 @@
+package com.mar.imagetools.utils;
+
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+
+/**
+ * Alpha compositing of {@link Image} objects: the Porter-Duff operators and the common separable blend modes (W3C
+ * compositing definitions), computed on the packed ARGB values with fixed point premultiplied integer arithmetic
+ * (premultiplied channels are kept as 16-bit products, so no precision is lost on translucent pixels).<br/>
+ * The source is drawn onto the destination, which is modified in place. The source (or a region of it) can be placed
+ * anywhere on the destination and is clipped to it; only the covered rectangle of the destination is modified (bounded
+ * compositing), even for the operators which would clear the destination where the source is absent.
+ * @author mrenauld
+ */
+public class ImageCompositeOps {
+
+    /** Compositing operators and blend modes. */
+    public enum CompositeMode {
+        CLEAR, SRC, DST, SRC_OVER, DST_OVER, SRC_IN, DST_IN, SRC_OUT, DST_OUT, SRC_ATOP, DST_ATOP, XOR, PLUS,
+        MULTIPLY, SCREEN, OVERLAY, DARKEN, LIGHTEN
+    }
+
+    /** Minimum number of pixels for the rows to be processed in parallel. */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * Composites pSource onto pDestination (same position, clipped to the smallest size), in place.
+     * @param pDestination
+     * @param pSource
+     * @param pMode
+     */
+    public static void composite(Image pDestination, Image pSource, CompositeMode pMode) {
+        composite(pDestination, 0, 0, pSource, 0, 0, pSource.getWidth(), pSource.getHeight(), pMode);
+    }
+
+    /**
+     * Composites pSource onto pDestination with its top left corner at (pX, pY), in place.
+     * @param pDestination
+     * @param pX
+     * @param pY
+     * @param pSource
+     * @param pMode
+     */
+    public static void composite(Image pDestination, int pX, int pY, Image pSource, CompositeMode pMode) {
+        composite(pDestination, pX, pY, pSource, 0, 0, pSource.getWidth(), pSource.getHeight(), pMode);
+    }
+
+    /**
+     * Composites the region of pSource at (pSourceX, pSourceY) of size pWidth x pHeight onto pDestination with its
+     * top left corner at (pX, pY), in place. The region is clipped to both images.
+     * @param pDestination
+     * @param pX
+     * @param pY
+     * @param pSource
+     * @param pSourceX
+     * @param pSourceY
+     * @param pWidth
+     * @param pHeight
+     * @param pMode
+     */
+    public static void composite(Image pDestination, int pX, int pY, Image pSource, int pSourceX, int pSourceY,
+        int pWidth, int pHeight, CompositeMode pMode) {
+        /* Clip the region to the source, then to the destination. */
+        int sx = pSourceX;
+        int sy = pSourceY;
+        int dx = pX;
+        int dy = pY;
+        int w = pWidth;
+        int h = pHeight;
+        if (sx < 0) {
+            w += sx;
+            dx -= sx;
+            sx = 0;
+        }
+        if (sy < 0) {
+            h += sy;
+            dy -= sy;
+            sy = 0;
+        }
+        if (dx < 0) {
+            w += dx;
+            sx -= dx;
+            dx = 0;
+        }
+        if (dy < 0) {
+            h += dy;
+            sy -= dy;
+            dy = 0;
+        }
+        w = Math.min(w, Math.min(pSource.getWidth() - sx, pDestination.getWidth() - dx));
+        h = Math.min(h, Math.min(pSource.getHeight() - sy, pDestination.getHeight() - dy));
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+
+        int x0 = sx;
+        int y0 = sy;
+        int x1 = dx;
+        int y1 = dy;
+        int width = w;
+        IntStream rows = IntStream.range(0, h);
+        if ((long) w * h >= PARALLEL_THRESHOLD) {
+            rows = rows.parallel();
+        }
+        rows.forEach(i -> {
+            int[] src = new int[width];
+            int[] dst = new int[width];
+            pSource.getRow(y0 + i, x0, width, src);
+            pDestination.getRow(y1 + i, x1, width, dst);
+            for (int j = 0; j < width; ++j) {
+                dst[j] = compositePixel(src[j], dst[j], pMode);
+            }
+            pDestination.setRow(y1 + i, x1, width, dst);
+        });
+    }
+
+    /**
+     * Returns the composition of a source pixel onto a destination pixel (packed ARGB, not premultiplied).
+     * @param pSource
+     * @param pDestination
+     * @param pMode
+     * @return
+     */
+    public static int compositePixel(int pSource, int pDestination, CompositeMode pMode) {
+        int as = pSource >>> 24;
+        int ab = pDestination >>> 24;
+
+        /* Porter-Duff operators: result = Fa * source + Fb * destination. */
+        int fa;
+        int fb;
+        switch (pMode) {
+        case CLEAR:
+            return 0;
+        case SRC:
+            return pSource;
+        case DST:
+            return pDestination;
+        case SRC_OVER:
+            if (as == 255 || ab == 0) {
+                return pSource;
+            }
+            if (as == 0) {
+                return pDestination;
+            }
+            fa = 255;
+            fb = 255 - as;
+            break;
+        case DST_OVER:
+            fa = 255 - ab;
+            fb = 255;
+            break;
+        case SRC_IN:
+            fa = ab;
+            fb = 0;
+            break;
+        case DST_IN:
+            fa = 0;
+            fb = as;
+            break;
+        case SRC_OUT:
+            fa = 255 - ab;
+            fb = 0;
+            break;
+        case DST_OUT:
+            fa = 0;
+            fb = 255 - as;
+            break;
+        case SRC_ATOP:
+            fa = ab;
+            fb = 255 - as;
+            break;
+        case DST_ATOP:
+            fa = 255 - ab;
+            fb = as;
+            break;
+        case XOR:
+            fa = 255 - ab;
+            fb = 255 - as;
+            break;
+        case PLUS:
+            fa = 255;
+            fb = 255;
+            break;
+        default:
+            return blendPixel(pSource, pDestination, pMode);
+        }
+
+        /* Premultiplied channels are kept at 16-bit precision (value * alpha), output alpha is scaled by 255^2. */
+        int ao = fa * as + fb * ab;
+        if (ao == 0) {
+            return 0;
+        }
+        /* Only PLUS can overflow: the alpha and the premultiplied channels are then clamped to 1. */
+        ao = Math.min(255 * 255, ao);
+        int result = div255(ao) << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int sc = ((pSource >> shift) & 0xff) * as;
+            int dc = ((pDestination >> shift) & 0xff) * ab;
+            result |= unpremultiply(Math.min(255L * 255 * 255, (long) fa * sc + (long) fb * dc), ao) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the source pixel blended onto the destination pixel with a separable blend mode, composited with the
+     * source over operator: co = sc.(1 - ab) + dc.(1 - as) + as.ab.B(Cs, Cb) (premultiplied values).
+     * @param pSource
+     * @param pDestination
+     * @param pMode
+     * @return
+     */
+    private static int blendPixel(int pSource, int pDestination, CompositeMode pMode) {
+        int as = pSource >>> 24;
+        int ab = pDestination >>> 24;
+        /* Output alpha scaled by 255^2. */
+        int ao = 255 * (as + ab) - as * ab;
+        if (ao == 0) {
+            return 0;
+        }
+        int result = div255(ao) << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            /* Premultiplied channels scaled by 255^2, blended terms scaled by 255^3. */
+            long sc = ((pSource >> shift) & 0xff) * as;
+            long dc = ((pDestination >> shift) & 0xff) * ab;
+            long mixed;
+            switch (pMode) {
+            case MULTIPLY:
+                mixed = sc * dc / 255;
+                break;
+            case SCREEN:
+                mixed = sc * ab + dc * as - sc * dc / 255;
+                break;
+            case OVERLAY:
+                if (2 * dc <= 255 * ab) {
+                    mixed = 2 * sc * dc / 255;
+                }
+                else {
+                    mixed = 255L * as * ab - 2 * (255 * ab - dc) * (255 * as - sc) / 255;
+                }
+                break;
+            case DARKEN:
+                mixed = Math.min(sc * ab, dc * as);
+                break;
+            default:
+                mixed = Math.max(sc * ab, dc * as);
+                break;
+            }
+            result |= unpremultiply(sc * (255 - ab) + dc * (255 - as) + mixed, ao) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Returns pValue / 255, rounded (exact for 0 to 255 * 255).
+     * @param pValue
+     * @return
+     */
+    private static int div255(int pValue) {
+        int v = pValue + 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    /**
+     * Returns the channel value (0-255) of the premultiplied value pValue (scaled by 255^3) with alpha pAlpha (scaled
+     * by 255^2, not 0).
+     * @param pValue
+     * @param pAlpha
+     * @return
+     */
+    private static int unpremultiply(long pValue, int pAlpha) {
+        return (int) Math.max(0L, Math.min(255L, (pValue + pAlpha / 2) / pAlpha));
+    }
+}
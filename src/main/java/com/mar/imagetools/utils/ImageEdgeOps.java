@@ -0,0 +1,331 @@
+package com.mar.imagetools.utils;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.BinaryImage;
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageGradient;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Gradient and edge detection operations on the luminance of an image (a single plane, instead of the three channels).
+ * <br/>
+ * The derivative operators are separable: both derivatives are computed in one fused pass, a horizontal pass (smoothing
+ * and derivative of each row) followed by a vertical pass combining three rows, which directly writes the magnitude and
+ * the orientation. The image is processed in parallel by strips of rows, each strip only keeping its own rows of
+ * intermediate values. Borders are clamped to the edge.
+ * @author mrenauld
+ */
+public class ImageEdgeOps {
+
+    /** Derivative operators, defined by their smoothing weights (a, b, a). */
+    public enum GradientOperator {
+        SOBEL(1.0, 2.0), SCHARR(3.0, 10.0);
+
+        private final double side;
+
+        private final double center;
+
+        private GradientOperator(double pSide, double pCenter) {
+            side = pSide;
+            center = pCenter;
+        }
+    }
+
+    /** Reads a row of the plane whose gradient is computed. */
+    private interface RowReader {
+
+        void read(int pY, double[] pRow);
+    }
+
+    /** Number of rows of the strips processed in parallel. */
+    private static final int STRIP_HEIGHT = 32;
+
+    /** States of the pixels during the Canny hysteresis (0 for the other pixels). */
+    private static final byte WEAK = 1;
+
+    private static final byte STRONG = 2;
+
+    /**
+     * Returns the edges of the specified image found by the Canny detector: the luminance is smoothed by a Gaussian of
+     * standard deviation pSigma (no smoothing if pSigma is 0), the Sobel gradient magnitude is thinned by non-maximum
+     * suppression, and the remaining pixels are kept if their magnitude is above pHighThreshold, or above
+     * pLowThreshold and 8-connected to such a pixel (hysteresis).
+     * @param pImage
+     * @param pSigma
+     * @param pLowThreshold
+     * @param pHighThreshold
+     * @return
+     */
+    public static BinaryImage applyCanny(ImageProc pImage, double pSigma, double pLowThreshold,
+        double pHighThreshold) {
+        return applyCanny(getLuminance(pImage), pSigma, pLowThreshold, pHighThreshold);
+    }
+
+    /**
+     * Returns the edges of the specified plane (height x width) found by the Canny detector (see
+     * {@link #applyCanny(ImageProc, double, double, double)}).
+     * @param pPlane
+     * @param pSigma
+     * @param pLowThreshold
+     * @param pHighThreshold
+     * @return
+     */
+    public static BinaryImage applyCanny(double[][] pPlane, double pSigma, double pLowThreshold,
+        double pHighThreshold) {
+        if (pLowThreshold > pHighThreshold) {
+            throw new IllegalArgumentException("The low threshold must not be above the high threshold");
+        }
+        int h = pPlane.length;
+        int w = h > 0 ? pPlane[0].length : 0;
+        double[][] plane = pSigma > 0.0 ? smooth(pPlane, pSigma) : pPlane;
+        ImageGradient gradient = computeGradient(plane, GradientOperator.SOBEL);
+        double[][] magnitude = gradient.getMagnitude();
+        double[][] orientation = gradient.getOrientation();
+
+        /* Non-maximum suppression along the gradient direction (quantized to 4 directions) and double threshold. */
+        byte[][] states = new byte[h][w];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            for (int j = 0; j < w; ++j) {
+                double m = magnitude[i][j];
+                if (m < pLowThreshold || m == 0.0) {
+                    continue;
+                }
+                double angle = orientation[i][j];
+                if (angle < 0.0) {
+                    angle += Math.PI;
+                }
+                int di;
+                int dj;
+                if (angle < Math.PI / 8 || angle >= 7 * Math.PI / 8) {
+                    di = 0;
+                    dj = 1;
+                }
+                else if (angle < 3 * Math.PI / 8) {
+                    di = 1;
+                    dj = 1;
+                }
+                else if (angle < 5 * Math.PI / 8) {
+                    di = 1;
+                    dj = 0;
+                }
+                else {
+                    di = 1;
+                    dj = -1;
+                }
+                /* Ties are broken on one side only, so that plateaus keep one pixel. */
+                if (m >= getMagnitude(magnitude, i - di, j - dj, w, h) && m > getMagnitude(magnitude, i + di, j + dj,
+                    w, h)) {
+                    states[i][j] = m >= pHighThreshold ? STRONG : WEAK;
+                }
+            }
+        });
+
+        /* Hysteresis: weak pixels connected to a strong pixel become strong. */
+        int[] stack = new int[64];
+        int size = 0;
+        for (int i = 0; i < h; ++i) {
+            for (int j = 0; j < w; ++j) {
+                if (states[i][j] != STRONG) {
+                    continue;
+                }
+                stack[size++] = i * w + j;
+                while (size > 0) {
+                    int p = stack[--size];
+                    int pi = p / w;
+                    int pj = p % w;
+                    for (int ni = Math.max(0, pi - 1); ni <= Math.min(h - 1, pi + 1); ++ni) {
+                        for (int nj = Math.max(0, pj - 1); nj <= Math.min(w - 1, pj + 1); ++nj) {
+                            if (states[ni][nj] == WEAK) {
+                                states[ni][nj] = STRONG;
+                                if (size == stack.length) {
+                                    stack = Arrays.copyOf(stack, 2 * size);
+                                }
+                                stack[size++] = ni * w + nj;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        BinaryImage edges = new BinaryImage(w, h);
+        IntStream.range(0, h).parallel().forEach(i -> {
+            for (int j = 0; j < w; ++j) {
+                if (states[i][j] == STRONG) {
+                    edges.set(j, i, true);
+                }
+            }
+        });
+        return edges;
+    }
+
+    /**
+     * Returns the gradient of the luminance of the specified image, computed with the specified operator. The
+     * derivatives are normalized so that a ramp of slope 1 has a magnitude of 1.
+     * @param pImage
+     * @param pOperator
+     * @return
+     */
+    public static ImageGradient computeGradient(ImageProc pImage, GradientOperator pOperator) {
+        return computeGradient(pImage.getWidth(), pImage.getHeight(), pOperator, (y, row) -> readLuminanceRow(
+            pImage, y, row));
+    }
+
+    /**
+     * Returns the gradient of the specified plane (height x width), computed with the specified operator (see
+     * {@link #computeGradient(ImageProc, GradientOperator)}).
+     * @param pPlane
+     * @param pOperator
+     * @return
+     */
+    public static ImageGradient computeGradient(double[][] pPlane, GradientOperator pOperator) {
+        int h = pPlane.length;
+        int w = h > 0 ? pPlane[0].length : 0;
+        return computeGradient(w, h, pOperator, (y, row) -> System.arraycopy(pPlane[y], 0, row, 0, w));
+    }
+
+    /**
+     * Computes the gradient of a plane read row by row, by strips of rows in parallel.
+     * @param pWidth
+     * @param pHeight
+     * @param pOperator
+     * @param pReader
+     * @return
+     */
+    private static ImageGradient computeGradient(int pWidth, int pHeight, GradientOperator pOperator,
+        RowReader pReader) {
+        int w = pWidth;
+        int h = pHeight;
+        double[][] magnitude = new double[h][w];
+        double[][] orientation = new double[h][w];
+        double a = pOperator.side;
+        double b = pOperator.center;
+        double norm = 1.0 / (2.0 * (2.0 * a + b));
+        int nbStrips = (h + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+        IntStream.range(0, nbStrips).parallel().forEach(s -> {
+            int y0 = s * STRIP_HEIGHT;
+            int y1 = Math.min(h, y0 + STRIP_HEIGHT);
+            /* Horizontal pass on the rows of the strip and on one row above and below (clamped). */
+            int n = y1 - y0 + 2;
+            double[][] smoothed = new double[n][w];
+            double[][] derived = new double[n][w];
+            double[] row = new double[w];
+            for (int k = 0; k < n; ++k) {
+                pReader.read(Math.max(0, Math.min(h - 1, y0 - 1 + k)), row);
+                double[] sr = smoothed[k];
+                double[] dr = derived[k];
+                for (int j = 0; j < w; ++j) {
+                    double left = row[Math.max(0, j - 1)];
+                    double right = row[Math.min(w - 1, j + 1)];
+                    sr[j] = a * (left + right) + b * row[j];
+                    dr[j] = right - left;
+                }
+            }
+            /* Vertical pass: gx = smoothing of the horizontal derivatives, gy = derivative of the smoothed rows. */
+            for (int i = y0; i < y1; ++i) {
+                int k = i - y0 + 1;
+                double[] mr = magnitude[i];
+                double[] or = orientation[i];
+                for (int j = 0; j < w; ++j) {
+                    double gx = (a * (derived[k - 1][j] + derived[k + 1][j]) + b * derived[k][j]) * norm;
+                    double gy = (smoothed[k + 1][j] - smoothed[k - 1][j]) * norm;
+                    mr[j] = Math.sqrt(gx * gx + gy * gy);
+                    or[j] = Math.atan2(gy, gx);
+                }
+            }
+        });
+        return new ImageGradient(magnitude, orientation);
+    }
+
+    /**
+     * Returns the magnitude at the specified pixel, or 0 outside of the image.
+     * @param pMagnitude
+     * @param pY
+     * @param pX
+     * @param pWidth
+     * @param pHeight
+     * @return
+     */
+    private static double getMagnitude(double[][] pMagnitude, int pY, int pX, int pWidth, int pHeight) {
+        if (pX < 0 || pY < 0 || pX >= pWidth || pY >= pHeight) {
+            return 0.0;
+        }
+        return pMagnitude[pY][pX];
+    }
+
+    /**
+     * Returns the luminance plane of the specified image.
+     * @param pImage
+     * @return
+     */
+    private static double[][] getLuminance(ImageProc pImage) {
+        double[][] plane = new double[pImage.getHeight()][pImage.getWidth()];
+        IntStream.range(0, plane.length).parallel().forEach(i -> readLuminanceRow(pImage, i, plane[i]));
+        return plane;
+    }
+
+    /**
+     * Reads the luminance of the specified row of the image into pRow.
+     * @param pImage
+     * @param pY
+     * @param pRow
+     */
+    private static void readLuminanceRow(ImageProc pImage, int pY, double[] pRow) {
+        int w = pImage.getWidth();
+        double[] red = new double[w];
+        double[] green = new double[w];
+        pImage.getRow(Image.CHANNEL_RED, pY, red);
+        pImage.getRow(Image.CHANNEL_GREEN, pY, green);
+        pImage.getRow(Image.CHANNEL_BLUE, pY, pRow);
+        for (int j = 0; j < w; ++j) {
+            pRow[j] = ImageUtils.rgbToGrayscale(red[j], green[j], pRow[j]);
+        }
+    }
+
+    /**
+     * Returns the plane smoothed by a separable Gaussian of standard deviation pSigma (radius 3 sigma).
+     * @param pPlane
+     * @param pSigma
+     * @return
+     */
+    private static double[][] smooth(double[][] pPlane, double pSigma) {
+        int h = pPlane.length;
+        int w = h > 0 ? pPlane[0].length : 0;
+        int radius = (int) Math.ceil(3.0 * pSigma);
+        double[] weights = new double[2 * radius + 1];
+        double sum = 0.0;
+        for (int k = -radius; k <= radius; ++k) {
+            weights[k + radius] = Math.exp(-k * k / (2.0 * pSigma * pSigma));
+            sum += weights[k + radius];
+        }
+        for (int k = 0; k < weights.length; ++k) {
+            weights[k] /= sum;
+        }
+        double[][] horizontal = new double[h][w];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            double[] in = pPlane[i];
+            double[] out = horizontal[i];
+            for (int j = 0; j < w; ++j) {
+                double v = 0.0;
+                for (int k = -radius; k <= radius; ++k) {
+                    v += weights[k + radius] * in[Math.max(0, Math.min(w - 1, j + k))];
+                }
+                out[j] = v;
+            }
+        });
+        double[][] smoothed = new double[h][w];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            double[] out = smoothed[i];
+            for (int k = -radius; k <= radius; ++k) {
+                double[] in = horizontal[Math.max(0, Math.min(h - 1, i + k))];
+                double weight = weights[k + radius];
+                for (int j = 0; j < w; ++j) {
+                    out[j] += weight * in[j];
+                }
+            }
+        });
+        return smoothed;
+    }
+}
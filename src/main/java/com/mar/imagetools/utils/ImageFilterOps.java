@@ -1,13 +1,244 @@
 package com.mar.imagetools.utils;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
 import com.mar.algotools.matrix.Kernel;
 import com.mar.algotools.matrix.MatrixUtils;
 import com.mar.algotools.signalprocessing.GaussianFactory;
 import com.mar.imagetools.objects.Image;
 import com.mar.imagetools.objects.ImageProc;
+import com.mar.imagetools.objects.KernelField;
+import com.mar.imagetools.objects.OffHeapImageProc;
+import com.mar.imagetools.objects.SeparableKernel;
 
 public class ImageFilterOps {
 
+    /**
+     * The pixels of a strip using the same kernel in the varying kernel filter: their row span, the list of their
+     * columns, and for each pixel its row and the index of its column in the list.
+     */
+    private static class KernelPixels {
+
+        private int minRow = Integer.MAX_VALUE;
+
+        private int maxRow = -1;
+
+        private int nbPixels = 0;
+
+        private int[] rows = new int[16];
+
+        private int[] columnIndices = new int[16];
+
+        private int nbColumns = 0;
+
+        private int[] columns = new int[16];
+
+        /** Index of each column of the image in the list, or -1. */
+        private final int[] columnIndex;
+
+        private KernelPixels(int pWidth) {
+            columnIndex = new int[pWidth];
+            Arrays.fill(columnIndex, -1);
+        }
+
+        /**
+         * Adds a pixel to the group.
+         *
+         * @param pRow
+         * @param pColumn
+         */
+        private void add(int pRow, int pColumn) {
+            minRow = Math.min(minRow, pRow);
+            maxRow = Math.max(maxRow, pRow);
+            if (columnIndex[pColumn] < 0) {
+                if (nbColumns == columns.length) {
+                    columns = Arrays.copyOf(columns, 2 * nbColumns);
+                }
+                columnIndex[pColumn] = nbColumns;
+                columns[nbColumns++] = pColumn;
+            }
+            if (nbPixels == rows.length) {
+                rows = Arrays.copyOf(rows, 2 * nbPixels);
+                columnIndices = Arrays.copyOf(columnIndices, 2 * nbPixels);
+            }
+            rows[nbPixels] = pRow;
+            columnIndices[nbPixels++] = columnIndex[pColumn];
+        }
+    }
+
+    /** Reads a row of a channel. */
+    private interface RowReader {
+
+        void read(int pY, double[] pRow);
+    }
+
+    /** Writes a row of a channel. */
+    private interface RowWriter {
+
+        void write(int pY, double[] pRow);
+    }
+
+    /**
+     * Computes the rows pY0 to pY1 - 1 of a channel of an off-heap image into pOut, from the rows pFirstRow to
+     * pFirstRow + pRows.length - 1 of the source channel (the strip and its halo, within the image).
+     */
+    private interface StripFilter {
+
+        void apply(int pChannelId, double[][] pRows, int pFirstRow, int pY0, int pY1, double[][] pOut);
+    }
+
+    /** Number of entries of the range weight lookup table of the bilateral filter. */
+    private static final int BILATERAL_RANGE_LUT_SIZE = 4096;
+
+    /** Number of grid cells added on each side of the bilateral grid. */
+    private static final int BILATERAL_GRID_PADDING = 2;
+
+    /**
+     * Relative error below which a kernel is applied as separable by
+     * {@link #applyKernelFilter(ImageProc, double[][])}.
+     */
+    private static final double SEPARABILITY_TOLERANCE = 1e-9;
+
+    /** Number of rows per strip processed by a single task of the varying kernel filter. */
+    private static final int VARYING_KERNEL_STRIP_HEIGHT = 32;
+
+    /** Number of rows of the strips of off-heap images processed in parallel. */
+    private static final int OFF_HEAP_STRIP_HEIGHT = 32;
+
+    /**
+     * Returns an image smoothed with a bilateral filter of size 2*pK+1 x 2*pK+1, computed exactly on each color
+     * channel. The spatial weights and the range weights are precomputed in lookup tables, so no exponential is
+     * evaluated per pixel. Rows are processed in parallel.<br/>
+     * The range lookup table is scaled on the value range of each channel. For a view, this range is taken from the
+     * view and its halo only, so the result may differ slightly from the same region of the filtered parent image; use
+     * {@link #applyBilateralFilter(ImageProc, int, double, double, double, double)} with a common range to get the
+     * same result.
+     *
+     * @param pImageProc
+     * @param pK
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @return
+     */
+    public static ImageProc applyBilateralFilter(ImageProc pImageProc, int pK, double pSigmaSpatial,
+            double pSigmaRange) {
+        return applyWithHalo(pImageProc, pK, image -> bilateralFilter(image, pK, pSigmaSpatial, pSigmaRange, null));
+    }
+
+    /**
+     * Returns an image smoothed with an exact bilateral filter (see
+     * {@link #applyBilateralFilter(ImageProc, int, double, double)}), with the range lookup table scaled on the
+     * specified value range for all channels (values outside of the range are treated as the nearest bound). With the
+     * same range, a view gives the same result as the same region of the filtered parent image.
+     *
+     * @param pImageProc
+     * @param pK
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @param pMin
+     * @param pMax
+     * @return
+     */
+    public static ImageProc applyBilateralFilter(ImageProc pImageProc, int pK, double pSigmaSpatial,
+            double pSigmaRange, double pMin, double pMax) {
+        double[][] minMax = getMinMax(pMin, pMax);
+        return applyWithHalo(pImageProc, pK, image -> bilateralFilter(image, pK, pSigmaSpatial, pSigmaRange, minMax));
+    }
+
+    /**
+     * Returns an off-heap image smoothed with an exact bilateral filter (see
+     * {@link #applyBilateralFilter(ImageProc, int, double, double)}), with a buffer from the pool of pImage. The image
+     * is processed by strips of rows in parallel, each strip reading only its rows and a halo of pK rows, so no heap
+     * copy of the image is made.
+     *
+     * @param pImage
+     * @param pK
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @return
+     */
+    public static OffHeapImageProc applyBilateralFilter(OffHeapImageProc pImage, int pK, double pSigmaSpatial,
+            double pSigmaRange) {
+        int h = pImage.getHeight();
+        double[] spatialLut = getSpatialLut(pK, pSigmaSpatial);
+        double[][] minMax = new double[Image.NB_COLOR_CHANNEL][];
+        double[][] rangeLuts = new double[Image.NB_COLOR_CHANNEL][];
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            minMax[c] = getMinMax(pImage, c);
+            rangeLuts[c] = getRangeLut(minMax[c], pSigmaRange);
+        }
+        return filterByStrips(pImage, pK, (c, rows, first, y0, y1, out) -> {
+            double lutScale = getRangeLutScale(minMax[c]);
+            for (int i = y0; i < y1; ++i) {
+                bilateralRow(rows, first, i, h, pK, spatialLut, rangeLuts[c], lutScale, out[i - y0]);
+            }
+        });
+    }
+
+    /**
+     * Returns an image smoothed with a fast approximation of the bilateral filter (bilateral grid, Paris and Durand).
+     * For each color channel, the pixels are accumulated in a coarse 3D grid (x, y, value) with cells of size
+     * pSigmaSpatial x pSigmaSpatial x pSigmaRange, the grid is blurred, and the result is read back with trilinear
+     * interpolation. The cost is linear in the number of pixels and does not depend on pSigmaSpatial.<br/>
+     * The grid cells are aligned on the parent image coordinates and on the multiples of pSigmaRange, so a view gives
+     * the same result as the same region of the filtered parent image, from the view and its halo only.
+     *
+     * @param pImageProc
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @return
+     */
+    public static ImageProc applyFastBilateralFilter(ImageProc pImageProc, double pSigmaSpatial,
+            double pSigmaRange) {
+        if (!pImageProc.isView()) {
+            return fastBilateralFilter(pImageProc, pSigmaSpatial, pSigmaRange, 0, 0);
+        }
+        /* A pixel depends on the pixels within 3.5 cells. */
+        int margin = (int) Math.ceil(3.5 * pSigmaSpatial) + 1;
+        int originX = pImageProc.getOffsetX() - Math.min(margin, pImageProc.getOffsetX());
+        int originY = pImageProc.getOffsetY() - Math.min(margin, pImageProc.getOffsetY());
+        return applyWithHalo(pImageProc, margin, image -> fastBilateralFilter(image, pSigmaSpatial, pSigmaRange,
+                originX, originY));
+    }
+
+    /**
+     * Returns an off-heap image smoothed with a fast approximation of the bilateral filter (see
+     * {@link #applyFastBilateralFilter(ImageProc, double, double)}), with a buffer from the pool of pImage. The rows are
+     * read twice (splat, then slice) and the filtered rows are written directly, so only the grid and a row are held
+     * on the heap.
+     *
+     * @param pImage
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @return
+     */
+    public static OffHeapImageProc applyFastBilateralFilter(OffHeapImageProc pImage, double pSigmaSpatial,
+            double pSigmaRange) {
+        int h = pImage.getHeight();
+        int w = pImage.getWidth();
+        OffHeapImageProc filteredImage = new OffHeapImageProc(w, h, pImage.getPool());
+        if (h == 0 || w == 0) {
+            return filteredImage;
+        }
+        try {
+            for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+                int channel = c;
+                bilateralGrid(w, h, (y, row) -> pImage.getRow(channel, y, row),
+                        (y, row) -> filteredImage.setRow(channel, y, row), pSigmaSpatial, pSigmaRange,
+                        getMinMax(pImage, c), 0, 0);
+            }
+        } catch (RuntimeException | Error e) {
+            filteredImage.close();
+            throw e;
+        }
+        return filteredImage;
+    }
+
     /**
      * Returns an image blurred with a Gaussian filter of size 2*pK+1 x 2*pK+1
      * and with specified sigma.
@@ -18,6 +249,9 @@ public class ImageFilterOps {
      * @return
      */
     public static ImageProc applyGaussianFilter(ImageProc pImageProc, int pK, double pSigma) {
+        if (pImageProc.isView()) {
+            return applyWithHalo(pImageProc, pK, image -> applyGaussianFilter(image, pK, pSigma));
+        }
         ImageProc blurredImage = new ImageProc(pImageProc.getWidth(), pImageProc.getHeight());
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             double[][] channel = pImageProc.getChannel(c);
@@ -28,22 +262,89 @@ public class ImageFilterOps {
     }
 
     /**
-     * Returns an image filtered using the specified kernel.
+     * Returns an off-heap image blurred with a Gaussian filter of size 2*pK+1 x 2*pK+1 and with specified sigma, with a
+     * buffer from the pool of pImage. The normalized Gaussian kernel is applied as a row pass and a column pass, with
+     * the image borders extended with the edge values, by strips of rows in parallel (each strip reading only its rows
+     * and a halo of pK rows), so no heap copy of the image is made.
+     *
+     * @param pImage
+     * @param pK
+     * @param pSigma
+     * @return
+     */
+    public static OffHeapImageProc applyGaussianFilter(OffHeapImageProc pImage, int pK, double pSigma) {
+        int h = pImage.getHeight();
+        double[] weights = getGaussianWeights(pK, pSigma);
+        return filterByStrips(pImage, pK, (c, rows, first, y0, y1, out) -> gaussianStrip(rows, first, y0, y1, h,
+                weights, out));
+    }
+
+    /**
+     * Returns an image filtered using the specified kernel. A separable kernel (rank one, within
+     * SEPARABILITY_TOLERANCE) is detected automatically and applied as a row kernel followed by a column kernel, with
+     * the same border handling as the 2D convolution (which is separable for a rank one kernel).
      *
      * @param pImageProc
      * @param pKernel
      * @return
      */
     public static ImageProc applyKernelFilter(ImageProc pImageProc, double[][] pKernel) {
+        if (pImageProc.isView()) {
+            return applyWithHalo(pImageProc, Math.max(pKernel.length, pKernel[0].length),
+                    image -> applyKernelFilter(image, pKernel));
+        }
+        double[][] rowKernel = null;
+        double[][] columnKernel = null;
+        if (pKernel.length > 1 && pKernel[0].length > 1) {
+            SeparableKernel kernel = SeparableKernel.decompose(pKernel, SEPARABILITY_TOLERANCE);
+            if (kernel.getRank() == 1) {
+                rowKernel = new double[][] { kernel.getHorizontal(0) };
+                double[] vertical = kernel.getVertical(0);
+                columnKernel = new double[vertical.length][1];
+                for (int y = 0; y < vertical.length; ++y) {
+                    columnKernel[y][0] = vertical[y];
+                }
+            }
+        }
         ImageProc filteredImage = new ImageProc(pImageProc.getWidth(), pImageProc.getHeight());
         for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
             double[][] channel = pImageProc.getChannel(c);
-            channel = MatrixUtils.convolution(channel, pKernel, true);
+            if (rowKernel != null) {
+                channel = MatrixUtils.convolution(MatrixUtils.convolution(channel, rowKernel, true), columnKernel,
+                        true);
+            } else {
+                channel = MatrixUtils.convolution(channel, pKernel, true);
+            }
             filteredImage.setChannel(c, channel);
         }
         return filteredImage;
     }
 
+    /**
+     * Returns an image filtered using the specified kernel, decomposed into separable terms (see
+     * {@link SeparableKernel#decompose(double[][], double)}): a separable kernel is applied exactly with one
+     * horizontal and one vertical pass, other kernels with one pair of passes per term kept within pTolerance. The
+     * kernel is flipped (convolution), its center is (height / 2, width / 2), and the image borders are extended with
+     * the edge values. Rows are processed in parallel.
+     *
+     * @param pImageProc
+     * @param pKernel
+     * @param pTolerance
+     * @return
+     */
+    public static ImageProc applyKernelFilter(ImageProc pImageProc, double[][] pKernel, double pTolerance) {
+        if (pImageProc.isView()) {
+            return applyWithHalo(pImageProc, Math.max(pKernel.length, pKernel[0].length),
+                    image -> applyKernelFilter(image, pKernel, pTolerance));
+        }
+        SeparableKernel kernel = SeparableKernel.decompose(pKernel, pTolerance);
+        ImageProc filteredImage = new ImageProc(pImageProc.getWidth(), pImageProc.getHeight());
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            filteredImage.setChannel(c, separableConvolution(pImageProc.getChannel(c), kernel));
+        }
+        return filteredImage;
+    }
+
     /**
      * Returns an image sharpened with unsharp masking.
      *
@@ -70,6 +371,33 @@ public class ImageFilterOps {
         return sharp;
     }
 
+    /**
+     * Returns an off-heap image sharpened with unsharp masking (see
+     * {@link #applyUnsharpMasking(ImageProc, int, double, double)}), with a buffer from the pool of pImage. The blur
+     * (see {@link #applyGaussianFilter(OffHeapImageProc, int, double)}) and the sharpening are computed in the same
+     * pass, by strips of rows in parallel, so no heap copy of the image is made.
+     *
+     * @param pImage
+     * @param pK
+     * @param pSigma
+     * @param pCoef
+     * @return
+     */
+    public static OffHeapImageProc applyUnsharpMasking(OffHeapImageProc pImage, int pK, double pSigma, double pCoef) {
+        int h = pImage.getHeight();
+        double[] weights = getGaussianWeights(pK, pSigma);
+        return filterByStrips(pImage, pK, (c, rows, first, y0, y1, out) -> {
+            gaussianStrip(rows, first, y0, y1, h, weights, out);
+            for (int i = y0; i < y1; ++i) {
+                double[] row = rows[i - first];
+                double[] sharp = out[i - y0];
+                for (int j = 0; j < row.length; ++j) {
+                    sharp[j] = row[j] + (row[j] - sharp[j]) * pCoef;
+                }
+            }
+        });
+    }
+
     /**
      * Returns an image filtered using the specified kernel.
      * 
@@ -87,4 +415,658 @@ public class ImageFilterOps {
         return filteredImage;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns an image filtered with a spatially varying kernel. The kernel parameter of each pixel is quantised to a
+     * multiple of pQuantum, and the kernel of each quantised value is decomposed once into separable terms (within
+     * pTolerance, see {@link SeparableKernel#decompose(double[][], double)}) and cached. Within each strip of rows,
+     * the pixels are grouped by kernel, and the horizontal passes of a kernel are computed only on the rows and columns
+     * needed by its pixels, and the vertical passes only on its pixels: the cost per pixel is a few times the kernel
+     * size where the kernel is constant over areas, and at most the square of the size where it changes on every
+     * row. Same conventions as
+     * {@link #applyKernelFilter(ImageProc, double[][], double)}; strips are processed in parallel, so pField must be
+     * thread-safe.
+     *
+     * @param pImageProc
+     * @param pField
+     * @param pQuantum
+     * @param pTolerance
+     * @return
+     */
+    public static ImageProc applyVaryingKernelFilter(ImageProc pImageProc, KernelField pField, double pQuantum,
+            double pTolerance) {
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        double[][][] in = new double[Image.NB_COLOR_CHANNEL][][];
+        double[][][] out = new double[Image.NB_COLOR_CHANNEL][h][w];
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            in[c] = pImageProc.getChannel(c);
+        }
+
+        long[][] keys = new long[h][w];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            for (int j = 0; j < w; ++j) {
+                keys[i][j] = Math.round(pField.getParameter(j, i) / pQuantum);
+            }
+        });
+        Map<Long, SeparableKernel> cache = new ConcurrentHashMap<>();
+
+        int nbStrips = (h + VARYING_KERNEL_STRIP_HEIGHT - 1) / VARYING_KERNEL_STRIP_HEIGHT;
+        IntStream.range(0, nbStrips).parallel().forEach(s -> {
+            int i0 = s * VARYING_KERNEL_STRIP_HEIGHT;
+            int i1 = Math.min(h, i0 + VARYING_KERNEL_STRIP_HEIGHT);
+
+            /* Pixels of each kernel in the strip, with their row span and their columns. */
+            Map<Long, KernelPixels> groups = new HashMap<>();
+            for (int i = i0; i < i1; ++i) {
+                for (int j = 0; j < w; ++j) {
+                    groups.computeIfAbsent(keys[i][j], k -> new KernelPixels(w)).add(i, j);
+                }
+            }
+
+            for (Map.Entry<Long, KernelPixels> entry : groups.entrySet()) {
+                long key = entry.getKey();
+                KernelPixels pixels = entry.getValue();
+                SeparableKernel kernel = cache.computeIfAbsent(key,
+                        k -> SeparableKernel.decompose(pField.getKernel(k * pQuantum), pTolerance));
+                int kh = kernel.getHeight();
+                int kw = kernel.getWidth();
+                int cy = kh / 2;
+                int cx = kw / 2;
+                /* Input rows needed by the vertical pass on the rows of the group, and columns of the group. */
+                int r0 = pixels.minRow + cy - kh + 1;
+                int r1 = pixels.maxRow + cy + 1;
+                int nbColumns = pixels.nbColumns;
+                int[] columns = pixels.columns;
+                double[] tmp = new double[(r1 - r0) * nbColumns];
+                for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+                    for (int t = 0; t < kernel.getRank(); ++t) {
+                        double[] hor = kernel.getHorizontal(t);
+                        double[] ver = kernel.getVertical(t);
+                        for (int r = r0; r < r1; ++r) {
+                            double[] row = in[c][Math.min(h - 1, Math.max(0, r))];
+                            int offset = (r - r0) * nbColumns;
+                            for (int k = 0; k < nbColumns; ++k) {
+                                int j = columns[k];
+                                double sum = 0.0;
+                                for (int x = 0; x < kw; ++x) {
+                                    sum += hor[x] * row[Math.min(w - 1, Math.max(0, j - x + cx))];
+                                }
+                                tmp[offset + k] = sum;
+                            }
+                        }
+                        for (int p = 0; p < pixels.nbPixels; ++p) {
+                            int i = pixels.rows[p];
+                            int k = pixels.columnIndices[p];
+                            double sum = 0.0;
+                            for (int y = 0; y < kh; ++y) {
+                                sum += ver[y] * tmp[(i - y + cy - r0) * nbColumns + k];
+                            }
+                            out[c][i][columns[k]] += sum;
+                        }
+                    }
+                }
+            }
+        });
+
+        ImageProc filteredImage = new ImageProc(w, h);
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            filteredImage.setChannel(c, out[c]);
+        }
+        return filteredImage;
+    }
+
+    /**
+     * Returns the root mean square error of the fast bilateral filter
+     * ({@link #applyFastBilateralFilter(ImageProc, double, double)}) relative to the exact one
+     * ({@link #applyBilateralFilter(ImageProc, int, double, double)}) on the specified image, over all color
+     * channels. The exact filter uses a window of size 2*pK+1 x 2*pK+1.
+     *
+     * @param pImageProc
+     * @param pK
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @return
+     */
+    public static double computeBilateralApproximationError(ImageProc pImageProc, int pK, double pSigmaSpatial,
+            double pSigmaRange) {
+        ImageProc exact = applyBilateralFilter(pImageProc, pK, pSigmaSpatial, pSigmaRange);
+        ImageProc fast = applyFastBilateralFilter(pImageProc, pSigmaSpatial, pSigmaRange);
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        double sum = 0.0;
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            double[][] e = exact.getChannel(c);
+            double[][] f = fast.getChannel(c);
+            for (int i = 0; i < h; ++i) {
+                for (int j = 0; j < w; ++j) {
+                    double d = e[i][j] - f[i][j];
+                    sum += d * d;
+                }
+            }
+        }
+        return Math.sqrt(sum / Math.max(1, (long) Image.NB_COLOR_CHANNEL * h * w));
+    }
+
+    /**
+     * Applies the exact bilateral filter (see {@link #applyBilateralFilter(ImageProc, int, double, double)}), with the
+     * range weights scaled on the specified minimum and maximum of each channel (or on those of the image if null).
+     *
+     * @param pImageProc
+     * @param pK
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @param pMinMax
+     * @return
+     */
+    private static ImageProc bilateralFilter(ImageProc pImageProc, int pK, double pSigmaSpatial, double pSigmaRange,
+            double[][] pMinMax) {
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        ImageProc filteredImage = new ImageProc(w, h);
+        if (h == 0 || w == 0) {
+            return filteredImage;
+        }
+
+        double[] spatialLut = getSpatialLut(pK, pSigmaSpatial);
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            double[][] channel = pImageProc.getChannel(c);
+            double[][] out = new double[h][w];
+            double[] minMax = pMinMax != null ? pMinMax[c] : getMinMax(channel);
+            double[] rangeLut = getRangeLut(minMax, pSigmaRange);
+            double lutScale = getRangeLutScale(minMax);
+            IntStream.range(0, h).parallel()
+                    .forEach(i -> bilateralRow(channel, 0, i, h, pK, spatialLut, rangeLut, lutScale, out[i]));
+            filteredImage.setChannel(c, out);
+        }
+        return filteredImage;
+    }
+
+    /**
+     * Computes the row pY of the exact bilateral filter of a channel into pOut, from the rows pFirstRow to pFirstRow +
+     * pRows.length - 1 of the channel (which must include the rows within pK of pY). The range weights are indexed by
+     * the absolute difference quantized with pLutScale.
+     *
+     * @param pRows
+     * @param pFirstRow
+     * @param pY
+     * @param pHeight
+     * @param pK
+     * @param pSpatialLut
+     * @param pRangeLut
+     * @param pLutScale
+     * @param pOut
+     */
+    private static void bilateralRow(double[][] pRows, int pFirstRow, int pY, int pHeight, int pK,
+            double[] pSpatialLut, double[] pRangeLut, double pLutScale, double[] pOut) {
+        int w = pOut.length;
+        int size = 2 * pK + 1;
+        double[] center = pRows[pY - pFirstRow];
+        for (int j = 0; j < w; ++j) {
+            double v = center[j];
+            double sum = 0.0;
+            double sumWeights = 0.0;
+            for (int ii = Math.max(0, pY - pK); ii <= Math.min(pHeight - 1, pY + pK); ++ii) {
+                double[] row = pRows[ii - pFirstRow];
+                int lutRow = (ii - pY + pK) * size + pK - j;
+                for (int jj = Math.max(0, j - pK); jj <= Math.min(w - 1, j + pK); ++jj) {
+                    double n = row[jj];
+                    double weight = pSpatialLut[lutRow + jj] * pRangeLut[Math.min(BILATERAL_RANGE_LUT_SIZE - 1,
+                            (int) (Math.abs(n - v) * pLutScale + 0.5))];
+                    sum += weight * n;
+                    sumWeights += weight;
+                }
+            }
+            pOut[j] = sum / sumWeights;
+        }
+    }
+
+    /**
+     * Applies the bilateral grid approximation of the bilateral filter on a channel of size pWidth x pHeight, read row
+     * by row with pReader (twice: splat, then slice); the filtered rows are passed to pWriter. The grid cells are
+     * aligned on the coordinates of the parent image (the channel starts at (pOriginX, pOriginY)) and on the multiples
+     * of pSigmaRange; pMinMax gives the range of the values of the channel.
+     *
+     * @param pWidth
+     * @param pHeight
+     * @param pReader
+     * @param pWriter
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @param pMinMax
+     * @param pOriginX
+     * @param pOriginY
+     */
+    private static void bilateralGrid(int pWidth, int pHeight, RowReader pReader, RowWriter pWriter,
+            double pSigmaSpatial, double pSigmaRange, double[] pMinMax, int pOriginX, int pOriginY) {
+        int h = pHeight;
+        int w = pWidth;
+        int pad = BILATERAL_GRID_PADDING;
+        /*
+         * Cells of the first row and column and of the minimum value, subtracted from the cell indices in the parent
+         * image and in the value axis (cells are on multiples of pSigmaRange), so that the result does not depend on
+         * the region or on its value range.
+         */
+        int shiftX = (int) (pOriginX / pSigmaSpatial + 0.5);
+        int shiftY = (int) (pOriginY / pSigmaSpatial + 0.5);
+        int shiftZ = (int) Math.floor(pMinMax[0] / pSigmaRange + 0.5);
+        int gw = (int) ((w - 1 + pOriginX) / pSigmaSpatial) - shiftX + 2 + 2 * pad;
+        int gh = (int) ((h - 1 + pOriginY) / pSigmaSpatial) - shiftY + 2 + 2 * pad;
+        int gd = (int) Math.floor(pMinMax[1] / pSigmaRange) - shiftZ + 2 + 2 * pad;
+        int sliceSize = gw * gh;
+        double[] values = new double[gd * sliceSize];
+        double[] weights = new double[gd * sliceSize];
+
+        /* Splat. */
+        double[] row = new double[w];
+        for (int i = 0; i < h; ++i) {
+            pReader.read(i, row);
+            int gy = (int) ((i + pOriginY) / pSigmaSpatial + 0.5) - shiftY + pad;
+            for (int j = 0; j < w; ++j) {
+                double v = row[j];
+                int gx = (int) ((j + pOriginX) / pSigmaSpatial + 0.5) - shiftX + pad;
+                int gz = (int) Math.floor(v / pSigmaRange + 0.5) - shiftZ + pad;
+                int idx = gz * sliceSize + gy * gw + gx;
+                values[idx] += v;
+                weights[idx] += 1.0;
+            }
+        }
+
+        /* Blur along each dimension with the [1 4 6 4 1] / 16 kernel. */
+        double[] tmp = new double[gd * sliceSize];
+        blurGrid(values, tmp, gw, gh, gd, 1);
+        blurGrid(values, tmp, gw, gh, gd, gw);
+        blurGrid(values, tmp, gw, gh, gd, sliceSize);
+        blurGrid(weights, tmp, gw, gh, gd, 1);
+        blurGrid(weights, tmp, gw, gh, gd, gw);
+        blurGrid(weights, tmp, gw, gh, gd, sliceSize);
+
+        /* Slice with trilinear interpolation. */
+        double[] out = new double[w];
+        for (int i = 0; i < h; ++i) {
+            pReader.read(i, row);
+            double y = (i + pOriginY) / pSigmaSpatial - shiftY + pad;
+            int y0 = (int) y;
+            double fy = y - y0;
+            for (int j = 0; j < w; ++j) {
+                double x = (j + pOriginX) / pSigmaSpatial - shiftX + pad;
+                double z = row[j] / pSigmaRange - shiftZ + pad;
+                int x0 = (int) x;
+                int z0 = (int) z;
+                double fx = x - x0;
+                double fz = z - z0;
+                double sum = 0.0;
+                double sumWeights = 0.0;
+                for (int dz = 0; dz < 2; ++dz) {
+                    double wz = dz == 0 ? 1.0 - fz : fz;
+                    for (int dy = 0; dy < 2; ++dy) {
+                        double wy = dy == 0 ? 1.0 - fy : fy;
+                        int base = (z0 + dz) * sliceSize + (y0 + dy) * gw + x0;
+                        double wzy = wz * wy;
+                        sum += wzy * ((1.0 - fx) * values[base] + fx * values[base + 1]);
+                        sumWeights += wzy * ((1.0 - fx) * weights[base] + fx * weights[base + 1]);
+                    }
+                }
+                out[j] = sumWeights > 0.0 ? sum / sumWeights : row[j];
+            }
+            pWriter.write(i, out);
+        }
+    }
+
+    /**
+     * Blurs the specified grid in place along one dimension (given by its stride) with the [1 4 6 4 1] / 16 kernel.
+     * Cells outside the grid are considered empty.
+     *
+     * @param pGrid
+     * @param pTmp
+     * @param pWidth
+     * @param pHeight
+     * @param pDepth
+     * @param pStride
+     */
+    private static void blurGrid(double[] pGrid, double[] pTmp, int pWidth, int pHeight, int pDepth, int pStride) {
+        int n = pGrid.length;
+        int length = pStride == 1 ? pWidth : (pStride == pWidth ? pHeight : pDepth);
+        for (int idx = 0; idx < n; ++idx) {
+            int pos = (idx / pStride) % length;
+            double v = 6.0 * pGrid[idx];
+            if (pos >= 1) {
+                v += 4.0 * pGrid[idx - pStride];
+            }
+            if (pos >= 2) {
+                v += pGrid[idx - 2 * pStride];
+            }
+            if (pos + 1 < length) {
+                v += 4.0 * pGrid[idx + pStride];
+            }
+            if (pos + 2 < length) {
+                v += pGrid[idx + 2 * pStride];
+            }
+            pTmp[idx] = v / 16.0;
+        }
+        System.arraycopy(pTmp, 0, pGrid, 0, n);
+    }
+
+    /**
+     * Applies the bilateral grid approximation (see {@link #applyFastBilateralFilter(ImageProc, double, double)}) on
+     * each channel, with the position of the image in its parent.
+     *
+     * @param pImageProc
+     * @param pSigmaSpatial
+     * @param pSigmaRange
+     * @param pOriginX
+     * @param pOriginY
+     * @return
+     */
+    private static ImageProc fastBilateralFilter(ImageProc pImageProc, double pSigmaSpatial, double pSigmaRange,
+            int pOriginX, int pOriginY) {
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        ImageProc filteredImage = new ImageProc(w, h);
+        if (h == 0 || w == 0) {
+            return filteredImage;
+        }
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            double[][] channel = pImageProc.getChannel(c);
+            double[][] out = new double[h][w];
+            bilateralGrid(w, h, (y, row) -> System.arraycopy(channel[y], 0, row, 0, w),
+                    (y, row) -> System.arraycopy(row, 0, out[y], 0, w), pSigmaSpatial, pSigmaRange,
+                    getMinMax(channel), pOriginX, pOriginY);
+            filteredImage.setChannel(c, out);
+        }
+        return filteredImage;
+    }
+
+    /**
+     * Applies pFilter to each channel of the specified off-heap image, by strips of OFF_HEAP_STRIP_HEIGHT rows in
+     * parallel: each strip reads its rows and pMargin rows above and below (within the image), and its filtered rows
+     * are written to a new off-heap image, with a buffer from the pool of pImage.
+     *
+     * @param pImage
+     * @param pMargin
+     * @param pFilter
+     * @return
+     */
+    private static OffHeapImageProc filterByStrips(OffHeapImageProc pImage, int pMargin, StripFilter pFilter) {
+        int h = pImage.getHeight();
+        int w = pImage.getWidth();
+        OffHeapImageProc filteredImage = new OffHeapImageProc(w, h, pImage.getPool());
+        int nbStrips = (h + OFF_HEAP_STRIP_HEIGHT - 1) / OFF_HEAP_STRIP_HEIGHT;
+        try {
+            IntStream.range(0, Image.NB_COLOR_CHANNEL * nbStrips).parallel().forEach(k -> {
+                int c = k / nbStrips;
+                int y0 = (k % nbStrips) * OFF_HEAP_STRIP_HEIGHT;
+                int y1 = Math.min(h, y0 + OFF_HEAP_STRIP_HEIGHT);
+                int first = Math.max(0, y0 - pMargin);
+                double[][] rows = new double[Math.min(h, y1 + pMargin) - first][w];
+                for (int r = 0; r < rows.length; ++r) {
+                    pImage.getRow(c, first + r, rows[r]);
+                }
+                double[][] out = new double[y1 - y0][w];
+                pFilter.apply(c, rows, first, y0, y1, out);
+                for (int i = y0; i < y1; ++i) {
+                    filteredImage.setRow(c, i, out[i - y0]);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            filteredImage.close();
+            throw e;
+        }
+        return filteredImage;
+    }
+
+    /**
+     * Computes the rows pY0 to pY1 - 1 of the Gaussian blur of a channel into pOut (see
+     * {@link #applyGaussianFilter(OffHeapImageProc, int, double)}), from the rows pFirstRow to pFirstRow +
+     * pRows.length - 1 of the channel (which must include the rows within the kernel radius of the strip, or the image
+     * edge).
+     *
+     * @param pRows
+     * @param pFirstRow
+     * @param pY0
+     * @param pY1
+     * @param pHeight
+     * @param pWeights
+     * @param pOut
+     */
+    private static void gaussianStrip(double[][] pRows, int pFirstRow, int pY0, int pY1, int pHeight,
+            double[] pWeights, double[][] pOut) {
+        int k = pWeights.length / 2;
+        int w = pOut.length > 0 ? pOut[0].length : 0;
+        double[][] tmp = new double[pRows.length][w];
+        for (int r = 0; r < pRows.length; ++r) {
+            double[] row = pRows[r];
+            for (int j = 0; j < w; ++j) {
+                double sum = 0.0;
+                for (int x = -k; x <= k; ++x) {
+                    sum += pWeights[x + k] * row[Math.min(w - 1, Math.max(0, j + x))];
+                }
+                tmp[r][j] = sum;
+            }
+        }
+        for (int i = pY0; i < pY1; ++i) {
+            double[] out = pOut[i - pY0];
+            Arrays.fill(out, 0.0);
+            for (int y = -k; y <= k; ++y) {
+                double[] src = tmp[Math.min(pHeight - 1, Math.max(0, i + y)) - pFirstRow];
+                double weight = pWeights[y + k];
+                for (int j = 0; j < w; ++j) {
+                    out[j] += weight * src[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the normalized weights of a Gaussian of size 2*pK+1 and with specified sigma.
+     *
+     * @param pK
+     * @param pSigma
+     * @return
+     */
+    private static double[] getGaussianWeights(int pK, double pSigma) {
+        double[] weights = new double[2 * pK + 1];
+        double sum = 0.0;
+        for (int x = -pK; x <= pK; ++x) {
+            weights[x + pK] = Math.exp(-x * x / (2.0 * pSigma * pSigma));
+            sum += weights[x + pK];
+        }
+        for (int x = 0; x < weights.length; ++x) {
+            weights[x] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the minimum and maximum values of the specified channel.
+     *
+     * @param pChannel
+     * @return
+     */
+    private static double[] getMinMax(double[][] pChannel) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double[] row : pChannel) {
+            for (double v : row) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    /**
+     * Returns the minimum and maximum values of the specified channel of an off-heap image (read row by row).
+     *
+     * @param pImage
+     * @param pChannelId
+     * @return
+     */
+    private static double[] getMinMax(OffHeapImageProc pImage, int pChannelId) {
+        int w = pImage.getWidth();
+        return IntStream.range(0, pImage.getHeight()).parallel().mapToObj(i -> {
+            double[] row = new double[w];
+            pImage.getRow(pChannelId, i, row);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double v : row) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            return new double[] { min, max };
+        }).reduce((a, b) -> new double[] { Math.min(a[0], b[0]), Math.max(a[1], b[1]) })
+                .orElse(new double[] { 0.0, 0.0 });
+    }
+
+    /**
+     * Returns the specified value range for each channel.
+     *
+     * @param pMin
+     * @param pMax
+     * @return
+     */
+    private static double[][] getMinMax(double pMin, double pMax) {
+        if (!(pMin <= pMax)) {
+            throw new IllegalArgumentException("Invalid value range: [" + pMin + ", " + pMax + "]");
+        }
+        double[][] minMax = new double[Image.NB_COLOR_CHANNEL][];
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            minMax[c] = new double[] { pMin, pMax };
+        }
+        return minMax;
+    }
+
+    /**
+     * Returns the range weights of the exact bilateral filter, indexed by the absolute difference quantized with
+     * {@link #getRangeLutScale(double[])}.
+     *
+     * @param pMinMax
+     * @param pSigmaRange
+     * @return
+     */
+    private static double[] getRangeLut(double[] pMinMax, double pSigmaRange) {
+        double lutScale = getRangeLutScale(pMinMax);
+        double[] rangeLut = new double[BILATERAL_RANGE_LUT_SIZE];
+        for (int l = 0; l < BILATERAL_RANGE_LUT_SIZE; ++l) {
+            double d = l / lutScale;
+            rangeLut[l] = Math.exp(-d * d / (2.0 * pSigmaRange * pSigmaRange));
+        }
+        return rangeLut;
+    }
+
+    /**
+     * Returns the scale quantizing the differences of values within the specified range into the range lookup table.
+     *
+     * @param pMinMax
+     * @return
+     */
+    private static double getRangeLutScale(double[] pMinMax) {
+        return (BILATERAL_RANGE_LUT_SIZE - 1) / Math.max(pMinMax[1] - pMinMax[0], 1e-12);
+    }
+
+    /**
+     * Returns the spatial weights of the exact bilateral filter of size 2*pK+1 x 2*pK+1, row by row.
+     *
+     * @param pK
+     * @param pSigmaSpatial
+     * @return
+     */
+    private static double[] getSpatialLut(int pK, double pSigmaSpatial) {
+        int size = 2 * pK + 1;
+        double[] spatialLut = new double[size * size];
+        for (int di = -pK; di <= pK; ++di) {
+            for (int dj = -pK; dj <= pK; ++dj) {
+                spatialLut[(di + pK) * size + dj + pK] = Math
+                        .exp(-(di * di + dj * dj) / (2.0 * pSigmaSpatial * pSigmaSpatial));
+            }
+        }
+        return spatialLut;
+    }
+
+    /**
+     * Applies pFilter to the specified image. For a view, the filter is applied to the view extended by pMargin pixels
+     * on each side (within the parent image), so that the parent pixels around the view are used as halo, and the
+     * result is cropped to the view. The filter cost is then proportional to the size of the view.
+     *
+     * @param pImageProc
+     * @param pMargin
+     * @param pFilter
+     * @return
+     */
+    static ImageProc applyWithHalo(ImageProc pImageProc, int pMargin, UnaryOperator<ImageProc> pFilter) {
+        if (!pImageProc.isView()) {
+            return pFilter.apply(pImageProc);
+        }
+        int w = pImageProc.getWidth();
+        int h = pImageProc.getHeight();
+        int left = Math.min(pMargin, pImageProc.getOffsetX());
+        int top = Math.min(pMargin, pImageProc.getOffsetY());
+        int right = Math.min(pMargin, pImageProc.getParentWidth() - pImageProc.getOffsetX() - w);
+        int bottom = Math.min(pMargin, pImageProc.getParentHeight() - pImageProc.getOffsetY() - h);
+        ImageProc extended = new ImageProc(pImageProc.getView(-left, -top, left + w + right, top + h + bottom));
+        return new ImageProc(pFilter.apply(extended).getView(left, top, w, h));
+    }
+
+    /**
+     * Applies pFilter to the specified image, using the parent pixels around a view as halo (see
+     * {@link #applyWithHalo(ImageProc, int, UnaryOperator)}).
+     *
+     * @param pImage
+     * @param pMargin
+     * @param pFilter
+     * @return
+     */
+    static Image applyWithHalo(Image pImage, int pMargin, UnaryOperator<Image> pFilter) {
+        if (!pImage.isView()) {
+            return pFilter.apply(pImage);
+        }
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int left = Math.min(pMargin, pImage.getOffsetX());
+        int top = Math.min(pMargin, pImage.getOffsetY());
+        int right = Math.min(pMargin, pImage.getParentWidth() - pImage.getOffsetX() - w);
+        int bottom = Math.min(pMargin, pImage.getParentHeight() - pImage.getOffsetY() - h);
+        Image extended = new Image(pImage.getView(-left, -top, left + w + right, top + h + bottom));
+        return new Image(pFilter.apply(extended).getView(left, top, w, h));
+    }
+
+    /**
+     * Returns the convolution of the channel with the separable kernel (edge values extended).
+     *
+     * @param pChannel
+     * @param pKernel
+     * @return
+     */
+    private static double[][] separableConvolution(double[][] pChannel, SeparableKernel pKernel) {
+        int h = pChannel.length;
+        int w = h > 0 ? pChannel[0].length : 0;
+        int cy = pKernel.getHeight() / 2;
+        int cx = pKernel.getWidth() / 2;
+        double[][] out = new double[h][w];
+        double[][] tmp = new double[h][w];
+        for (int t = 0; t < pKernel.getRank(); ++t) {
+            double[] hor = pKernel.getHorizontal(t);
+            double[] ver = pKernel.getVertical(t);
+            IntStream.range(0, h).parallel().forEach(i -> {
+                double[] row = pChannel[i];
+                for (int j = 0; j < w; ++j) {
+                    double sum = 0.0;
+                    for (int x = 0; x < hor.length; ++x) {
+                        sum += hor[x] * row[Math.min(w - 1, Math.max(0, j - x + cx))];
+                    }
+                    tmp[i][j] = sum;
+                }
+            });
+            IntStream.range(0, h).parallel().forEach(i -> {
+                double[] row = out[i];
+                for (int y = 0; y < ver.length; ++y) {
+                    double[] src = tmp[Math.min(h - 1, Math.max(0, i - y + cy))];
+                    double v = ver[y];
+                    for (int j = 0; j < w; ++j) {
+                        row[j] += v * src[j];
+                    }
+                }
+            });
+        }
+        return out;
+    }
+}
@@ -0,0 +1,177 @@
+package com.mar.imagetools.utils;
+
+import java.util.Arrays;
+
+import com.mar.imagetools.objects.Image;
+
+/**
+ * 64-bit perceptual hashes of images, for near-duplicate detection: similar images have hashes at a small Hamming
+ * distance (see {@link #hammingDistance(long, long)} and {@link com.mar.imagetools.objects.ImageHashIndex}).<br/>
+ * The image is first reduced to a small grayscale grid by area averaging, computed with integer arithmetic directly on
+ * the packed ARGB data (one row buffer, no full resolution conversion).
+ * <ul>
+ * <li>aHash: 8x8 grid, a bit is set if the cell is brighter than the mean.</li>
+ * <li>dHash: 9x8 grid, a bit is set if the cell is brighter than its left neighbour.</li>
+ * <li>pHash: 32x32 grid, DCT, a bit is set if the low frequency coefficient (8x8, DC excluded) is above the median.
+ * </li>
+ * </ul>
+ * @author mrenauld
+ */
+public class ImageHashOps {
+
+    /** Size of the grid used by the pHash. */
+    private static final int PHASH_SIZE = 32;
+
+    /** Number of DCT frequencies kept by the pHash (in each direction, excluding the DC). */
+    private static final int PHASH_FREQUENCIES = 8;
+
+    /** DCT-II basis: DCT[u][x] = cos((2x+1)u.pi/2N), for u from 0 to PHASH_FREQUENCIES. */
+    private static final double[][] DCT = new double[PHASH_FREQUENCIES + 1][PHASH_SIZE];
+
+    static {
+        for (int u = 0; u <= PHASH_FREQUENCIES; ++u) {
+            for (int x = 0; x < PHASH_SIZE; ++x) {
+                DCT[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * PHASH_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Returns the average hash (aHash) of the specified image.
+     * @param pImage
+     * @return
+     */
+    public static long averageHash(Image pImage) {
+        double[] grid = downscale(pImage, 8, 8);
+        double mean = 0.0;
+        for (double v : grid) {
+            mean += v;
+        }
+        mean /= grid.length;
+        long hash = 0L;
+        for (int k = 0; k < 64; ++k) {
+            if (grid[k] > mean) {
+                hash |= 1L << k;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the difference hash (dHash) of the specified image.
+     * @param pImage
+     * @return
+     */
+    public static long differenceHash(Image pImage) {
+        double[] grid = downscale(pImage, 9, 8);
+        long hash = 0L;
+        for (int i = 0; i < 8; ++i) {
+            for (int j = 0; j < 8; ++j) {
+                if (grid[i * 9 + j + 1] > grid[i * 9 + j]) {
+                    hash |= 1L << (i * 8 + j);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the number of differing bits of the specified hashes.
+     * @param pHash1
+     * @param pHash2
+     * @return
+     */
+    public static int hammingDistance(long pHash1, long pHash2) {
+        return Long.bitCount(pHash1 ^ pHash2);
+    }
+
+    /**
+     * Returns the DCT-based perceptual hash (pHash) of the specified image.
+     * @param pImage
+     * @return
+     */
+    public static long perceptualHash(Image pImage) {
+        double[] grid = downscale(pImage, PHASH_SIZE, PHASH_SIZE);
+
+        /* Separable DCT, restricted to the kept frequencies: rows first, then columns. */
+        double[][] rows = new double[PHASH_SIZE][PHASH_FREQUENCIES + 1];
+        for (int y = 0; y < PHASH_SIZE; ++y) {
+            for (int v = 1; v <= PHASH_FREQUENCIES; ++v) {
+                double sum = 0.0;
+                for (int x = 0; x < PHASH_SIZE; ++x) {
+                    sum += grid[y * PHASH_SIZE + x] * DCT[v][x];
+                }
+                rows[y][v] = sum;
+            }
+        }
+        double[] coefs = new double[PHASH_FREQUENCIES * PHASH_FREQUENCIES];
+        for (int u = 1; u <= PHASH_FREQUENCIES; ++u) {
+            for (int v = 1; v <= PHASH_FREQUENCIES; ++v) {
+                double sum = 0.0;
+                for (int y = 0; y < PHASH_SIZE; ++y) {
+                    sum += rows[y][v] * DCT[u][y];
+                }
+                coefs[(u - 1) * PHASH_FREQUENCIES + v - 1] = sum;
+            }
+        }
+
+        double[] sorted = Arrays.copyOf(coefs, coefs.length);
+        Arrays.sort(sorted);
+        double median = 0.5 * (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]);
+        long hash = 0L;
+        for (int k = 0; k < 64; ++k) {
+            if (coefs[k] > median) {
+                hash |= 1L << k;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Reduces the image to a pGridWidth x pGridHeight grid of mean luminance values (0-255 range, PAL/NTSC weights),
+     * by area averaging. Each cell covers at least one pixel, so images smaller than the grid are upscaled.
+     * @param pImage
+     * @param pGridWidth
+     * @param pGridHeight
+     * @return
+     */
+    private static double[] downscale(Image pImage, int pGridWidth, int pGridHeight) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int[] row = new int[w];
+        /* Prefix sums of the luminance (times 1000) along the current row. */
+        long[] prefix = new long[w + 1];
+        double[] grid = new double[pGridWidth * pGridHeight];
+        int[] x0 = new int[pGridWidth];
+        int[] x1 = new int[pGridWidth];
+        for (int cx = 0; cx < pGridWidth; ++cx) {
+            x0[cx] = (int) ((long) cx * w / pGridWidth);
+            x1[cx] = Math.max(x0[cx] + 1, (int) ((long) (cx + 1) * w / pGridWidth));
+        }
+
+        int loadedRow = -1;
+        for (int cy = 0; cy < pGridHeight; ++cy) {
+            int y0 = (int) ((long) cy * h / pGridHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (cy + 1) * h / pGridHeight));
+            long[] sums = new long[pGridWidth];
+            for (int i = y0; i < y1; ++i) {
+                if (i != loadedRow) {
+                    pImage.getRow(i, row);
+                    for (int j = 0; j < w; ++j) {
+                        int v = row[j];
+                        prefix[j + 1] = prefix[j] + 299 * ((v >> 16) & 0xff) + 587 * ((v >> 8) & 0xff) + 114
+                            * (v & 0xff);
+                    }
+                    loadedRow = i;
+                }
+                for (int cx = 0; cx < pGridWidth; ++cx) {
+                    sums[cx] += prefix[x1[cx]] - prefix[x0[cx]];
+                }
+            }
+            for (int cx = 0; cx < pGridWidth; ++cx) {
+                grid[cy * pGridWidth + cx] = sums[cx] / (1000.0 * (x1[cx] - x0[cx]) * (y1 - y0));
+            }
+        }
+        return grid;
+    }
+}
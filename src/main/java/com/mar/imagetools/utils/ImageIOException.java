@@ -0,0 +1,55 @@
+package com.mar.imagetools.utils;
+
+import java.io.IOException;
+
+/**
+ * Failure of an image I/O operation of {@link AsyncImageIOUtils}. The kind of failure is given by {@link #getReason()}.
+ * @author mrenauld
+ */
+public class ImageIOException extends IOException {
+
+    /** Kinds of failure. */
+    public enum Reason {
+        /** No codec can read the data, or the format name is unknown. */
+        UNSUPPORTED_FORMAT,
+        /** The data could be read but not decoded (truncated or corrupted image). */
+        DECODE_FAILED,
+        /** The image could not be encoded. */
+        ENCODE_FAILED,
+        /** The underlying stream, buffer or channel failed. */
+        IO_FAILED
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Reason reason;
+
+    /**
+     * Constructs a new exception.
+     * @param pReason
+     * @param pMessage
+     */
+    public ImageIOException(Reason pReason, String pMessage) {
+        super(pMessage);
+        reason = pReason;
+    }
+
+    /**
+     * Constructs a new exception with the specified cause.
+     * @param pReason
+     * @param pMessage
+     * @param pCause
+     */
+    public ImageIOException(Reason pReason, String pMessage, Throwable pCause) {
+        super(pMessage, pCause);
+        reason = pReason;
+    }
+
+    /**
+     * Returns the kind of failure.
+     * @return
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
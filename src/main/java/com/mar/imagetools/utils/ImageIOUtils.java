@@ -1,12 +1,29 @@
 package com.mar.imagetools.utils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
 
 import com.mar.framework.core.logging.LogUtils;
+import com.mar.imagetools.objects.ImageWriteOptions;
 
 public class ImageIOUtils {
 
@@ -16,6 +33,9 @@ public class ImageIOUtils {
     /** PNG format name. */
     public static final String FORMAT_PNG = "png";
 
+    /** Native metadata format of the JPEG codec. */
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
     /**
      * Reads an image file and returns the corresponding BufferedImage.
      * @param pPath
@@ -49,4 +69,153 @@ public class ImageIOUtils {
         }
     }
 
+    /**
+     * Writes the specified BufferedImage to the specified path using the specified format and encoding options.
+     * @param pImage
+     * @param pPath
+     * @param pFormat
+     * @param pOptions
+     */
+    public static void writeImage(BufferedImage pImage, String pPath, String pFormat, ImageWriteOptions pOptions) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(pPath))) {
+            writeImage(pImage, out, pFormat, pOptions);
+        }
+        catch (IOException e) {
+            LogUtils.logError(ImageIOUtils.class, "IOException [" + e.toString() + "]");
+        }
+    }
+
+    /**
+     * Writes the specified BufferedImage to the specified stream (which is not closed) using the specified format and
+     * encoding options.
+     * @param pImage
+     * @param pOutput
+     * @param pFormat
+     * @param pOptions
+     * @throws IOException
+     */
+    public static void writeImage(BufferedImage pImage, OutputStream pOutput, String pFormat,
+        ImageWriteOptions pOptions) throws IOException {
+        /* The parallel encoder writes truecolor PNG only: indexed images go through the standard writer (palette PNG). */
+        boolean truecolorPng = FORMAT_PNG.equalsIgnoreCase(pFormat)
+            && !(pImage.getColorModel() instanceof IndexColorModel);
+        if (truecolorPng && pOptions.isParallelPng()) {
+            ParallelPngEncoder.encode(pImage, pOutput, pOptions.getCompressionLevel(), pOptions.getPngFilter());
+            return;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(pFormat);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer found for format [" + pFormat + "]");
+        }
+        ImageWriter writer = writers.next();
+        /* The standard PNG writer ignores the compression level before Java 9: the parallel encoder applies it. */
+        if (truecolorPng && pOptions.getCompressionLevel() >= 0
+            && !writer.getDefaultWriteParam().canWriteCompressed()) {
+            writer.dispose();
+            ParallelPngEncoder.encode(pImage, pOutput, pOptions.getCompressionLevel(), pOptions.getPngFilter());
+            return;
+        }
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(pOutput)) {
+            writer.setOutput(out);
+            ImageWriteParam param = buildWriteParam(writer, pFormat, pOptions);
+            IIOMetadata metadata = null;
+            if (pOptions.isStripMetadata()) {
+                metadata = buildStrippedMetadata(writer, pImage, param);
+            }
+            writer.write(null, new IIOImage(pImage, null, metadata), param);
+            out.flush();
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes the specified BufferedImage to the specified channel (which is not closed) using the specified format and
+     * encoding options.
+     * @param pImage
+     * @param pChannel
+     * @param pFormat
+     * @param pOptions
+     * @throws IOException
+     */
+    public static void writeImage(BufferedImage pImage, WritableByteChannel pChannel, String pFormat,
+        ImageWriteOptions pOptions) throws IOException {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(pChannel));
+        writeImage(pImage, out, pFormat, pOptions);
+        out.flush();
+    }
+
+    /**
+     * Returns JPEG metadata without the optional JFIF/Adobe marker segments, or null if the codec does not support
+     * it (the default metadata is then used).
+     * @param pWriter
+     * @param pImage
+     * @param pParam
+     * @return
+     */
+    private static IIOMetadata buildStrippedMetadata(ImageWriter pWriter, BufferedImage pImage,
+        ImageWriteParam pParam) {
+        IIOMetadata metadata = pWriter.getDefaultImageMetadata(new ImageTypeSpecifier(pImage), pParam);
+        if (metadata == null || metadata.isReadOnly()
+            || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        try {
+            Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+            Node variety = root.getFirstChild();
+            while (variety != null && variety.hasChildNodes()) {
+                variety.removeChild(variety.getFirstChild());
+            }
+            Node markers = variety == null ? null : variety.getNextSibling();
+            if (markers != null) {
+                Node child = markers.getFirstChild();
+                while (child != null) {
+                    Node next = child.getNextSibling();
+                    if ("app14Adobe".equals(child.getNodeName()) || "com".equals(child.getNodeName())) {
+                        markers.removeChild(child);
+                    }
+                    child = next;
+                }
+            }
+            metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+            return metadata;
+        }
+        catch (Exception e) {
+            LogUtils.logError(ImageIOUtils.class, "Cannot strip metadata [" + e.toString() + "]");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the write parameters corresponding to the specified options.
+     * @param pWriter
+     * @param pFormat
+     * @param pOptions
+     * @return
+     */
+    private static ImageWriteParam buildWriteParam(ImageWriter pWriter, String pFormat, ImageWriteOptions pOptions) {
+        ImageWriteParam param = pWriter.getDefaultWriteParam();
+        boolean isPng = FORMAT_PNG.equalsIgnoreCase(pFormat);
+        if (param.canWriteCompressed()) {
+            if (!isPng && pOptions.getQuality() >= 0.0f) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(Math.min(1.0f, pOptions.getQuality()));
+            }
+            else if (isPng && pOptions.getCompressionLevel() >= 0) {
+                /* The PNG codec maps quality 1.0 to no compression and 0.0 to the best compression. */
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(1.0f - Math.min(9, pOptions.getCompressionLevel()) / 9.0f);
+            }
+        }
+        if (pOptions.isProgressive() && param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (pOptions.isOptimized() && param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+        }
+        return param;
+    }
+
 }
@@ -0,0 +1,388 @@
+package com.mar.imagetools.utils;
+
+import com.mar.imagetools.objects.BinaryImage;
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Morphological operations (erosion, dilation, opening, closing) with rectangular structuring elements of size
+ * 2*pRadiusX+1 x 2*pRadiusY+1.<br/>
+ * On {@link ImageProc} objects, the operations are computed separably with the van Herk/Gil-Werman algorithm, so the
+ * cost per pixel does not depend on the element size (about 3 min/max per pixel and per direction). On
+ * {@link BinaryImage} objects, 64 pixels are processed at once with bitwise operations: the vertical pass uses van
+ * Herk/Gil-Werman on whole words, and the horizontal pass uses about 2*log2(pRadiusX) shift-and-combine steps.<br/>
+ * Pixels outside the image are ignored (they never erode nor dilate the image).
+ * @author mrenauld
+ */
+public class ImageMorphologyOps {
+
+    /**
+     * Returns the closing (dilation followed by erosion) of the specified image.
+     * @param pImage
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static BinaryImage close(BinaryImage pImage, int pRadiusX, int pRadiusY) {
+        return erode(dilate(pImage, pRadiusX, pRadiusY), pRadiusX, pRadiusY);
+    }
+
+    /**
+     * Returns the closing (dilation followed by erosion) of the specified image.
+     * @param pImageProc
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static ImageProc close(ImageProc pImageProc, int pRadiusX, int pRadiusY) {
+        return ImageFilterOps.applyWithHalo(pImageProc, 2 * Math.max(pRadiusX, pRadiusY),
+            image -> erode(dilate(image, pRadiusX, pRadiusY), pRadiusX, pRadiusY));
+    }
+
+    /**
+     * Returns the dilation of the specified image.
+     * @param pImage
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static BinaryImage dilate(BinaryImage pImage, int pRadiusX, int pRadiusY) {
+        return applyBinary(pImage, pRadiusX, pRadiusY, true);
+    }
+
+    /**
+     * Returns the dilation (local maximum) of the specified image, for each color channel.
+     * @param pImageProc
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static ImageProc dilate(ImageProc pImageProc, int pRadiusX, int pRadiusY) {
+        return ImageFilterOps.applyWithHalo(pImageProc, Math.max(pRadiusX, pRadiusY),
+            image -> applyGray(image, pRadiusX, pRadiusY, true));
+    }
+
+    /**
+     * Returns the erosion of the specified image.
+     * @param pImage
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static BinaryImage erode(BinaryImage pImage, int pRadiusX, int pRadiusY) {
+        return applyBinary(pImage, pRadiusX, pRadiusY, false);
+    }
+
+    /**
+     * Returns the erosion (local minimum) of the specified image, for each color channel.
+     * @param pImageProc
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static ImageProc erode(ImageProc pImageProc, int pRadiusX, int pRadiusY) {
+        return ImageFilterOps.applyWithHalo(pImageProc, Math.max(pRadiusX, pRadiusY),
+            image -> applyGray(image, pRadiusX, pRadiusY, false));
+    }
+
+    /**
+     * Returns the opening (erosion followed by dilation) of the specified image.
+     * @param pImage
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static BinaryImage open(BinaryImage pImage, int pRadiusX, int pRadiusY) {
+        return dilate(erode(pImage, pRadiusX, pRadiusY), pRadiusX, pRadiusY);
+    }
+
+    /**
+     * Returns the opening (erosion followed by dilation) of the specified image.
+     * @param pImageProc
+     * @param pRadiusX
+     * @param pRadiusY
+     * @return
+     */
+    public static ImageProc open(ImageProc pImageProc, int pRadiusX, int pRadiusY) {
+        return ImageFilterOps.applyWithHalo(pImageProc, 2 * Math.max(pRadiusX, pRadiusY),
+            image -> dilate(erode(image, pRadiusX, pRadiusY), pRadiusX, pRadiusY));
+    }
+
+    /**
+     * Applies a dilation (pMax = true) or an erosion (pMax = false) on each color channel of the specified image.
+     * @param pImageProc
+     * @param pRadiusX
+     * @param pRadiusY
+     * @param pMax
+     * @return
+     */
+    private static ImageProc applyGray(ImageProc pImageProc, int pRadiusX, int pRadiusY, boolean pMax) {
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        ImageProc out = new ImageProc(w, h);
+        if (h == 0 || w == 0) {
+            return out;
+        }
+
+        int maxLength = Math.max(w + 2 * pRadiusX, h + 2 * pRadiusY);
+        double[] padded = new double[maxLength];
+        double[] g = new double[maxLength];
+        double[] hh = new double[maxLength];
+        double[] line = new double[Math.max(w, h)];
+
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            double[][] channel = pImageProc.getChannel(c);
+
+            /* Horizontal pass, in place on each row. */
+            if (pRadiusX > 0) {
+                for (int i = 0; i < h; ++i) {
+                    vanHerk(channel[i], w, pRadiusX, pMax, padded, g, hh, channel[i]);
+                }
+            }
+
+            /* Vertical pass, column by column. */
+            if (pRadiusY > 0) {
+                for (int j = 0; j < w; ++j) {
+                    for (int i = 0; i < h; ++i) {
+                        line[i] = channel[i][j];
+                    }
+                    vanHerk(line, h, pRadiusY, pMax, padded, g, hh, line);
+                    for (int i = 0; i < h; ++i) {
+                        channel[i][j] = line[i];
+                    }
+                }
+            }
+
+            out.setChannel(c, channel);
+        }
+        return out;
+    }
+
+    /**
+     * Computes the running max (or min) over windows of size 2*pRadius+1 with the van Herk/Gil-Werman algorithm.
+     * pSrc and pDst may be the same array.
+     * @param pSrc
+     * @param pLength
+     * @param pRadius
+     * @param pMax
+     * @param pPadded buffer of size at least pLength + 2 * pRadius
+     * @param pG buffer of size at least pLength + 2 * pRadius
+     * @param pH buffer of size at least pLength + 2 * pRadius
+     * @param pDst
+     */
+    private static void vanHerk(double[] pSrc, int pLength, int pRadius, boolean pMax, double[] pPadded,
+        double[] pG, double[] pH, double[] pDst) {
+        double identity = pMax ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        int m = pLength + 2 * pRadius;
+        int k = 2 * pRadius + 1;
+
+        for (int i = 0; i < pRadius; ++i) {
+            pPadded[i] = identity;
+            pPadded[m - 1 - i] = identity;
+        }
+        System.arraycopy(pSrc, 0, pPadded, pRadius, pLength);
+
+        /* Prefix (from block start) and suffix (to block end) extrema. */
+        for (int i = 0; i < m; ++i) {
+            if (i % k == 0) {
+                pG[i] = pPadded[i];
+            }
+            else {
+                pG[i] = pMax ? Math.max(pG[i - 1], pPadded[i]) : Math.min(pG[i - 1], pPadded[i]);
+            }
+        }
+        for (int i = m - 1; i >= 0; --i) {
+            if (i == m - 1 || (i + 1) % k == 0) {
+                pH[i] = pPadded[i];
+            }
+            else {
+                pH[i] = pMax ? Math.max(pH[i + 1], pPadded[i]) : Math.min(pH[i + 1], pPadded[i]);
+            }
+        }
+
+        for (int x = 0; x < pLength; ++x) {
+            pDst[x] = pMax ? Math.max(pH[x], pG[x + 2 * pRadius]) : Math.min(pH[x], pG[x + 2 * pRadius]);
+        }
+    }
+
+    /**
+     * Applies a dilation (pOr = true) or an erosion (pOr = false) on the specified binary image.
+     * @param pImage
+     * @param pRadiusX
+     * @param pRadiusY
+     * @param pOr
+     * @return
+     */
+    private static BinaryImage applyBinary(BinaryImage pImage, int pRadiusX, int pRadiusY, boolean pOr) {
+        int h = pImage.getHeight();
+        int nbWords = pImage.getNbWords();
+        long lastMask = pImage.getLastWordMask();
+        BinaryImage out = new BinaryImage(pImage);
+        if (h == 0 || nbWords == 0) {
+            return out;
+        }
+
+        /* Horizontal pass, row by row. */
+        if (pRadiusX > 0) {
+            long[] res = new long[nbWords];
+            long[] pow = new long[nbWords];
+            long[] tmp = new long[nbWords];
+            long[] forward = new long[nbWords];
+            for (int i = 0; i < h; ++i) {
+                long[] row = out.getRowWords(i);
+                if (!pOr) {
+                    /* Pixels beyond the width are considered set for an erosion. */
+                    row[nbWords - 1] |= ~lastMask;
+                }
+                windowRow(row, nbWords, pRadiusX, pOr, forward, res, pow, tmp);
+                row[nbWords - 1] &= lastMask;
+            }
+        }
+
+        /* Vertical pass, word column by word column. */
+        if (pRadiusY > 0) {
+            int m = h + 2 * pRadiusY;
+            int k = 2 * pRadiusY + 1;
+            long identity = pOr ? 0L : -1L;
+            long[] padded = new long[m];
+            long[] g = new long[m];
+            long[] hh = new long[m];
+            for (int wi = 0; wi < nbWords; ++wi) {
+                for (int i = 0; i < pRadiusY; ++i) {
+                    padded[i] = identity;
+                    padded[m - 1 - i] = identity;
+                }
+                for (int i = 0; i < h; ++i) {
+                    padded[i + pRadiusY] = out.getRowWords(i)[wi];
+                }
+                for (int i = 0; i < m; ++i) {
+                    if (i % k == 0) {
+                        g[i] = padded[i];
+                    }
+                    else {
+                        g[i] = pOr ? (g[i - 1] | padded[i]) : (g[i - 1] & padded[i]);
+                    }
+                }
+                for (int i = m - 1; i >= 0; --i) {
+                    if (i == m - 1 || (i + 1) % k == 0) {
+                        hh[i] = padded[i];
+                    }
+                    else {
+                        hh[i] = pOr ? (hh[i + 1] | padded[i]) : (hh[i + 1] & padded[i]);
+                    }
+                }
+                for (int i = 0; i < h; ++i) {
+                    long v = pOr ? (hh[i] | g[i + 2 * pRadiusY]) : (hh[i] & g[i + 2 * pRadiusY]);
+                    out.getRowWords(i)[wi] = v;
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Replaces, in place, each bit x of the specified row by the OR (or AND) of bits x-pRadius to x+pRadius. The
+     * window is the combination of a forward half-window (x to x+pRadius) and a backward half-window (x-pRadius to x),
+     * each built by binary decomposition in log2(pRadius+1) shift-and-combine steps.
+     * @param pRow
+     * @param pNbWords
+     * @param pRadius
+     * @param pOr
+     * @param pForward buffer of size pNbWords
+     * @param pRes buffer of size pNbWords
+     * @param pPow buffer of size pNbWords
+     * @param pTmp buffer of size pNbWords
+     */
+    private static void windowRow(long[] pRow, int pNbWords, int pRadius, boolean pOr, long[] pForward, long[] pRes,
+        long[] pPow, long[] pTmp) {
+        halfWindowRow(pRow, pNbWords, pRadius + 1, 1, pOr, pForward, pPow, pTmp);
+        halfWindowRow(pRow, pNbWords, pRadius + 1, -1, pOr, pRes, pPow, pTmp);
+        System.arraycopy(pForward, 0, pRow, 0, pNbWords);
+        combine(pRow, pRes, pNbWords, pOr);
+    }
+
+    /**
+     * Computes in pRes, for each bit x, the OR (or AND) of bits x, x+pDirection, ..., x+pDirection*(pLength-1) of the
+     * specified row. Bits outside the row are the identity of the operation.
+     * @param pRow
+     * @param pNbWords
+     * @param pLength
+     * @param pDirection 1 or -1
+     * @param pOr
+     * @param pRes buffer of size pNbWords
+     * @param pPow buffer of size pNbWords
+     * @param pTmp buffer of size pNbWords
+     */
+    private static void halfWindowRow(long[] pRow, int pNbWords, int pLength, int pDirection, boolean pOr,
+        long[] pRes, long[] pPow, long[] pTmp) {
+        long identity = pOr ? 0L : -1L;
+        int length = pLength;
+
+        /* pPow holds windows of length powLength starting at each bit, pRes windows of length resLength. */
+        System.arraycopy(pRow, 0, pPow, 0, pNbWords);
+        int powLength = 1;
+        int resLength = 0;
+        for (int i = 0; i < pNbWords; ++i) {
+            pRes[i] = identity;
+        }
+        while (length > 0) {
+            if ((length & 1) != 0) {
+                shiftRow(pPow, pNbWords, pDirection * resLength, identity, pTmp);
+                combine(pRes, pTmp, pNbWords, pOr);
+                resLength += powLength;
+            }
+            length >>>= 1;
+            if (length > 0) {
+                shiftRow(pPow, pNbWords, pDirection * powLength, identity, pTmp);
+                combine(pPow, pTmp, pNbWords, pOr);
+                powLength *= 2;
+            }
+        }
+    }
+
+    /**
+     * Combines pSrc into pDst with a bitwise OR (or AND).
+     * @param pDst
+     * @param pSrc
+     * @param pNbWords
+     * @param pOr
+     */
+    private static void combine(long[] pDst, long[] pSrc, int pNbWords, boolean pOr) {
+        if (pOr) {
+            for (int i = 0; i < pNbWords; ++i) {
+                pDst[i] |= pSrc[i];
+            }
+        }
+        else {
+            for (int i = 0; i < pNbWords; ++i) {
+                pDst[i] &= pSrc[i];
+            }
+        }
+    }
+
+    /**
+     * Shifts a row of bits: bit x of pDst receives bit x+pShift of pSrc. Bits coming from outside the row are filled
+     * from pFill.
+     * @param pSrc
+     * @param pNbWords
+     * @param pShift
+     * @param pFill
+     * @param pDst
+     */
+    private static void shiftRow(long[] pSrc, int pNbWords, int pShift, long pFill, long[] pDst) {
+        int wordShift = Math.floorDiv(pShift, 64);
+        int bitShift = Math.floorMod(pShift, 64);
+        for (int i = 0; i < pNbWords; ++i) {
+            int s = i + wordShift;
+            long lo = (s >= 0 && s < pNbWords) ? pSrc[s] : pFill;
+            if (bitShift == 0) {
+                pDst[i] = lo;
+            }
+            else {
+                long hi = (s + 1 >= 0 && s + 1 < pNbWords) ? pSrc[s + 1] : pFill;
+                pDst[i] = (lo >>> bitShift) | (hi << (64 - bitShift));
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.mar.imagetools.utils;
 
 import java.awt.Color;
+import java.util.stream.IntStream;
 
 import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageLut;
 import com.mar.imagetools.objects.ImageProc;
+import com.mar.imagetools.objects.OffHeapImage;
 
 /**
  * Operations on {@link Image} objects. Contrarily to {@link ImageProc}, {@link Image} manages the alpha channel. On the
@@ -13,6 +16,37 @@ import com.mar.imagetools.objects.ImageProc;
  */
 public class ImageOps {
 
+    /**
+     * Returns a new image with the lookup table applied to each channel of each pixel. The packed pixels are mapped
+     * directly, in one pass (rows are processed in parallel); compose several tables with
+     * {@link ImageLut#then(ImageLut)} to apply a whole chain of adjustments in this single pass.
+     * @param pImage
+     * @param pLut
+     * @return
+     */
+    public static Image applyLut(Image pImage, ImageLut pLut) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int[][] data = new int[h][];
+        IntStream.range(0, h).parallel().forEach(i -> {
+            int[] row = new int[w];
+            pImage.getRow(i, row);
+            pLut.apply(row, w);
+            data[i] = row;
+        });
+        return new Image(data);
+    }
+
+    /**
+     * Applies the lookup table to each channel of each pixel of the specified off-heap image, in place (see
+     * {@link #applyLut(Image, ImageLut)}).
+     * @param pImage
+     * @param pLut
+     */
+    public static void applyLut(OffHeapImage pImage, ImageLut pLut) {
+        pImage.apply(ScanlineOps.applyLut(pLut));
+    }
+
     /**
      * Inverts the colors of the specified image.
      * @param pImage
@@ -34,6 +68,14 @@ public class ImageOps {
         return out;
     }
 
+    /**
+     * Inverts the colors of the specified off-heap image, in place (see {@link #invertColors(Image)}).
+     * @param pImage
+     */
+    public static void invertColors(OffHeapImage pImage) {
+        pImage.apply(ScanlineOps.invertColors());
+    }
+
     /**
      * Sets the specified color (within a certain threshold) transparent. Each pixel is set to transparent individually
      * if its distance to the specified color is lower than the specified threshold:<br/>
@@ -74,6 +116,17 @@ public class ImageOps {
         pImage.setChannel(Image.CHANNEL_ALPHA, channelAlpha);
     }
 
+    /**
+     * Sets the specified color (within a certain threshold) transparent in the specified off-heap image (see
+     * {@link #setColorTransparent(Image, Color, float)}).
+     * @param pImage
+     * @param pColor
+     * @param pThreshold
+     */
+    public static void setColorTransparent(OffHeapImage pImage, Color pColor, float pThreshold) {
+        pImage.apply(ScanlineOps.setColorTransparent(pColor, pThreshold));
+    }
+
     /**
      * Converts an image into a grayscale image.
      * @param pImage
@@ -97,4 +150,12 @@ public class ImageOps {
         }
         return grayscaleImage;
     }
+
+    /**
+     * Converts the specified off-heap image to grayscale, in place (see {@link #toGrayscale(Image)}).
+     * @param pImage
+     */
+    public static void toGrayscale(OffHeapImage pImage) {
+        pImage.apply(ScanlineOps.toGrayscale());
+    }
 }
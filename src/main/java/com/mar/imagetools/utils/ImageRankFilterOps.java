@@ -0,0 +1,281 @@
+package com.mar.imagetools.utils;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * Rank filters (median, percentile) over square windows of size 2*pRadius+1 x 2*pRadius+1.<br/>
+ * The filters use sliding column histograms (Perreault/Hebert): each column keeps the histogram of its 2*pRadius+1
+ * rows, and the window histogram is updated by adding one column histogram and removing another one at each step, so
+ * the time per pixel does not depend on the radius. Ranks are searched with a two-level (coarse/fine) histogram
+ * whose fine part is updated lazily. The image is split into horizontal strips processed in parallel.<br/>
+ * Pixels outside the image are ignored: windows near the borders simply contain fewer pixels.
+ * @author mrenauld
+ */
+public class ImageRankFilterOps {
+
+    /** Default number of levels used to quantize {@link ImageProc} channels. */
+    public static final int DEFAULT_NB_LEVELS = 256;
+
+    /** Number of fine levels per coarse level. */
+    private static final int COARSE_SHIFT = 4;
+
+    /** Minimum number of rows per strip processed in parallel. */
+    private static final int MIN_STRIP_HEIGHT = 32;
+
+    /**
+     * Returns the specified image filtered with a median filter on each color channel. The alpha channel is kept.
+     * @param pImage
+     * @param pRadius
+     * @return
+     */
+    public static Image applyMedianFilter(Image pImage, int pRadius) {
+        return applyRankFilter(pImage, pRadius, 0.5);
+    }
+
+    /**
+     * Returns the specified image filtered with a median filter on each color channel. Channel values are quantized
+     * on {@link #DEFAULT_NB_LEVELS} levels.
+     * @param pImageProc
+     * @param pRadius
+     * @return
+     */
+    public static ImageProc applyMedianFilter(ImageProc pImageProc, int pRadius) {
+        return applyRankFilter(pImageProc, pRadius, 0.5, DEFAULT_NB_LEVELS);
+    }
+
+    /**
+     * Returns the specified image filtered with a rank filter on each color channel: each pixel receives the value at
+     * the specified percentile (0.0 = minimum, 0.5 = median, 1.0 = maximum) of its window. The alpha channel is kept.
+     * @param pImage
+     * @param pRadius
+     * @param pPercentile
+     * @return
+     */
+    public static Image applyRankFilter(Image pImage, int pRadius, double pPercentile) {
+        if (pImage.isView()) {
+            return ImageFilterOps.applyWithHalo(pImage, pRadius, image -> applyRankFilter(image, pRadius, pPercentile));
+        }
+        Image out = new Image(pImage);
+        if (pImage.getHeight() == 0 || pImage.getWidth() == 0) {
+            return out;
+        }
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            int[][] channel = pImage.getChannel(c);
+            out.setChannel(c, rankFilter(channel, pRadius, pPercentile, 256));
+        }
+        return out;
+    }
+
+    /**
+     * Returns the specified image filtered with a rank filter on each color channel: each pixel receives the value at
+     * the specified percentile (0.0 = minimum, 0.5 = median, 1.0 = maximum) of its window. Channel values (between
+     * 0.0 and 1.0) are quantized on pNbLevels levels.
+     * @param pImageProc
+     * @param pRadius
+     * @param pPercentile
+     * @param pNbLevels
+     * @return
+     */
+    public static ImageProc applyRankFilter(ImageProc pImageProc, int pRadius, double pPercentile, int pNbLevels) {
+        if (pImageProc.isView()) {
+            return ImageFilterOps.applyWithHalo(pImageProc, pRadius,
+                image -> applyRankFilter(image, pRadius, pPercentile, pNbLevels));
+        }
+        int h = pImageProc.getHeight();
+        int w = pImageProc.getWidth();
+        ImageProc out = new ImageProc(w, h);
+        if (h == 0 || w == 0) {
+            return out;
+        }
+        double scale = pNbLevels - 1;
+        for (int c = 0; c < Image.NB_COLOR_CHANNEL; ++c) {
+            double[][] channel = pImageProc.getChannel(c);
+            int[][] levels = new int[h][w];
+            for (int i = 0; i < h; ++i) {
+                for (int j = 0; j < w; ++j) {
+                    int l = (int) Math.round(channel[i][j] * scale);
+                    levels[i][j] = Math.max(0, Math.min(pNbLevels - 1, l));
+                }
+            }
+            levels = rankFilter(levels, pRadius, pPercentile, pNbLevels);
+            for (int i = 0; i < h; ++i) {
+                for (int j = 0; j < w; ++j) {
+                    channel[i][j] = levels[i][j] / scale;
+                }
+            }
+            out.setChannel(c, channel);
+        }
+        return out;
+    }
+
+    /**
+     * Applies a rank filter on the specified channel, whose values must be between 0 and pNbLevels - 1.
+     * @param pChannel
+     * @param pRadius
+     * @param pPercentile
+     * @param pNbLevels
+     * @return
+     */
+    public static int[][] rankFilter(int[][] pChannel, int pRadius, double pPercentile, int pNbLevels) {
+        int h = pChannel.length;
+        int w = pChannel[0].length;
+        int[][] out = new int[h][w];
+
+        int nbTasks = 4 * Runtime.getRuntime().availableProcessors();
+        int stripHeight = Math.max(MIN_STRIP_HEIGHT, (h + nbTasks - 1) / nbTasks);
+        int nbStrips = (h + stripHeight - 1) / stripHeight;
+        IntStream.range(0, nbStrips).parallel().forEach(s -> {
+            int y0 = s * stripHeight;
+            int y1 = Math.min(h, y0 + stripHeight);
+            rankFilterStrip(pChannel, pRadius, pPercentile, pNbLevels, y0, y1, out);
+        });
+        return out;
+    }
+
+    /**
+     * Applies a rank filter on rows pY0 (inclusive) to pY1 (exclusive) of the specified channel.<br/>
+     * The coarse window histogram is updated at each step, while each segment of the fine window histogram is only
+     * brought up to date when the rank search needs it (for natural images, the rank stays in the same few segments).
+     * @param pChannel
+     * @param pRadius
+     * @param pPercentile
+     * @param pNbLevels
+     * @param pY0
+     * @param pY1
+     * @param pOut
+     */
+    private static void rankFilterStrip(int[][] pChannel, int pRadius, double pPercentile, int pNbLevels, int pY0,
+        int pY1, int[][] pOut) {
+        int h = pChannel.length;
+        int w = pChannel[0].length;
+        int segment = 1 << COARSE_SHIFT;
+        int nbCoarse = (pNbLevels + segment - 1) >> COARSE_SHIFT;
+        int fineStride = nbCoarse * segment;
+
+        /* Column histograms, stored contiguously: column j starts at j * fineStride (or j * nbCoarse). */
+        int[] colFine = new int[w * fineStride];
+        int[] colCoarse = new int[w * nbCoarse];
+        int[] fine = new int[fineStride];
+        int[] coarse = new int[nbCoarse];
+        /* Position of the window for which each fine segment is up to date. */
+        int[] syncX = new int[nbCoarse];
+
+        /* Column histograms for the rows above the first row of the strip. */
+        for (int i = Math.max(0, pY0 - pRadius); i < Math.min(h, pY0 + pRadius); ++i) {
+            addRow(pChannel[i], colFine, colCoarse, fineStride, nbCoarse, 1);
+        }
+
+        for (int y = pY0; y < pY1; ++y) {
+            /* Slide the column histograms down by one row. */
+            int removed = y - pRadius - 1;
+            if (y > pY0 && removed >= 0) {
+                addRow(pChannel[removed], colFine, colCoarse, fineStride, nbCoarse, -1);
+            }
+            int added = y + pRadius;
+            if (added < h) {
+                addRow(pChannel[added], colFine, colCoarse, fineStride, nbCoarse, 1);
+            }
+            int nbRows = Math.min(h - 1, y + pRadius) - Math.max(0, y - pRadius) + 1;
+
+            /* Coarse window histogram for the first pixel of the row; fine segments are rebuilt on demand. */
+            Arrays.fill(coarse, 0);
+            for (int j = 0; j <= Math.min(w - 1, pRadius); ++j) {
+                addColumn(colCoarse, j * nbCoarse, coarse, 0, nbCoarse, 1);
+            }
+            Arrays.fill(syncX, -2 * pRadius - 2);
+
+            int[] outRow = pOut[y];
+            for (int x = 0; x < w; ++x) {
+                int nbCols = Math.min(w - 1, x + pRadius) - Math.max(0, x - pRadius) + 1;
+                int remaining = (int) Math.round(pPercentile * (nbRows * nbCols - 1));
+
+                /* Coarse search. */
+                int c = 0;
+                while (c < nbCoarse - 1 && remaining >= coarse[c]) {
+                    remaining -= coarse[c];
+                    c++;
+                }
+
+                /* Bring the fine segment up to date, then fine search. */
+                int offset = c << COARSE_SHIFT;
+                if (x - syncX[c] > 2 * pRadius + 1) {
+                    Arrays.fill(fine, offset, offset + segment, 0);
+                    for (int j = Math.max(0, x - pRadius); j <= Math.min(w - 1, x + pRadius); ++j) {
+                        addColumn(colFine, j * fineStride + offset, fine, offset, segment, 1);
+                    }
+                }
+                else {
+                    for (int t = syncX[c] + 1; t <= x; ++t) {
+                        if (t - pRadius - 1 >= 0) {
+                            addColumn(colFine, (t - pRadius - 1) * fineStride + offset, fine, offset, segment, -1);
+                        }
+                        if (t + pRadius < w) {
+                            addColumn(colFine, (t + pRadius) * fineStride + offset, fine, offset, segment, 1);
+                        }
+                    }
+                }
+                syncX[c] = x;
+                int l = offset;
+                int end = Math.min(pNbLevels, offset + segment);
+                while (l < end - 1 && remaining >= fine[l]) {
+                    remaining -= fine[l];
+                    l++;
+                }
+                outRow[x] = l;
+
+                /* Slide the coarse window histogram right by one column. */
+                if (x + pRadius + 1 < w) {
+                    addColumn(colCoarse, (x + pRadius + 1) * nbCoarse, coarse, 0, nbCoarse, 1);
+                }
+                if (x - pRadius >= 0) {
+                    addColumn(colCoarse, (x - pRadius) * nbCoarse, coarse, 0, nbCoarse, -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds (pSign = 1) or removes (pSign = -1) the specified length of a column histogram to a window histogram.
+     * @param pCol
+     * @param pColOffset
+     * @param pWindow
+     * @param pWindowOffset
+     * @param pLength
+     * @param pSign
+     */
+    private static void addColumn(int[] pCol, int pColOffset, int[] pWindow, int pWindowOffset, int pLength,
+        int pSign) {
+        if (pSign > 0) {
+            for (int l = 0; l < pLength; ++l) {
+                pWindow[pWindowOffset + l] += pCol[pColOffset + l];
+            }
+        }
+        else {
+            for (int l = 0; l < pLength; ++l) {
+                pWindow[pWindowOffset + l] -= pCol[pColOffset + l];
+            }
+        }
+    }
+
+    /**
+     * Adds (pSign = 1) or removes (pSign = -1) a row of pixels to the column histograms.
+     * @param pRow
+     * @param pColFine
+     * @param pColCoarse
+     * @param pFineStride
+     * @param pNbCoarse
+     * @param pSign
+     */
+    private static void addRow(int[] pRow, int[] pColFine, int[] pColCoarse, int pFineStride, int pNbCoarse,
+        int pSign) {
+        for (int j = 0; j < pRow.length; ++j) {
+            int v = pRow[j];
+            pColFine[j * pFineStride + v] += pSign;
+            pColCoarse[j * pNbCoarse + (v >> COARSE_SHIFT)] += pSign;
+        }
+    }
+}
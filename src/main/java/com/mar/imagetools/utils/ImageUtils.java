@@ -22,11 +22,22 @@ public class ImageUtils {
 
     /**
      * Returns an RGBA integer array representing the specified BufferedImage.
+     * Images which are not stored as interleaved BGR or ABGR bytes (for
+     * instance grayscale or indexed images) are converted through
+     * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
      *
      * @param pImage
      * @return
      */
     public static int[][] bufferedImageToSRGBIntArray(BufferedImage pImage) {
+        int type = pImage.getType();
+        if (type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_4BYTE_ABGR) {
+            int[][] result = new int[pImage.getHeight()][pImage.getWidth()];
+            for (int i = 0; i < result.length; ++i) {
+                pImage.getRGB(0, i, result[i].length, 1, result[i], 0, result[i].length);
+            }
+            return result;
+        }
 
         byte[] pixels = ((DataBufferByte) pImage.getRaster().getDataBuffer()).getData();
         int width = pImage.getWidth();
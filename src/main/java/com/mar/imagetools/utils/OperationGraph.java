@@ -0,0 +1,388 @@
+package com.mar.imagetools.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.mar.imagetools.objects.ImageProc;
+
+/**
+ * A declarative graph (DAG) of image operations. Nodes are declared first (inputs, then operations on other nodes),
+ * and computed when the graph is executed:
+ * <ul>
+ * <li>Identical sub-expressions are declared once: an operation with the same key applied to the same nodes returns
+ * the existing node, so a shared intermediate (a blur used by several branches, for instance) is computed once.</li>
+ * <li>Each node is computed as soon as its inputs are available, on an {@link Executor}, so independent branches run
+ * concurrently.</li>
+ * <li>Results are reference counted: an intermediate result is released as soon as its last consumer has finished,
+ * which keeps the peak memory low. Only the requested outputs are kept.</li>
+ * </ul>
+ * The key of an operation must identify it completely (name and parameters). Operations must not modify their inputs,
+ * which may be shared by other consumers.
+ * @author mrenauld
+ */
+public class OperationGraph {
+
+    /**
+     * A node of the graph, producing a value of type T.
+     * @param <T>
+     */
+    public static final class Node<T> {
+
+        private final int id;
+
+        private final String key;
+
+        private final List<Node<?>> inputs;
+
+        private final Function<Object[], ?> operation;
+
+        private final Object value;
+
+        private Node(int pId, String pKey, List<Node<?>> pInputs, Function<Object[], ?> pOperation, Object pValue) {
+            id = pId;
+            key = pKey;
+            inputs = pInputs;
+            operation = pOperation;
+            value = pValue;
+        }
+
+        /**
+         * Returns the key identifying the node (operation key and input node ids).
+         * @return
+         */
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    /** Results of an execution. */
+    public static final class Results {
+
+        private final Map<Node<?>, Object> values;
+
+        private final int peakLiveResults;
+
+        private Results(Map<Node<?>, Object> pValues, int pPeakLiveResults) {
+            values = pValues;
+            peakLiveResults = pPeakLiveResults;
+        }
+
+        /**
+         * Returns the value of the specified output node.
+         * @param pNode
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(Node<T> pNode) {
+            if (!values.containsKey(pNode)) {
+                throw new IllegalArgumentException("Not an output of the execution: " + pNode);
+            }
+            return (T) values.get(pNode);
+        }
+
+        /**
+         * Returns the maximum number of computed results held at the same time during the execution.
+         * @return
+         */
+        public int getPeakLiveResults() {
+            return peakLiveResults;
+        }
+    }
+
+    private final List<Node<?>> nodes = new ArrayList<>();
+
+    private final Map<String, Node<?>> nodesByKey = new HashMap<>();
+
+    private final Map<Object, Node<?>> inputNodes = new IdentityHashMap<>();
+
+    /**
+     * Returns the node applying a binary operation to two nodes.
+     * @param pKey
+     * @param pOperation
+     * @param pInput1
+     * @param pInput2
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <A, B, T> Node<T> apply(String pKey, BiFunction<? super A, ? super B, ? extends T> pOperation,
+        Node<A> pInput1, Node<B> pInput2) {
+        return addNode(pKey, args -> pOperation.apply((A) args[0], (B) args[1]), pInput1, pInput2);
+    }
+
+    /**
+     * Returns the node applying a unary operation to a node.
+     * @param pKey
+     * @param pOperation
+     * @param pInput
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <A, T> Node<T> apply(String pKey, Function<? super A, ? extends T> pOperation, Node<A> pInput) {
+        return addNode(pKey, args -> pOperation.apply((A) args[0]), pInput);
+    }
+
+    /**
+     * Executes the graph on the common fork-join pool and returns the values of the specified nodes.
+     * @param pOutputs
+     * @return
+     */
+    public Results execute(Node<?>... pOutputs) {
+        return execute(ForkJoinPool.commonPool(), pOutputs);
+    }
+
+    /**
+     * Executes the graph on the specified executor and returns the values of the specified nodes. Only the nodes
+     * needed by the outputs are computed. The first exception thrown by an operation is rethrown (wrapped in a
+     * {@link CompletionException} if it is checked).
+     * @param pExecutor
+     * @param pOutputs
+     * @return
+     */
+    public Results execute(Executor pExecutor, Node<?>... pOutputs) {
+        List<Node<?>> all;
+        synchronized (this) {
+            all = new ArrayList<>(nodes);
+        }
+        int n = all.size();
+
+        /* Needed nodes, consumers, reference counts. */
+        boolean[] needed = new boolean[n];
+        Deque<Node<?>> stack = new ArrayDeque<>(Arrays.asList(pOutputs));
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (!needed[node.id]) {
+                needed[node.id] = true;
+                stack.addAll(node.inputs);
+            }
+        }
+        List<List<Node<?>>> consumers = new ArrayList<>(n);
+        AtomicInteger[] pendingInputs = new AtomicInteger[n];
+        AtomicInteger[] references = new AtomicInteger[n];
+        for (int k = 0; k < n; ++k) {
+            consumers.add(new ArrayList<>());
+            pendingInputs[k] = new AtomicInteger(all.get(k).inputs.size());
+            references[k] = new AtomicInteger(0);
+        }
+        int nbNeeded = 0;
+        for (Node<?> node : all) {
+            if (needed[node.id]) {
+                nbNeeded++;
+                for (Node<?> input : node.inputs) {
+                    consumers.get(input.id).add(node);
+                    references[input.id].incrementAndGet();
+                }
+            }
+        }
+        for (Node<?> output : pOutputs) {
+            references[output.id].incrementAndGet();
+        }
+
+        /* Scheduling: a node is submitted when its last input is available. */
+        AtomicReferenceArray<Object> values = new AtomicReferenceArray<>(n);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        AtomicInteger live = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(nbNeeded);
+        Function<Node<?>, Runnable> task = new Function<Node<?>, Runnable>() {
+
+            @Override
+            public Runnable apply(Node<?> pNode) {
+                return () -> {
+                    try {
+                        if (error.get() == null) {
+                            Object value;
+                            if (pNode.operation == null) {
+                                value = pNode.value;
+                            }
+                            else {
+                                Object[] args = new Object[pNode.inputs.size()];
+                                for (int k = 0; k < args.length; ++k) {
+                                    args[k] = values.get(pNode.inputs.get(k).id);
+                                }
+                                value = pNode.operation.apply(args);
+                                int l = live.incrementAndGet();
+                                peak.accumulateAndGet(l, Math::max);
+                            }
+                            values.set(pNode.id, value);
+                        }
+                    }
+                    catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                    finally {
+                        /* Release the inputs whose last consumer this was, then schedule the ready consumers. */
+                        for (Node<?> input : pNode.inputs) {
+                            if (references[input.id].decrementAndGet() == 0) {
+                                if (input.operation != null && values.getAndSet(input.id, null) != null) {
+                                    live.decrementAndGet();
+                                }
+                            }
+                        }
+                        for (Node<?> consumer : consumers.get(pNode.id)) {
+                            if (pendingInputs[consumer.id].decrementAndGet() == 0) {
+                                pExecutor.execute(this.apply(consumer));
+                            }
+                        }
+                        done.countDown();
+                    }
+                };
+            }
+        };
+        for (Node<?> node : all) {
+            if (needed[node.id] && node.inputs.isEmpty()) {
+                pExecutor.execute(task.apply(node));
+            }
+        }
+
+        try {
+            done.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        Throwable t = error.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new CompletionException(t);
+        }
+        Map<Node<?>, Object> results = new HashMap<>();
+        for (Node<?> output : pOutputs) {
+            results.put(output, values.get(output.id));
+        }
+        return new Results(results, peak.get());
+    }
+
+    /**
+     * Returns the node of the Gaussian blur of a node (see {@link ImageFilterOps#applyGaussianFilter}).
+     * @param pInput
+     * @param pK
+     * @param pSigma
+     * @return
+     */
+    public Node<ImageProc> gaussian(Node<ImageProc> pInput, int pK, double pSigma) {
+        return apply("gaussian " + pK + " " + pSigma, (ImageProc image) -> ImageFilterOps.applyGaussianFilter(image,
+            pK, pSigma), pInput);
+    }
+
+    /**
+     * Returns the number of nodes of the graph.
+     * @return
+     */
+    public synchronized int getNbNodes() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns the node of the grayscale conversion of a node (see {@link ImageProcOps#toGrayscale(ImageProc)}).
+     * @param pInput
+     * @return
+     */
+    public Node<ImageProc> grayscale(Node<ImageProc> pInput) {
+        return apply("grayscale", (ImageProc image) -> ImageProcOps.toGrayscale(image), pInput);
+    }
+
+    /**
+     * Returns the input node of the specified value (the same node for the same object).
+     * @param pValue
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> Node<T> input(T pValue) {
+        Node<?> node = inputNodes.get(pValue);
+        if (node == null) {
+            node = new Node<T>(nodes.size(), "input#" + nodes.size(), Collections.emptyList(), null, pValue);
+            nodes.add(node);
+            inputNodes.put(pValue, node);
+        }
+        return (Node<T>) node;
+    }
+
+    /**
+     * Returns the node of the difference of two nodes (for instance a difference of Gaussians).
+     * @param pInput1
+     * @param pInput2
+     * @return
+     */
+    public Node<ImageProc> subtract(Node<ImageProc> pInput1, Node<ImageProc> pInput2) {
+        return apply("subtract", (ImageProc image1, ImageProc image2) -> {
+            ImageProc out = new ImageProc(image1);
+            out.subtractImage(image2);
+            return out;
+        }, pInput1, pInput2);
+    }
+
+    /**
+     * Returns the node of the unsharp masking of a node (same result as
+     * {@link ImageFilterOps#applyUnsharpMasking(ImageProc, int, double, double)}), built on the node of the Gaussian
+     * blur, which is therefore shared with the other uses of the same blur.
+     * @param pInput
+     * @param pK
+     * @param pSigma
+     * @param pCoef
+     * @return
+     */
+    public Node<ImageProc> unsharpMask(Node<ImageProc> pInput, int pK, double pSigma, double pCoef) {
+        return apply("unsharp " + pCoef, (ImageProc image, ImageProc blurred) -> {
+            ImageProc mask = new ImageProc(image);
+            mask.subtractImage(blurred);
+            mask.times(pCoef);
+            mask.threshold(0.0, true);
+            ImageProc sharp = new ImageProc(image);
+            sharp.addImage(mask);
+            return sharp;
+        }, pInput, gaussian(pInput, pK, pSigma));
+    }
+
+    /**
+     * Returns the node of the specified operation on the specified nodes, creating it if it does not exist yet.
+     * @param pKey
+     * @param pOperation
+     * @param pInputs
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Node<T> addNode(String pKey, Function<Object[], ?> pOperation, Node<?>... pInputs) {
+        StringBuilder key = new StringBuilder(pKey).append('(');
+        for (int k = 0; k < pInputs.length; ++k) {
+            if (pInputs[k].id >= nodes.size() || nodes.get(pInputs[k].id) != pInputs[k]) {
+                throw new IllegalArgumentException("Node of another graph: " + pInputs[k]);
+            }
+            key.append(k > 0 ? "," : "").append('#').append(pInputs[k].id);
+        }
+        key.append(')');
+        Node<?> node = nodesByKey.get(key.toString());
+        if (node == null) {
+            node = new Node<T>(nodes.size(), key.toString(), Arrays.asList(pInputs), pOperation, null);
+            nodes.add(node);
+            nodesByKey.put(node.key, node);
+        }
+        return (Node<T>) node;
+    }
+}
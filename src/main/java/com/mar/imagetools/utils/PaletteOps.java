@@ -0,0 +1,533 @@
+package com.mar.imagetools.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.Palette;
+
+/**
+ * Color quantization of {@link Image} objects into a {@link Palette} of at most 256 colors, and conversion into indexed
+ * BufferedImage objects (with an IndexColorModel, written as palette PNG by {@link ImageIOUtils}).<br/>
+ * The palette is built from a histogram of the colors reduced to 5 bits per channel (computed in parallel), by median
+ * cut or octree reduction. If the image has pixels whose alpha is below 128, the first entry of the palette is
+ * transparent. Pixels are mapped with the inverse color map of the palette, optionally with Floyd-Steinberg error
+ * diffusion (row by row, keeping only two rows of errors) or ordered dithering (8x8 Bayer matrix, rows in parallel).
+ * @author mrenauld
+ */
+public class PaletteOps {
+
+    /** Palette construction methods. */
+    public enum QuantizationMethod {
+        MEDIAN_CUT, OCTREE
+    }
+
+    /** Dithering methods. */
+    public enum DitheringMethod {
+        NONE, FLOYD_STEINBERG, ORDERED
+    }
+
+    /** Receives the palette indices of a row (the array is reused for the next rows). */
+    private interface IndexRowSink {
+
+        void accept(int pY, byte[] pRow);
+    }
+
+    /** Color histogram with 5 bits per channel: pixel count and color sums of each bin. */
+    private static class Histogram {
+
+        private final long[] counts = new long[NB_BINS];
+
+        private final long[] sumR = new long[NB_BINS];
+
+        private final long[] sumG = new long[NB_BINS];
+
+        private final long[] sumB = new long[NB_BINS];
+
+        private long nbTransparent = 0;
+
+        /**
+         * Adds the bins of another histogram to this one.
+         * @param pHistogram
+         * @return
+         */
+        private Histogram merge(Histogram pHistogram) {
+            for (int k = 0; k < NB_BINS; ++k) {
+                counts[k] += pHistogram.counts[k];
+                sumR[k] += pHistogram.sumR[k];
+                sumG[k] += pHistogram.sumG[k];
+                sumB[k] += pHistogram.sumB[k];
+            }
+            nbTransparent += pHistogram.nbTransparent;
+            return this;
+        }
+
+        /**
+         * Returns the mean color of the specified bin (packed RGB).
+         * @param pBin
+         * @return
+         */
+        private int getMeanColor(int pBin) {
+            return PaletteOps.getMeanColor(counts[pBin], sumR[pBin], sumG[pBin], sumB[pBin]);
+        }
+    }
+
+    /** A box of histogram bins, for the median cut. */
+    private static class Box {
+
+        private final int start;
+
+        private final int end;
+
+        private final long count;
+
+        private final int[] min = new int[3];
+
+        private final int[] max = new int[3];
+
+        private Box(int[] pBins, long[] pCounts, int pStart, int pEnd) {
+            start = pStart;
+            end = pEnd;
+            Arrays.fill(min, Integer.MAX_VALUE);
+            long c = 0;
+            for (int k = pStart; k < pEnd; ++k) {
+                c += pCounts[pBins[k]];
+                for (int axis = 0; axis < 3; ++axis) {
+                    int v = getBinCoordinate(pBins[k], axis);
+                    min[axis] = Math.min(min[axis], v);
+                    max[axis] = Math.max(max[axis], v);
+                }
+            }
+            count = c;
+        }
+
+        /**
+         * Returns the longest axis of the box.
+         * @return
+         */
+        private int getLongestAxis() {
+            int axis = 0;
+            for (int a = 1; a < 3; ++a) {
+                if (max[a] - min[a] > max[axis] - min[axis]) {
+                    axis = a;
+                }
+            }
+            return axis;
+        }
+
+        /**
+         * Returns the priority of the box for splitting (0 if it cannot be split).
+         * @return
+         */
+        private double getPriority() {
+            if (end - start < 2) {
+                return 0.0;
+            }
+            int axis = getLongestAxis();
+            return (double) count * (max[axis] - min[axis] + 1);
+        }
+    }
+
+    /** A node of the octree. The counts and sums are those of the whole subtree. */
+    private static class OctreeNode {
+
+        private long count = 0;
+
+        private long sumR = 0;
+
+        private long sumG = 0;
+
+        private long sumB = 0;
+
+        private OctreeNode[] children = null;
+    }
+
+    /** Number of bits per channel of the histogram. */
+    private static final int HISTOGRAM_BITS = 5;
+
+    private static final int NB_BINS = 1 << (3 * HISTOGRAM_BITS);
+
+    /** Depth of the octree (one level per bit of the channels). */
+    private static final int OCTREE_DEPTH = 8;
+
+    /** 8x8 Bayer matrix. */
+    private static final int[][] BAYER = { { 0, 32, 8, 40, 2, 34, 10, 42 }, { 48, 16, 56, 24, 50, 18, 58, 26 },
+        { 12, 44, 4, 36, 14, 46, 6, 38 }, { 60, 28, 52, 20, 62, 30, 54, 22 }, { 3, 35, 11, 43, 1, 33, 9, 41 },
+        { 51, 19, 59, 27, 49, 17, 57, 25 }, { 15, 47, 7, 39, 13, 45, 5, 37 }, { 63, 31, 55, 23, 61, 29, 53, 21 } };
+
+    /**
+     * Returns a palette of at most pNbColors colors (including the transparent entry, if any) for the specified image.
+     * @param pImage
+     * @param pNbColors between 2 and 256
+     * @param pMethod
+     * @return
+     */
+    public static Palette buildPalette(Image pImage, int pNbColors, QuantizationMethod pMethod) {
+        if (pNbColors < 2 || pNbColors > Palette.MAX_SIZE) {
+            throw new IllegalArgumentException("The number of colors must be between 2 and " + Palette.MAX_SIZE);
+        }
+        Histogram histogram = computeHistogram(pImage);
+        boolean transparent = histogram.nbTransparent > 0;
+        int nbOpaque = transparent ? pNbColors - 1 : pNbColors;
+        int[] opaque = pMethod == QuantizationMethod.OCTREE ? buildOctreePalette(histogram, nbOpaque)
+            : buildMedianCutPalette(histogram, nbOpaque);
+        if (opaque.length == 0) {
+            /* Fully transparent image. */
+            opaque = new int[] { 0 };
+        }
+        int[] colors = new int[opaque.length + (transparent ? 1 : 0)];
+        for (int k = 0; k < opaque.length; ++k) {
+            colors[colors.length - opaque.length + k] = 0xff000000 | opaque[k];
+        }
+        return new Palette(colors);
+    }
+
+    /**
+     * Returns the palette indices of the specified image (height x width), with the specified dithering.
+     * @param pImage
+     * @param pPalette
+     * @param pDithering
+     * @return
+     */
+    public static byte[][] quantize(Image pImage, Palette pPalette, DitheringMethod pDithering) {
+        byte[][] indices = new byte[pImage.getHeight()][];
+        mapPixels(pImage, pPalette, pDithering, (y, row) -> indices[y] = row.clone());
+        return indices;
+    }
+
+    /**
+     * Returns an indexed BufferedImage (8 bits per pixel, with the IndexColorModel of the palette) of the specified
+     * image, with the specified dithering.
+     * @param pImage
+     * @param pPalette
+     * @param pDithering
+     * @return
+     */
+    public static BufferedImage toIndexedImage(Image pImage, Palette pPalette, DitheringMethod pDithering) {
+        BufferedImage image = new BufferedImage(pImage.getWidth(), pImage.getHeight(),
+            BufferedImage.TYPE_BYTE_INDEXED, pPalette.toIndexColorModel());
+        WritableRaster raster = image.getRaster();
+        int w = pImage.getWidth();
+        mapPixels(pImage, pPalette, pDithering, (y, row) -> {
+            synchronized (raster) {
+                raster.setDataElements(0, y, w, 1, row);
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Returns an indexed BufferedImage of the specified image, with a palette of at most pNbColors colors built with
+     * the specified method.
+     * @param pImage
+     * @param pNbColors
+     * @param pMethod
+     * @param pDithering
+     * @return
+     */
+    public static BufferedImage toIndexedImage(Image pImage, int pNbColors, QuantizationMethod pMethod,
+        DitheringMethod pDithering) {
+        return toIndexedImage(pImage, buildPalette(pImage, pNbColors, pMethod), pDithering);
+    }
+
+    /**
+     * Returns the colors (packed RGB) of the palette built by median cut: the box of bins with the highest priority
+     * (number of pixels times length of the longest axis) is split at the weighted median of its longest axis, until
+     * there are pNbColors boxes.
+     * @param pHistogram
+     * @param pNbColors
+     * @return
+     */
+    private static int[] buildMedianCutPalette(Histogram pHistogram, int pNbColors) {
+        long[] counts = pHistogram.counts;
+        int[] bins = IntStream.range(0, NB_BINS).filter(k -> counts[k] > 0).toArray();
+        PriorityQueue<Box> queue = new PriorityQueue<>(Comparator.comparingDouble(Box::getPriority).reversed());
+        List<Box> done = new ArrayList<>();
+        if (bins.length > 0) {
+            queue.add(new Box(bins, counts, 0, bins.length));
+        }
+        while (!queue.isEmpty() && queue.size() + done.size() < pNbColors) {
+            Box box = queue.poll();
+            if (box.getPriority() == 0.0) {
+                done.add(box);
+                continue;
+            }
+            int axis = box.getLongestAxis();
+            Integer[] sorted = new Integer[box.end - box.start];
+            for (int k = 0; k < sorted.length; ++k) {
+                sorted[k] = bins[box.start + k];
+            }
+            Arrays.sort(sorted, Comparator.comparingInt(b -> getBinCoordinate(b, axis)));
+            for (int k = 0; k < sorted.length; ++k) {
+                bins[box.start + k] = sorted[k];
+            }
+            /* Weighted median, keeping at least one bin on each side. */
+            long half = box.count / 2;
+            long c = 0;
+            int split = box.start + 1;
+            for (int k = box.start; k < box.end - 1; ++k) {
+                c += counts[bins[k]];
+                split = k + 1;
+                if (c >= half) {
+                    break;
+                }
+            }
+            queue.add(new Box(bins, counts, box.start, split));
+            queue.add(new Box(bins, counts, split, box.end));
+        }
+        done.addAll(queue);
+
+        int[] colors = new int[done.size()];
+        for (int k = 0; k < colors.length; ++k) {
+            Box box = done.get(k);
+            long n = 0;
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            for (int i = box.start; i < box.end; ++i) {
+                int bin = bins[i];
+                n += counts[bin];
+                r += pHistogram.sumR[bin];
+                g += pHistogram.sumG[bin];
+                b += pHistogram.sumB[bin];
+            }
+            colors[k] = getMeanColor(n, r, g, b);
+        }
+        return colors;
+    }
+
+    /**
+     * Returns the colors (packed RGB) of the palette built by octree reduction: the mean colors of the histogram bins
+     * are inserted in an octree, whose nodes are then merged into leaves, deepest levels first and least populated
+     * nodes first, until there are at most pNbColors leaves.
+     * @param pHistogram
+     * @param pNbColors
+     * @return
+     */
+    private static int[] buildOctreePalette(Histogram pHistogram, int pNbColors) {
+        OctreeNode root = new OctreeNode();
+        List<List<OctreeNode>> levels = new ArrayList<>();
+        for (int level = 0; level < OCTREE_DEPTH; ++level) {
+            levels.add(new ArrayList<>());
+        }
+        levels.get(0).add(root);
+        int nbLeaves = 0;
+        for (int bin = 0; bin < NB_BINS; ++bin) {
+            long count = pHistogram.counts[bin];
+            if (count == 0) {
+                continue;
+            }
+            int color = pHistogram.getMeanColor(bin);
+            OctreeNode node = root;
+            for (int level = 0; level <= OCTREE_DEPTH; ++level) {
+                node.count += count;
+                node.sumR += pHistogram.sumR[bin];
+                node.sumG += pHistogram.sumG[bin];
+                node.sumB += pHistogram.sumB[bin];
+                if (level == OCTREE_DEPTH) {
+                    break;
+                }
+                if (node.children == null) {
+                    node.children = new OctreeNode[8];
+                }
+                int shift = 7 - level;
+                int child = (((color >> (16 + shift)) & 1) << 2) | (((color >> (8 + shift)) & 1) << 1)
+                    | ((color >> shift) & 1);
+                if (node.children[child] == null) {
+                    node.children[child] = new OctreeNode();
+                    if (level + 1 < OCTREE_DEPTH) {
+                        levels.get(level + 1).add(node.children[child]);
+                    }
+                    else {
+                        nbLeaves++;
+                    }
+                }
+                node = node.children[child];
+            }
+        }
+
+        /* Reduction: a merged node becomes a leaf replacing its children (all leaves at that point). */
+        for (int level = OCTREE_DEPTH - 1; level >= 0 && nbLeaves > pNbColors; --level) {
+            List<OctreeNode> nodes = levels.get(level);
+            nodes.sort(Comparator.comparingLong(n -> n.count));
+            for (int k = 0; k < nodes.size() && nbLeaves > pNbColors; ++k) {
+                OctreeNode node = nodes.get(k);
+                int nbChildren = 0;
+                for (OctreeNode child : node.children) {
+                    if (child != null) {
+                        nbChildren++;
+                    }
+                }
+                node.children = null;
+                nbLeaves -= nbChildren - 1;
+            }
+        }
+
+        List<Integer> colors = new ArrayList<>();
+        collectLeaves(root, colors);
+        return colors.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Adds the mean colors of the leaves of the specified subtree.
+     * @param pNode
+     * @param pColors
+     */
+    private static void collectLeaves(OctreeNode pNode, List<Integer> pColors) {
+        if (pNode.children == null) {
+            if (pNode.count > 0) {
+                pColors.add(getMeanColor(pNode.count, pNode.sumR, pNode.sumG, pNode.sumB));
+            }
+            return;
+        }
+        for (OctreeNode child : pNode.children) {
+            if (child != null) {
+                collectLeaves(child, pColors);
+            }
+        }
+    }
+
+    /**
+     * Returns the color histogram of the specified image, computed by chunks of rows in parallel.
+     * @param pImage
+     * @return
+     */
+    private static Histogram computeHistogram(Image pImage) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int nbChunks = Math.max(1, Math.min(h, 4 * Runtime.getRuntime().availableProcessors()));
+        int shift = 8 - HISTOGRAM_BITS;
+        return IntStream.range(0, nbChunks).parallel().mapToObj(chunk -> {
+            Histogram histogram = new Histogram();
+            int[] row = new int[w];
+            for (int i = chunk * h / nbChunks; i < (chunk + 1) * h / nbChunks; ++i) {
+                pImage.getRow(i, row);
+                for (int j = 0; j < w; ++j) {
+                    int argb = row[j];
+                    if ((argb >>> 24) < 128) {
+                        histogram.nbTransparent++;
+                        continue;
+                    }
+                    int r = (argb >> 16) & 0xff;
+                    int g = (argb >> 8) & 0xff;
+                    int b = argb & 0xff;
+                    int bin = ((r >> shift) << (2 * HISTOGRAM_BITS)) | ((g >> shift) << HISTOGRAM_BITS) | (b >> shift);
+                    histogram.counts[bin]++;
+                    histogram.sumR[bin] += r;
+                    histogram.sumG[bin] += g;
+                    histogram.sumB[bin] += b;
+                }
+            }
+            return histogram;
+        }).reduce(Histogram::merge).orElseGet(Histogram::new);
+    }
+
+    /**
+     * Returns the coordinate of the specified bin along the specified axis (0: red, 1: green, 2: blue).
+     * @param pBin
+     * @param pAxis
+     * @return
+     */
+    private static int getBinCoordinate(int pBin, int pAxis) {
+        return (pBin >> ((2 - pAxis) * HISTOGRAM_BITS)) & ((1 << HISTOGRAM_BITS) - 1);
+    }
+
+    /**
+     * Returns the mean color (packed RGB) of pCount pixels with the specified color sums.
+     * @param pCount
+     * @param pSumR
+     * @param pSumG
+     * @param pSumB
+     * @return
+     */
+    private static int getMeanColor(long pCount, long pSumR, long pSumG, long pSumB) {
+        int r = (int) ((pSumR + pCount / 2) / pCount);
+        int g = (int) ((pSumG + pCount / 2) / pCount);
+        int b = (int) ((pSumB + pCount / 2) / pCount);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Maps the pixels of the image to palette indices, row by row, with the specified dithering.
+     * @param pImage
+     * @param pPalette
+     * @param pDithering
+     * @param pSink
+     */
+    private static void mapPixels(Image pImage, Palette pPalette, DitheringMethod pDithering, IndexRowSink pSink) {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        int transparent = pPalette.getTransparentIndex();
+        if (pDithering == DitheringMethod.FLOYD_STEINBERG) {
+            /* Errors (scaled by 16) of the current and next rows, with one guard pixel on each side. */
+            int[] current = new int[3 * (w + 2)];
+            int[] next = new int[3 * (w + 2)];
+            int[] row = new int[w];
+            byte[] indices = new byte[w];
+            for (int i = 0; i < h; ++i) {
+                pImage.getRow(i, row);
+                for (int j = 0; j < w; ++j) {
+                    int argb = row[j];
+                    if (transparent >= 0 && (argb >>> 24) < 128) {
+                        indices[j] = (byte) transparent;
+                        continue;
+                    }
+                    int e = 3 * (j + 1);
+                    int r = clamp(((argb >> 16) & 0xff) + ((current[e] + 8) >> 4));
+                    int g = clamp(((argb >> 8) & 0xff) + ((current[e + 1] + 8) >> 4));
+                    int b = clamp((argb & 0xff) + ((current[e + 2] + 8) >> 4));
+                    int index = pPalette.getNearestIndex(r, g, b);
+                    indices[j] = (byte) index;
+                    int color = pPalette.getColor(index);
+                    int[] errors = { r - ((color >> 16) & 0xff), g - ((color >> 8) & 0xff), b - (color & 0xff) };
+                    for (int c = 0; c < 3; ++c) {
+                        current[e + 3 + c] += 7 * errors[c];
+                        next[e - 3 + c] += 3 * errors[c];
+                        next[e + c] += 5 * errors[c];
+                        next[e + 3 + c] += errors[c];
+                    }
+                }
+                pSink.accept(i, indices);
+                int[] tmp = current;
+                current = next;
+                next = tmp;
+                Arrays.fill(next, 0);
+            }
+            return;
+        }
+
+        int nbOpaque = pPalette.getSize() - (transparent >= 0 ? 1 : 0);
+        double spread = pDithering == DitheringMethod.ORDERED ? 256.0 / Math.cbrt(nbOpaque) : 0.0;
+        IntStream.range(0, h).parallel().forEach(i -> {
+            int[] row = new int[w];
+            byte[] indices = new byte[w];
+            pImage.getRow(i, row);
+            for (int j = 0; j < w; ++j) {
+                int argb = row[j];
+                if (transparent >= 0 && (argb >>> 24) < 128) {
+                    indices[j] = (byte) transparent;
+                    continue;
+                }
+                int offset = (int) Math.round(((BAYER[i & 7][j & 7] + 0.5) / 64.0 - 0.5) * spread);
+                indices[j] = (byte) pPalette.getNearestIndex(clamp(((argb >> 16) & 0xff) + offset),
+                    clamp(((argb >> 8) & 0xff) + offset), clamp((argb & 0xff) + offset));
+            }
+            pSink.accept(i, indices);
+        });
+    }
+
+    /**
+     * Returns the value clamped between 0 and 255.
+     * @param pValue
+     * @return
+     */
+    private static int clamp(int pValue) {
+        return Math.max(0, Math.min(255, pValue));
+    }
+}
@@ -0,0 +1,375 @@
+package com.mar.imagetools.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.mar.imagetools.objects.ImageWriteOptions.PngFilter;
+
+/**
+ * PNG encoder deflating independent chunks of rows in parallel (same principle as pigz). Each chunk is filtered and
+ * compressed by its own {@link Deflater}, primed with the last 32 KB of the previous chunk as dictionary, and ended
+ * with a sync flush so that the compressed chunks can be concatenated into a single zlib stream. The Adler-32
+ * checksums of the chunks are combined at the end. Chunks are processed in batches to bound memory use.<br/>
+ * Images are written as 8-bit RGB, or 8-bit RGBA if they have an alpha channel.
+ * @author mrenauld
+ */
+public class ParallelPngEncoder {
+
+    /** Approximate size (in bytes of filtered data) of a chunk compressed by a single task. */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /** Size of the deflate window, used as dictionary for the next chunk. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int ADLER_BASE = 65521;
+
+    /** A compressed chunk. */
+    private static class Chunk {
+
+        private byte[] filtered;
+
+        private byte[] compressed;
+
+        private long adler;
+    }
+
+    /**
+     * Encodes the specified image as PNG into the specified stream (which is not closed).
+     * @param pImage
+     * @param pOutput
+     * @param pCompressionLevel deflate level (0 to 9), or -1 for the default level
+     * @param pFilter
+     * @throws IOException
+     */
+    public static void encode(BufferedImage pImage, OutputStream pOutput, int pCompressionLevel, PngFilter pFilter)
+        throws IOException {
+        int w = pImage.getWidth();
+        int h = pImage.getHeight();
+        boolean hasAlpha = pImage.getColorModel().hasAlpha();
+        int bpp = hasAlpha ? 4 : 3;
+        int level = pCompressionLevel < 0 ? Deflater.DEFAULT_COMPRESSION : Math.min(9, pCompressionLevel);
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / (w * bpp + 1));
+        int nbChunks = (h + rowsPerChunk - 1) / rowsPerChunk;
+        int batchSize = 2 * Runtime.getRuntime().availableProcessors();
+
+        DataOutputStream out = new DataOutputStream(pOutput);
+        out.write(SIGNATURE);
+
+        /* IHDR. */
+        byte[] header = new byte[13];
+        putInt(header, 0, w);
+        putInt(header, 4, h);
+        header[8] = 8;
+        header[9] = (byte) (hasAlpha ? 6 : 2);
+        writeChunk(out, "IHDR", header, header.length);
+
+        /* IDAT: zlib header, then one IDAT chunk per compressed chunk, then the Adler-32 checksum. */
+        byte[] zlibHeader = { 0x78, zlibLevelFlag(level) };
+        writeChunk(out, "IDAT", zlibHeader, zlibHeader.length);
+        long adler = 1L;
+        byte[] previousFiltered = null;
+        for (int b0 = 0; b0 < nbChunks; b0 += batchSize) {
+            int b1 = Math.min(nbChunks, b0 + batchSize);
+
+            /* Filter the rows of the batch in parallel (filtering only needs the previous raw row). */
+            Chunk[] chunks = IntStream.range(b0, b1).parallel().mapToObj(c -> {
+                Chunk chunk = new Chunk();
+                int y0 = c * rowsPerChunk;
+                int y1 = Math.min(h, y0 + rowsPerChunk);
+                chunk.filtered = filterRows(pImage, y0, y1, bpp, pFilter);
+                Adler32 checksum = new Adler32();
+                checksum.update(chunk.filtered);
+                chunk.adler = checksum.getValue();
+                return chunk;
+            }).toArray(Chunk[]::new);
+
+            /* Compress the chunks of the batch in parallel, each primed with the end of the previous one. */
+            byte[] firstDictionary = previousFiltered;
+            boolean lastBatch = b1 == nbChunks;
+            IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                byte[] dictionary = i == 0 ? firstDictionary : chunks[i - 1].filtered;
+                boolean last = lastBatch && i == chunks.length - 1;
+                chunks[i].compressed = deflate(chunks[i].filtered, dictionary, level, last);
+            });
+
+            for (Chunk chunk : chunks) {
+                writeChunk(out, "IDAT", chunk.compressed, chunk.compressed.length);
+                adler = combineAdler32(adler, chunk.adler, chunk.filtered.length);
+            }
+            previousFiltered = chunks[chunks.length - 1].filtered;
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        writeChunk(out, "IDAT", trailer, trailer.length);
+
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive sequences (the second one of length pLength2).
+     * @param pAdler1
+     * @param pAdler2
+     * @param pLength2
+     * @return
+     */
+    private static long combineAdler32(long pAdler1, long pAdler2, long pLength2) {
+        long rem = pLength2 % ADLER_BASE;
+        long sum1 = pAdler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (pAdler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((pAdler1 >> 16) & 0xffff) + ((pAdler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= 2L * ADLER_BASE) {
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Compresses the specified data as raw deflate, primed with the last 32 KB of pDictionary (if not null). The
+     * stream is finished if pLast is true, and sync flushed otherwise.
+     * @param pData
+     * @param pDictionary
+     * @param pLevel
+     * @param pLast
+     * @return
+     */
+    private static byte[] deflate(byte[] pData, byte[] pDictionary, int pLevel, boolean pLast) {
+        Deflater deflater = new Deflater(pLevel, true);
+        try {
+            if (pDictionary != null) {
+                int length = Math.min(DICTIONARY_SIZE, pDictionary.length);
+                deflater.setDictionary(pDictionary, pDictionary.length - length, length);
+            }
+            deflater.setInput(pData);
+            if (pLast) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(pData.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int n = pLast ? deflater.deflate(buffer) : deflater.deflate(buffer, 0, buffer.length,
+                    Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+                if (pLast ? deflater.finished() : n < buffer.length) {
+                    break;
+                }
+            }
+            return compressed.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the filtered scanlines (filter type byte followed by the filtered row) for rows pY0 to pY1 (exclusive).
+     * @param pImage
+     * @param pY0
+     * @param pY1
+     * @param pBpp
+     * @param pFilter
+     * @return
+     */
+    private static byte[] filterRows(BufferedImage pImage, int pY0, int pY1, int pBpp, PngFilter pFilter) {
+        int w = pImage.getWidth();
+        int rowLength = w * pBpp;
+        byte[] out = new byte[(pY1 - pY0) * (rowLength + 1)];
+        int[] argb = new int[w];
+        byte[] previous = new byte[rowLength];
+        byte[] current = new byte[rowLength];
+        byte[][] candidates = new byte[5][rowLength];
+        if (pY0 > 0) {
+            toBytes(pImage, pY0 - 1, argb, pBpp, previous);
+        }
+        for (int y = pY0; y < pY1; ++y) {
+            toBytes(pImage, y, argb, pBpp, current);
+            int offset = (y - pY0) * (rowLength + 1);
+            int type = filterScanline(current, previous, pBpp, pFilter, candidates);
+            out[offset] = (byte) type;
+            System.arraycopy(candidates[type], 0, out, offset + 1, rowLength);
+            byte[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return out;
+    }
+
+    /**
+     * Filters one row with the specified strategy, and returns the chosen PNG filter type (0 to 4). The filtered row
+     * is stored in pCandidates[type].
+     * @param pRow
+     * @param pPrevious
+     * @param pBpp
+     * @param pFilter
+     * @param pCandidates 5 buffers of the row length
+     * @return
+     */
+    static int filterScanline(byte[] pRow, byte[] pPrevious, int pBpp, PngFilter pFilter, byte[][] pCandidates) {
+        if (pFilter != PngFilter.ADAPTIVE) {
+            int type = pFilter.ordinal();
+            filterRow(type, pRow, pPrevious, pBpp, pCandidates[type]);
+            return type;
+        }
+        int type = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int t = 0; t < 5; ++t) {
+            filterRow(t, pRow, pPrevious, pBpp, pCandidates[t]);
+            long sum = 0;
+            for (byte v : pCandidates[t]) {
+                sum += Math.abs((int) v);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                type = t;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Filters one row with the specified PNG filter type (0 to 4).
+     * @param pType
+     * @param pRow
+     * @param pPrevious
+     * @param pBpp
+     * @param pOut
+     */
+    private static void filterRow(int pType, byte[] pRow, byte[] pPrevious, int pBpp, byte[] pOut) {
+        int n = pRow.length;
+        for (int i = 0; i < n; ++i) {
+            int x = pRow[i] & 0xff;
+            int a = i >= pBpp ? pRow[i - pBpp] & 0xff : 0;
+            int b = pPrevious[i] & 0xff;
+            int c = i >= pBpp ? pPrevious[i - pBpp] & 0xff : 0;
+            int predicted;
+            switch (pType) {
+            case 1:
+                predicted = a;
+                break;
+            case 2:
+                predicted = b;
+                break;
+            case 3:
+                predicted = (a + b) >>> 1;
+                break;
+            case 4:
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                predicted = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                break;
+            default:
+                predicted = 0;
+                break;
+            }
+            pOut[i] = (byte) (x - predicted);
+        }
+    }
+
+    /**
+     * Writes a big endian integer into the specified array.
+     * @param pArray
+     * @param pOffset
+     * @param pValue
+     */
+    static void putInt(byte[] pArray, int pOffset, int pValue) {
+        pArray[pOffset] = (byte) (pValue >>> 24);
+        pArray[pOffset + 1] = (byte) (pValue >>> 16);
+        pArray[pOffset + 2] = (byte) (pValue >>> 8);
+        pArray[pOffset + 3] = (byte) pValue;
+    }
+
+    /**
+     * Converts packed ARGB pixels into RGB or RGBA bytes.
+     * @param pArgb
+     * @param pWidth
+     * @param pBpp 3 (RGB) or 4 (RGBA)
+     * @param pOut
+     */
+    static void argbToBytes(int[] pArgb, int pWidth, int pBpp, byte[] pOut) {
+        for (int j = 0, k = 0; j < pWidth; ++j, k += pBpp) {
+            int v = pArgb[j];
+            pOut[k] = (byte) (v >> 16);
+            pOut[k + 1] = (byte) (v >> 8);
+            pOut[k + 2] = (byte) v;
+            if (pBpp == 4) {
+                pOut[k + 3] = (byte) (v >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Converts one row of the image into RGB or RGBA bytes.
+     * @param pImage
+     * @param pY
+     * @param pArgb buffer of size width
+     * @param pBpp
+     * @param pOut
+     */
+    private static void toBytes(BufferedImage pImage, int pY, int[] pArgb, int pBpp, byte[] pOut) {
+        int w = pArgb.length;
+        pImage.getRGB(0, pY, w, 1, pArgb, 0, w);
+        argbToBytes(pArgb, w, pBpp, pOut);
+    }
+
+    /**
+     * Writes a PNG chunk (length, type, data, CRC).
+     * @param pOut
+     * @param pType
+     * @param pData
+     * @param pLength
+     * @throws IOException
+     */
+    static void writeChunk(DataOutputStream pOut, String pType, byte[] pData, int pLength)
+        throws IOException {
+        byte[] type = pType.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(pData, 0, pLength);
+        pOut.writeInt(pLength);
+        pOut.write(type);
+        pOut.write(pData, 0, pLength);
+        pOut.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Returns the FLG byte of the zlib header for the specified level (with CMF = 0x78).
+     * @param pLevel
+     * @return
+     */
+    static byte zlibLevelFlag(int pLevel) {
+        if (pLevel == Deflater.DEFAULT_COMPRESSION || pLevel == 6) {
+            return (byte) 0x9c;
+        }
+        else if (pLevel < 2) {
+            return 0x01;
+        }
+        else if (pLevel < 6) {
+            return 0x5e;
+        }
+        else {
+            return (byte) 0xda;
+        }
+    }
+}
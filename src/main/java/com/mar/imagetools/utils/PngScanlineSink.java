@@ -0,0 +1,165 @@
+package com.mar.imagetools.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.mar.imagetools.objects.ImageWriteOptions.PngFilter;
+import com.mar.imagetools.objects.ScanlineSink;
+
+/**
+ * A {@link ScanlineSink} encoding rows into a PNG stream as they arrive: each row is filtered and fed to a streaming
+ * deflater, and the compressed data is written in IDAT chunks of bounded size, so only two rows are held in memory
+ * whatever the image size. Images are written as 8-bit RGB, or 8-bit RGBA if pHasAlpha is true.
+ * @author mrenauld
+ */
+public class PngScanlineSink implements ScanlineSink {
+
+    /** Output stream wrapping the written data into IDAT chunks. */
+    private static class IdatOutputStream extends OutputStream {
+
+        private final DataOutputStream output;
+
+        private final byte[] buffer = new byte[IDAT_SIZE];
+
+        private int length = 0;
+
+        private IdatOutputStream(DataOutputStream pOutput) {
+            output = pOutput;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                ParallelPngEncoder.writeChunk(output, "IDAT", buffer, length);
+                length = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] pBytes, int pOffset, int pLength) throws IOException {
+            int offset = pOffset;
+            int remaining = pLength;
+            while (remaining > 0) {
+                int n = Math.min(remaining, buffer.length - length);
+                System.arraycopy(pBytes, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                remaining -= n;
+                if (length == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void write(int pByte) throws IOException {
+            write(new byte[] { (byte) pByte }, 0, 1);
+        }
+    }
+
+    /** Maximum size of an IDAT chunk. */
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    private final DataOutputStream output;
+
+    private final int width;
+
+    private final int height;
+
+    private final int bpp;
+
+    private final PngFilter filter;
+
+    private final Deflater deflater;
+
+    private final IdatOutputStream idat;
+
+    private final DeflaterOutputStream data;
+
+    private byte[] previous;
+
+    private byte[] current;
+
+    private final byte[][] candidates;
+
+    private int nbRows = 0;
+
+    /**
+     * Starts a PNG stream (the stream is not closed by {@link #close()}).
+     * @param pOutput
+     * @param pWidth
+     * @param pHeight
+     * @param pHasAlpha
+     * @param pCompressionLevel deflate level (0 to 9), or -1 for the default level
+     * @param pFilter
+     * @throws IOException
+     */
+    public PngScanlineSink(OutputStream pOutput, int pWidth, int pHeight, boolean pHasAlpha, int pCompressionLevel,
+        PngFilter pFilter) throws IOException {
+        output = new DataOutputStream(pOutput);
+        width = pWidth;
+        height = pHeight;
+        bpp = pHasAlpha ? 4 : 3;
+        filter = pFilter;
+        previous = new byte[width * bpp];
+        current = new byte[width * bpp];
+        candidates = new byte[5][width * bpp];
+
+        output.write(ParallelPngEncoder.SIGNATURE);
+        byte[] header = new byte[13];
+        ParallelPngEncoder.putInt(header, 0, pWidth);
+        ParallelPngEncoder.putInt(header, 4, pHeight);
+        header[8] = 8;
+        header[9] = (byte) (pHasAlpha ? 6 : 2);
+        ParallelPngEncoder.writeChunk(output, "IHDR", header, header.length);
+
+        int level = pCompressionLevel < 0 ? Deflater.DEFAULT_COMPRESSION : Math.min(9, pCompressionLevel);
+        deflater = new Deflater(level);
+        idat = new IdatOutputStream(output);
+        data = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+    }
+
+    /**
+     * Releases the encoder without completing the PNG stream (the rows already written are left as they are).
+     */
+    @Override
+    public void abort() {
+        deflater.end();
+    }
+
+    /**
+     * Completes the PNG stream. All rows must have been written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (nbRows != height) {
+                throw new ImageIOException(ImageIOException.Reason.ENCODE_FAILED, "Only " + nbRows + " rows out of "
+                    + height + " were written");
+            }
+            data.finish();
+            idat.flush();
+            ParallelPngEncoder.writeChunk(output, "IEND", new byte[0], 0);
+            output.flush();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void writeRow(int[] pRow) throws IOException {
+        ParallelPngEncoder.argbToBytes(pRow, width, bpp, current);
+        int type = ParallelPngEncoder.filterScanline(current, previous, bpp, filter, candidates);
+        data.write(type);
+        data.write(candidates[type], 0, current.length);
+
+        byte[] tmp = previous;
+        previous = current;
+        current = tmp;
+        nbRows++;
+    }
+}
@@ -0,0 +1,373 @@
+package com.mar.imagetools.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.mar.imagetools.objects.ScanlineSource;
+import com.mar.imagetools.utils.ImageIOException.Reason;
+
+/**
+ * A {@link ScanlineSource} decoding a PNG stream row by row: the compressed data is inflated and unfiltered one row at
+ * a time, so only two rows are held in memory whatever the image size.<br/>
+ * Supported images: non-interlaced, bit depth 8 or 16 (16-bit samples are reduced to 8 bits), all color types
+ * (grayscale, RGB, palette, with or without alpha). Palette transparency (tRNS) is supported. CRCs are not checked.
+ * @author mrenauld
+ */
+public class PngScanlineSource implements ScanlineSource {
+
+    /** Input stream concatenating the data of consecutive IDAT chunks. */
+    private static class IdatInputStream extends InputStream {
+
+        private final DataInputStream input;
+
+        private int remaining;
+
+        private boolean ended = false;
+
+        private IdatInputStream(DataInputStream pInput, int pFirstLength) {
+            input = pInput;
+            remaining = pFirstLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] pBytes, int pOffset, int pLength) throws IOException {
+            while (remaining == 0) {
+                if (ended) {
+                    return -1;
+                }
+                /* CRC of the current chunk, then header of the next one. */
+                input.readInt();
+                int length = input.readInt();
+                int type = input.readInt();
+                if (type != IDAT) {
+                    ended = true;
+                    return -1;
+                }
+                remaining = length;
+            }
+            int n = input.read(pBytes, pOffset, Math.min(pLength, remaining));
+            if (n < 0) {
+                throw new EOFException("Unexpected end of PNG data");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static final int IHDR = 0x49484452;
+
+    /** Size of the signature and of the IHDR chunk (length, type, data), see {@link #canStream(byte[], int)}. */
+    public static final int HEADER_SIZE = 33;
+
+    private static final int PLTE = 0x504c5445;
+
+    private static final int TRNS = 0x74524e53;
+
+    private static final int IDAT = 0x49444154;
+
+    private final DataInputStream input;
+
+    private final int width;
+
+    private final int height;
+
+    private final int colorType;
+
+    private final int bytesPerSample;
+
+    /** Number of bytes per complete pixel (the "bpp" of the PNG filters). */
+    private final int bpp;
+
+    private int[] palette = new int[0];
+
+    private InflaterInputStream data;
+
+    private Inflater inflater;
+
+    private byte[] previous;
+
+    private byte[] current;
+
+    private int nextRow = 0;
+
+    /**
+     * Opens a PNG stream. The header chunks are read immediately; the stream is not closed by {@link #close()}.
+     * @param pInput
+     * @throws IOException
+     */
+    public PngScanlineSource(InputStream pInput) throws IOException {
+        input = new DataInputStream(pInput);
+        byte[] signature = new byte[8];
+        input.readFully(signature);
+        if (!Arrays.equals(signature, ParallelPngEncoder.SIGNATURE)) {
+            throw new ImageIOException(Reason.UNSUPPORTED_FORMAT, "Not a PNG stream");
+        }
+
+        int length = input.readInt();
+        if (input.readInt() != IHDR) {
+            throw new ImageIOException(Reason.DECODE_FAILED, "Missing IHDR chunk");
+        }
+        width = input.readInt();
+        height = input.readInt();
+        int bitDepth = input.readUnsignedByte();
+        colorType = input.readUnsignedByte();
+        input.readUnsignedByte();
+        input.readUnsignedByte();
+        int interlace = input.readUnsignedByte();
+        skipFully(length - 13 + 4);
+        if (!isSupported(bitDepth, colorType, interlace)) {
+            throw new ImageIOException(Reason.UNSUPPORTED_FORMAT, "Unsupported PNG (bit depth " + bitDepth
+                + ", interlace " + interlace + ")");
+        }
+        bytesPerSample = bitDepth / 8;
+        bpp = getNbSamples(colorType) * bytesPerSample;
+        previous = new byte[width * bpp];
+        current = new byte[width * bpp];
+
+        /* Ancillary chunks until the first IDAT chunk. */
+        while (data == null) {
+            length = input.readInt();
+            int type = input.readInt();
+            if (type == IDAT) {
+                inflater = new Inflater();
+                data = new InflaterInputStream(new IdatInputStream(input, length), inflater);
+            }
+            else if (type == PLTE) {
+                palette = new int[length / 3];
+                for (int i = 0; i < palette.length; ++i) {
+                    palette[i] = 0xff000000 | (input.readUnsignedByte() << 16) | (input.readUnsignedByte() << 8)
+                        | input.readUnsignedByte();
+                }
+                skipFully(length - 3 * palette.length + 4);
+            }
+            else if (type == TRNS && colorType == 3) {
+                for (int i = 0; i < length; ++i) {
+                    int alpha = input.readUnsignedByte();
+                    if (i < palette.length) {
+                        palette[i] = (palette[i] & 0xffffff) | (alpha << 24);
+                    }
+                }
+                skipFully(4);
+            }
+            else {
+                skipFully(length + 4L);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the first pLength bytes of pHeader (at least {@link #HEADER_SIZE}) are the signature and the IHDR
+     * chunk of a PNG stream that this class can decode.
+     * @param pHeader
+     * @param pLength
+     * @return
+     */
+    public static boolean canStream(byte[] pHeader, int pLength) {
+        if (pLength < HEADER_SIZE || !Arrays.equals(Arrays.copyOf(pHeader, 8), ParallelPngEncoder.SIGNATURE)
+            || readInt(pHeader, 12) != IHDR) {
+            return false;
+        }
+        return isSupported(pHeader[24] & 0xff, pHeader[25] & 0xff, pHeader[28] & 0xff);
+    }
+
+    /**
+     * Releases the decoder (the underlying stream is not closed).
+     */
+    @Override
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public boolean readRow(int[] pRow) throws IOException {
+        if (nextRow >= height) {
+            return false;
+        }
+        int type = data.read();
+        if (type < 0) {
+            throw new ImageIOException(Reason.DECODE_FAILED, "Truncated PNG data at row " + nextRow);
+        }
+        int n = current.length;
+        int read = 0;
+        while (read < n) {
+            int r = data.read(current, read, n - read);
+            if (r < 0) {
+                throw new ImageIOException(Reason.DECODE_FAILED, "Truncated PNG data at row " + nextRow);
+            }
+            read += r;
+        }
+        unfilter(type);
+        toArgb(pRow);
+
+        byte[] tmp = previous;
+        previous = current;
+        current = tmp;
+        nextRow++;
+        return true;
+    }
+
+    /**
+     * Returns the number of samples per pixel for the specified color type.
+     * @param pColorType
+     * @return
+     * @throws ImageIOException
+     */
+    private static int getNbSamples(int pColorType) throws ImageIOException {
+        switch (pColorType) {
+        case 0:
+            return 1;
+        case 2:
+            return 3;
+        case 3:
+            return 1;
+        case 4:
+            return 2;
+        case 6:
+            return 4;
+        default:
+            throw new ImageIOException(Reason.DECODE_FAILED, "Invalid PNG color type " + pColorType);
+        }
+    }
+
+    /**
+     * Returns true if images with the specified IHDR fields can be decoded row by row.
+     * @param pBitDepth
+     * @param pColorType
+     * @param pInterlace
+     * @return
+     */
+    private static boolean isSupported(int pBitDepth, int pColorType, int pInterlace) {
+        return pInterlace == 0 && (pBitDepth == 8 || pBitDepth == 16) && (pColorType != 3 || pBitDepth == 8);
+    }
+
+    /**
+     * Returns the big-endian integer at the specified offset.
+     * @param pData
+     * @param pOffset
+     * @return
+     */
+    private static int readInt(byte[] pData, int pOffset) {
+        return ((pData[pOffset] & 0xff) << 24) | ((pData[pOffset + 1] & 0xff) << 16) | ((pData[pOffset + 2] & 0xff)
+            << 8) | (pData[pOffset + 3] & 0xff);
+    }
+
+    /**
+     * Skips the specified number of bytes of the input.
+     * @param pLength
+     * @throws IOException
+     */
+    private void skipFully(long pLength) throws IOException {
+        long remaining = pLength;
+        while (remaining > 0) {
+            long n = input.skip(remaining);
+            if (n <= 0) {
+                input.readByte();
+                n = 1;
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Converts the current (unfiltered) row into packed ARGB values.
+     * @param pRow
+     */
+    private void toArgb(int[] pRow) {
+        int s = bytesPerSample;
+        for (int j = 0, k = 0; j < width; ++j, k += bpp) {
+            int argb;
+            switch (colorType) {
+            case 0: {
+                int g = current[k] & 0xff;
+                argb = 0xff000000 | (g << 16) | (g << 8) | g;
+                break;
+            }
+            case 2:
+                argb = 0xff000000 | ((current[k] & 0xff) << 16) | ((current[k + s] & 0xff) << 8)
+                    | (current[k + 2 * s] & 0xff);
+                break;
+            case 3: {
+                int index = current[k] & 0xff;
+                argb = index < palette.length ? palette[index] : 0xff000000;
+                break;
+            }
+            case 4: {
+                int g = current[k] & 0xff;
+                argb = ((current[k + s] & 0xff) << 24) | (g << 16) | (g << 8) | g;
+                break;
+            }
+            default:
+                argb = ((current[k + 3 * s] & 0xff) << 24) | ((current[k] & 0xff) << 16)
+                    | ((current[k + s] & 0xff) << 8) | (current[k + 2 * s] & 0xff);
+                break;
+            }
+            pRow[j] = argb;
+        }
+    }
+
+    /**
+     * Reverses the PNG filter of the specified type on the current row, using the previous row.
+     * @param pType
+     * @throws ImageIOException
+     */
+    private void unfilter(int pType) throws ImageIOException {
+        int n = current.length;
+        switch (pType) {
+        case 0:
+            break;
+        case 1:
+            for (int i = bpp; i < n; ++i) {
+                current[i] += current[i - bpp];
+            }
+            break;
+        case 2:
+            for (int i = 0; i < n; ++i) {
+                current[i] += previous[i];
+            }
+            break;
+        case 3:
+            for (int i = 0; i < n; ++i) {
+                int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                current[i] += (a + (previous[i] & 0xff)) >>> 1;
+            }
+            break;
+        case 4:
+            for (int i = 0; i < n; ++i) {
+                int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                int b = previous[i] & 0xff;
+                int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                current[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+            }
+            break;
+        default:
+            throw new ImageIOException(Reason.DECODE_FAILED, "Invalid PNG filter type " + pType);
+        }
+    }
+}
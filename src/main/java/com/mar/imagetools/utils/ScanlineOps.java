@@ -0,0 +1,287 @@
+package com.mar.imagetools.utils;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageLut;
+import com.mar.imagetools.objects.OffHeapImage;
+import com.mar.imagetools.objects.ScanlineSink;
+import com.mar.imagetools.objects.ScanlineSource;
+import com.mar.imagetools.objects.ScanlineStage;
+import com.mar.imagetools.utils.ImageIOException.Reason;
+
+/**
+ * Row-streaming pipelines: rows are read from a {@link ScanlineSource}, transformed by a chain of
+ * {@link ScanlineStage}, and written to a {@link ScanlineSink}. With streaming sources and sinks (for instance
+ * {@link PngScanlineSource} and {@link PngScanlineSink}), a decode, transform, encode job uses memory proportional to
+ * a few rows, whatever the image size.<br/>
+ * The stages provided here give the same results as the corresponding {@link ImageOps} and {@link ImageProcOps}
+ * operations.
+ * @author mrenauld
+ */
+public class ScanlineOps {
+
+    /**
+     * Returns a stage applying the lookup table (see {@link ImageOps#applyLut(Image, ImageLut)}).
+     * @param pLut
+     * @return
+     */
+    public static ScanlineStage applyLut(ImageLut pLut) {
+        return pLut::apply;
+    }
+
+    /**
+     * Returns a source reading the rows of the specified image.
+     * @param pImage
+     * @return
+     */
+    public static ScanlineSource fromImage(Image pImage) {
+        return new ScanlineSource() {
+
+            private int nextRow = 0;
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public int getHeight() {
+                return pImage.getHeight();
+            }
+
+            @Override
+            public int getWidth() {
+                return pImage.getWidth();
+            }
+
+            @Override
+            public boolean readRow(int[] pRow) {
+                if (nextRow >= pImage.getHeight()) {
+                    return false;
+                }
+                pImage.getRow(nextRow++, pRow);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a source reading the rows of the specified off-heap image.
+     * @param pImage
+     * @return
+     */
+    public static ScanlineSource fromImage(OffHeapImage pImage) {
+        return new ScanlineSource() {
+
+            private int nextRow = 0;
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public int getHeight() {
+                return pImage.getHeight();
+            }
+
+            @Override
+            public int getWidth() {
+                return pImage.getWidth();
+            }
+
+            @Override
+            public boolean readRow(int[] pRow) {
+                if (nextRow >= pImage.getHeight()) {
+                    return false;
+                }
+                pImage.getRow(nextRow++, pRow);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a stage inverting the colors (see {@link ImageOps#invertColors(Image)}).
+     * @return
+     */
+    public static ScanlineStage invertColors() {
+        return (row, width) -> {
+            for (int j = 0; j < width; ++j) {
+                row[j] ^= 0x00ffffff;
+            }
+        };
+    }
+
+    /**
+     * Opens a source on the specified encoded image stream (which is not closed). PNG streams are decoded row by row
+     * when {@link PngScanlineSource} supports them (non-interlaced, bit depth 8 or 16); other streams are decoded
+     * entirely with {@link ImageIO} first.
+     * @param pInput
+     * @return
+     * @throws IOException
+     */
+    public static ScanlineSource openSource(InputStream pInput) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(pInput);
+        int size = PngScanlineSource.HEADER_SIZE;
+        input.mark(size);
+        byte[] header = new byte[size];
+        int n = 0;
+        while (n < size) {
+            int r = input.read(header, n, size - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        input.reset();
+        if (PngScanlineSource.canStream(header, n)) {
+            return new PngScanlineSource(input);
+        }
+        BufferedImage image = ImageIO.read(input);
+        if (image == null) {
+            throw new ImageIOException(Reason.UNSUPPORTED_FORMAT, "No reader found for the input data");
+        }
+        return fromImage(new Image(image));
+    }
+
+    /**
+     * Reads all rows of pSource, applies the stages in order on each row, and writes the rows to pSink. The sink is
+     * closed at the end (which completes the output); the source is not. If reading, a stage or writing fails, the sink
+     * is aborted instead (see {@link ScanlineSink#abort()}) and the original exception is thrown, with the failure of
+     * the abort, if any, as a suppressed exception.
+     * @param pSource
+     * @param pSink
+     * @param pStages
+     * @throws IOException
+     */
+    public static void run(ScanlineSource pSource, ScanlineSink pSink, ScanlineStage... pStages) throws IOException {
+        int width = pSource.getWidth();
+        int[] row = new int[width];
+        try {
+            while (pSource.readRow(row)) {
+                for (ScanlineStage stage : pStages) {
+                    stage.apply(row, width);
+                }
+                pSink.writeRow(row);
+            }
+        }
+        catch (Throwable e) {
+            try {
+                pSink.abort();
+            }
+            catch (Throwable abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+        pSink.close();
+    }
+
+    /**
+     * Returns a stage setting the specified color transparent (see
+     * {@link ImageOps#setColorTransparent(Image, Color, float)}).
+     * @param pColor
+     * @param pThreshold
+     * @return
+     */
+    public static ScanlineStage setColorTransparent(Color pColor, float pThreshold) {
+        float cR = ImageUtils.channelIntToFloat(pColor.getRed());
+        float cG = ImageUtils.channelIntToFloat(pColor.getGreen());
+        float cB = ImageUtils.channelIntToFloat(pColor.getBlue());
+        return (row, width) -> {
+            for (int j = 0; j < width; ++j) {
+                int v = row[j];
+                double dist = Math.pow(cR - ImageUtils.channelIntToFloat((v >> 16) & 0xff), 2.0);
+                dist += Math.pow(cG - ImageUtils.channelIntToFloat((v >> 8) & 0xff), 2.0);
+                dist += Math.pow(cB - ImageUtils.channelIntToFloat(v & 0xff), 2.0);
+                if (Math.sqrt(dist) <= pThreshold) {
+                    row[j] = v & 0x00ffffff;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a stage converting pixels to black and white (see
+     * {@link ImageProcOps#toBlackAndWhite(com.mar.imagetools.objects.ImageProc, double)}). The alpha channel is set
+     * to opaque.
+     * @param pThreshold
+     * @return
+     */
+    public static ScanlineStage toBlackAndWhite(double pThreshold) {
+        return (row, width) -> {
+            for (int j = 0; j < width; ++j) {
+                int v = row[j];
+                double gray = ImageUtils.rgbToGrayscale((double) ImageUtils.channelIntToFloat((v >> 16) & 0xff),
+                    (double) ImageUtils.channelIntToFloat((v >> 8) & 0xff),
+                    (double) ImageUtils.channelIntToFloat(v & 0xff));
+                row[j] = gray > pThreshold ? 0xffffffff : 0xff000000;
+            }
+        };
+    }
+
+    /**
+     * Returns a stage converting pixels to grayscale (see {@link ImageOps#toGrayscale(Image)}). The alpha channel is
+     * set to opaque.
+     * @return
+     */
+    public static ScanlineStage toGrayscale() {
+        return (row, width) -> {
+            for (int j = 0; j < width; ++j) {
+                int v = row[j];
+                float gray = ImageUtils.rgbToGrayscale(ImageUtils.channelIntToFloat((v >> 16) & 0xff),
+                    ImageUtils.channelIntToFloat((v >> 8) & 0xff), ImageUtils.channelIntToFloat(v & 0xff));
+                int g = ImageUtils.floatToChannelInt(gray);
+                row[j] = 0xff000000 | (g << 16) | (g << 8) | g;
+            }
+        };
+    }
+
+    /**
+     * Returns a sink collecting the rows into the specified image (which must have the size of the source).
+     * @param pImage
+     * @return
+     */
+    public static ScanlineSink toImage(Image pImage) {
+        return new ScanlineSink() {
+
+            private int nextRow = 0;
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void writeRow(int[] pRow) {
+                pImage.setRow(nextRow++, pRow);
+            }
+        };
+    }
+
+    /**
+     * Returns a sink collecting the rows into the specified off-heap image (which must have the size of the source).
+     * @param pImage
+     * @return
+     */
+    public static ScanlineSink toImage(OffHeapImage pImage) {
+        return new ScanlineSink() {
+
+            private int nextRow = 0;
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void writeRow(int[] pRow) {
+                pImage.setRow(nextRow++, pRow);
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package com.mar.imagetools.utils;
+
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+import com.mar.imagetools.objects.TiledImage;
+
+/**
+ * Operations on {@link TiledImage} objects. Each operation runs the specified {@link Image} or {@link ImageProc}
+ * operation tile by tile, so only a few tiles are in memory at any time. Tiles are processed in parallel; the input
+ * and output images should use the same tile size and be able to cache at least a few tiles per worker thread.<br/>
+ * Example: <code>TiledImageOps.applyImageOp(in, out, ImageOps::toGrayscale)</code>.
+ * @author mrenauld
+ */
+public class TiledImageOps {
+
+    /**
+     * Applies the specified point operation on each tile of pIn, and writes the result to pOut (which must have the
+     * same size). The operation must return an image of the same size as its input.
+     * @param pIn
+     * @param pOut
+     * @param pOp
+     */
+    public static void applyImageOp(TiledImage pIn, TiledImage pOut, UnaryOperator<Image> pOp) {
+        applyTiled(pIn, pOut, 0, pOp);
+    }
+
+    /**
+     * Applies the specified point operation on each tile of pIn converted to {@link ImageProc}, and writes the result
+     * to pOut (which must have the same size). The alpha channel is not kept (see {@link ImageProc}).
+     * @param pIn
+     * @param pOut
+     * @param pOp
+     */
+    public static void applyImageProcOp(TiledImage pIn, TiledImage pOut, UnaryOperator<ImageProc> pOp) {
+        applyTiled(pIn, pOut, 0, image -> pOp.apply(new ImageProc(image)).convertToImage());
+    }
+
+    /**
+     * Applies the specified neighbourhood operation (for instance a filter of {@link ImageFilterOps}) on each tile of
+     * pIn converted to {@link ImageProc}, and writes the result to pOut (which must have the same size). Each tile is
+     * read with a halo of pHalo pixels on each side (clipped to the image), so the result is the same as on the whole
+     * image as long as the operation does not look further than pHalo pixels away.
+     * @param pIn
+     * @param pOut
+     * @param pHalo
+     * @param pOp
+     */
+    public static void applyNeighbourhoodOp(TiledImage pIn, TiledImage pOut, int pHalo, UnaryOperator<ImageProc> pOp) {
+        applyTiled(pIn, pOut, pHalo, image -> pOp.apply(new ImageProc(image)).convertToImage());
+    }
+
+    /**
+     * Applies the specified operation tile by tile, with the specified halo.
+     * @param pIn
+     * @param pOut
+     * @param pHalo
+     * @param pOp
+     */
+    private static void applyTiled(TiledImage pIn, TiledImage pOut, int pHalo, UnaryOperator<Image> pOp) {
+        int w = pIn.getWidth();
+        int h = pIn.getHeight();
+        int tw = pIn.getTileWidth();
+        int th = pIn.getTileHeight();
+        int nbTilesX = pIn.getNbTilesX();
+        int nbTiles = nbTilesX * pIn.getNbTilesY();
+        IntStream.range(0, nbTiles).parallel().forEach(t -> {
+            /* Tile area. */
+            int x0 = (t % nbTilesX) * tw;
+            int y0 = (t / nbTilesX) * th;
+            int x1 = Math.min(w, x0 + tw);
+            int y1 = Math.min(h, y0 + th);
+
+            /* Tile area with halo. */
+            int hx0 = Math.max(0, x0 - pHalo);
+            int hy0 = Math.max(0, y0 - pHalo);
+            int hx1 = Math.min(w, x1 + pHalo);
+            int hy1 = Math.min(h, y1 + pHalo);
+
+            Image region = pIn.readRegion(hx0, hy0, hx1 - hx0, hy1 - hy0);
+            Image result = pOp.apply(region);
+            pOut.writeRegion(result, x0 - hx0, y0 - hy0, x1 - x0, y1 - y0, x0, y0);
+        });
+        pOut.flush();
+    }
+}
@@ -0,0 +1,102 @@
+package com.mar.imagetools.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies (in nanoseconds) with logarithmic buckets: values are recorded with a relative
+ * precision better than 1%, in constant memory whatever the number of values, so percentiles can be computed at the
+ * end of a long load test.
+ * @author mrenauld
+ */
+public class LatencyHistogram {
+
+    /** Number of sub-buckets per power of two (precision 1 / 128). */
+    private static final int SUB_BITS = 7;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the number of recorded values.
+     * @return
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the maximum recorded value.
+     * @return
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which pPercentile percent of the values are (between 0 and 100), or 0 if no value has
+     * been recorded.
+     * @param pPercentile
+     * @return
+     */
+    public long getPercentile(double pPercentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(pPercentile / 100.0 * total));
+        long seen = 0;
+        for (int k = 0; k < counts.length(); ++k) {
+            seen += counts.get(k);
+            if (seen >= rank) {
+                return Math.min(getBucketValue(k), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Records a value.
+     * @param pValue
+     */
+    public void record(long pValue) {
+        long value = Math.max(0, pValue);
+        counts.incrementAndGet(getBucket(value));
+        count.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Returns the bucket of the specified value.
+     * @param pValue
+     * @return
+     */
+    private static int getBucket(long pValue) {
+        if (pValue < SUB_COUNT) {
+            return (int) pValue;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(pValue);
+        int sub = (int) (pValue >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Returns the value representing the specified bucket (the middle of its range).
+     * @param pBucket
+     * @return
+     */
+    private static long getBucketValue(int pBucket) {
+        if (pBucket < SUB_COUNT) {
+            return pBucket;
+        }
+        int exponent = pBucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = pBucket % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_COUNT + sub) << (exponent - SUB_BITS)) + width / 2;
+    }
+}
@@ -0,0 +1,338 @@
+package com.mar.imagetools.loadtest;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+import com.mar.imagetools.objects.Image;
+import com.mar.imagetools.objects.ImageProc;
+import com.mar.imagetools.objects.ImageWriteOptions;
+import com.mar.imagetools.utils.ImageFilterOps;
+import com.mar.imagetools.utils.ImageIOUtils;
+import com.mar.imagetools.utils.ImageProcOps;
+
+/**
+ * Offline load test of an end-to-end pipeline: read an image file, convert it into an {@link ImageProc}, apply a chain
+ * of operations, convert it back into an {@link Image} and encode it. A synthetic corpus is generated if needed, then
+ * the pipeline is driven for a fixed duration, after a warm-up, either at a fixed concurrency (closed loop: each worker
+ * starts a new request when the previous one is done) or at a target rate (open loop: requests are started on a fixed
+ * schedule, and the latency is measured from the scheduled start, so queueing delays are included).<br/>
+ * The report gives the throughput (requests/s and megapixels/s), the latency percentiles, the GC time and the peak heap
+ * usage of the measured phase. Run it with a fixed heap, for instance through the Maven profile:
+ * <code>mvn verify -P loadtest -Dloadtest.heap=2g -Dloadtest.args="--concurrency=8 --ops=unsharp"</code>.<br/>
+ * Options (<code>--name=value</code>): corpus, images, width, height, format, ops, write, output, concurrency, rate,
+ * warmup, duration (seconds).
+ * @author mrenauld
+ */
+public class PipelineLoadTest {
+
+    /** Available operations of the pipeline. */
+    private static final Map<String, UnaryOperator<ImageProc>> OPERATIONS = new LinkedHashMap<>();
+    static {
+        OPERATIONS.put("grayscale", ImageProcOps::toGrayscale);
+        OPERATIONS.put("gaussian", image -> ImageFilterOps.applyGaussianFilter(image, 3, 1.5));
+        OPERATIONS.put("unsharp", image -> ImageFilterOps.applyUnsharpMasking(image, 3, 1.5, 0.8));
+        OPERATIONS.put("bilateral", image -> ImageFilterOps.applyFastBilateralFilter(image, 4.0, 0.1));
+    }
+
+    /** An output stream discarding the data (encoding without disk I/O). */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+
+        @Override
+        public void write(byte[] pBytes, int pOffset, int pLength) {
+        }
+
+        @Override
+        public void write(int pByte) {
+        }
+    };
+
+    private final Map<String, String> options;
+
+    private final List<UnaryOperator<ImageProc>> operations = new ArrayList<>();
+
+    private final List<Path> corpus = new ArrayList<>();
+
+    private final AtomicLong nextImage = new AtomicLong();
+
+    private final ImageWriteOptions writeOptions = new ImageWriteOptions();
+
+    /** Statistics of the current phase. */
+    private volatile LatencyHistogram latencies;
+
+    private final AtomicLong pixels = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Constructs a load test with the specified options (name to value).
+     * @param pOptions
+     */
+    public PipelineLoadTest(Map<String, String> pOptions) {
+        options = pOptions;
+        for (String name : getOption("ops", "unsharp").split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            UnaryOperator<ImageProc> operation = OPERATIONS.get(name.trim());
+            if (operation == null) {
+                throw new IllegalArgumentException("Unknown operation [" + name + "], available: "
+                    + OPERATIONS.keySet());
+            }
+            operations.add(operation);
+        }
+    }
+
+    /**
+     * Runs the load test with the options given as <code>--name=value</code> arguments.
+     * @param pArgs
+     * @throws Exception
+     */
+    public static void main(String[] pArgs) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : pArgs) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid argument [" + arg + "], expected --name=value");
+            }
+            int separator = arg.indexOf('=');
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new PipelineLoadTest(options).run();
+    }
+
+    /**
+     * Generates the corpus if needed, runs the warm-up and the measured phase, and prints the report.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        prepareCorpus();
+        if (options.containsKey("output")) {
+            Files.createDirectories(Paths.get(options.get("output")));
+        }
+        int concurrency = Integer.parseInt(getOption("concurrency", String.valueOf(Runtime.getRuntime()
+            .availableProcessors())));
+        double rate = Double.parseDouble(getOption("rate", "0"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(getOption("warmup", "10")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(getOption("duration", "60")));
+
+        System.out.println("Pipeline: read > ImageProc > " + getOption("ops", "unsharp") + " > Image"
+            + (isWriting() ? " > write " + getOption("format", "png") : ""));
+        System.out.println("Load: " + (rate > 0 ? rate + " requests/s (open loop, " + concurrency + " workers)"
+            : concurrency + " concurrent requests (closed loop)") + ", corpus of " + corpus.size() + " images");
+
+        runPhase(warmup, concurrency, rate);
+
+        /* Measured phase: fresh statistics, GC and heap baselines. */
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long gcCount0 = 0;
+        long gcTime0 = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            gcCount0 += Math.max(0, collector.getCollectionCount());
+            gcTime0 += Math.max(0, collector.getCollectionTime());
+        }
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        LatencyHistogram measured = runPhase(duration, concurrency, rate);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long gcCount = -gcCount0;
+        long gcTime = -gcTime0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        System.out.println(String.format("Requests: %d (%d errors) in %.1f s: %.1f requests/s, %.1f MP/s", measured
+            .getCount(), errors.get(), seconds, measured.getCount() / seconds, pixels.get() / 1e6 / seconds));
+        System.out.println(String.format("Latency (ms): p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f", measured
+            .getPercentile(50.0) / 1e6, measured.getPercentile(99.0) / 1e6, measured.getPercentile(99.9) / 1e6,
+            measured.getMax() / 1e6));
+        System.out.println(String.format("GC: %d collections, %d ms (%.1f%% of the time)", gcCount, gcTime,
+            100.0 * gcTime / 1000.0 / seconds));
+        System.out.println(String.format("Peak heap: %d MB (sum of the heap pool peaks), max heap %d MB",
+            peakHeap >> 20, Runtime.getRuntime().maxMemory() >> 20));
+    }
+
+    /**
+     * Returns the value of the specified option, or pDefault if it is not set.
+     * @param pName
+     * @param pDefault
+     * @return
+     */
+    private String getOption(String pName, String pDefault) {
+        return options.getOrDefault(pName, pDefault);
+    }
+
+    /**
+     * Returns true if the pipeline ends with the encoding of the image.
+     * @return
+     */
+    private boolean isWriting() {
+        return Boolean.parseBoolean(getOption("write", "true"));
+    }
+
+    /**
+     * Generates the missing images of the synthetic corpus (gradients, periodic texture, rectangles and noise, with a
+     * fixed seed per image) and lists it.
+     * @throws IOException
+     */
+    private void prepareCorpus() throws IOException {
+        Path directory = Paths.get(getOption("corpus", Paths.get(System.getProperty("java.io.tmpdir"),
+            "imagetools-loadtest").toString()));
+        Files.createDirectories(directory);
+        int nbImages = Integer.parseInt(getOption("images", "32"));
+        int w = Integer.parseInt(getOption("width", "2048"));
+        int h = Integer.parseInt(getOption("height", "1536"));
+        String format = getOption("format", "png");
+        for (int k = 0; k < nbImages; ++k) {
+            Path path = directory.resolve(String.format("synthetic-%03d-%dx%d.%s", k, w, h, format));
+            if (!Files.exists(path)) {
+                Random random = new Random(k);
+                int[][] data = new int[h][w];
+                double frequency = 0.01 + 0.05 * random.nextDouble();
+                for (int i = 0; i < h; ++i) {
+                    for (int j = 0; j < w; ++j) {
+                        int r = 255 * j / Math.max(1, w - 1);
+                        int g = 255 * i / Math.max(1, h - 1);
+                        int b = (int) (127.5 + 127.5 * Math.sin(frequency * (i + j)));
+                        data[i][j] = (r << 16) | (g << 8) | b;
+                    }
+                }
+                for (int n = 0; n < 20; ++n) {
+                    int x0 = random.nextInt(w);
+                    int y0 = random.nextInt(h);
+                    int color = random.nextInt(1 << 24);
+                    for (int i = y0; i < Math.min(h, y0 + random.nextInt(h / 4 + 1)); ++i) {
+                        for (int j = x0; j < Math.min(w, x0 + random.nextInt(w / 4 + 1)); ++j) {
+                            data[i][j] = color;
+                        }
+                    }
+                }
+                for (int i = 0; i < h; ++i) {
+                    for (int j = 0; j < w; ++j) {
+                        int noise = random.nextInt(17) - 8;
+                        int v = data[i][j];
+                        int r = Math.max(0, Math.min(255, ((v >> 16) & 0xff) + noise));
+                        int g = Math.max(0, Math.min(255, ((v >> 8) & 0xff) + noise));
+                        int b = Math.max(0, Math.min(255, (v & 0xff) + noise));
+                        data[i][j] = 0xff000000 | (r << 16) | (g << 8) | b;
+                    }
+                }
+                ImageIOUtils.writeImage(new Image(data).getBufferedImage(), path.toString(), format);
+            }
+            corpus.add(path);
+        }
+    }
+
+    /**
+     * Runs the pipeline for the specified duration and returns the latencies.
+     * @param pDuration
+     * @param pConcurrency
+     * @param pRate requests per second, or 0 for a closed loop
+     * @return
+     * @throws InterruptedException
+     */
+    private LatencyHistogram runPhase(long pDuration, int pConcurrency, double pRate) throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        latencies = histogram;
+        pixels.set(0);
+        errors.set(0);
+        ExecutorService workers = Executors.newFixedThreadPool(pConcurrency);
+        long start = System.nanoTime();
+        long end = start + pDuration;
+        if (pRate > 0) {
+            /* Open loop: the requests are scheduled at fixed intervals, whatever the response times. */
+            double period = 1e9 / pRate;
+            for (long k = 0;; ++k) {
+                long scheduled = start + (long) (k * period);
+                if (scheduled >= end) {
+                    break;
+                }
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                workers.execute(() -> runRequest(scheduled));
+            }
+        }
+        else {
+            for (int t = 0; t < pConcurrency; ++t) {
+                workers.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        runRequest(System.nanoTime());
+                    }
+                });
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return histogram;
+    }
+
+    /**
+     * Runs the pipeline on the next image of the corpus and records its latency from pStart.
+     * @param pStart
+     */
+    private void runRequest(long pStart) {
+        Path path = corpus.get((int) (nextImage.getAndIncrement() % corpus.size()));
+        try {
+            BufferedImage input = ImageIOUtils.readImage(path.toString());
+            if (input == null) {
+                throw new IOException("Cannot read " + path);
+            }
+            ImageProc image = new ImageProc(new Image(input));
+            for (UnaryOperator<ImageProc> operation : operations) {
+                image = operation.apply(image);
+            }
+            Image result = image.convertToImage();
+            if (isWriting()) {
+                String format = getOption("format", "png");
+                String output = options.get("output");
+                if (output == null) {
+                    ImageIOUtils.writeImage(result.getBufferedImage(), NULL_OUTPUT, format, writeOptions);
+                }
+                else {
+                    /* One file per worker, overwritten by each request. */
+                    Path file = Paths.get(output, "out-" + Thread.currentThread().getId() + "." + format);
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                        ImageIOUtils.writeImage(result.getBufferedImage(), out, format, writeOptions);
+                    }
+                }
+            }
+            pixels.addAndGet((long) input.getWidth() * input.getHeight());
+            latencies.record(System.nanoTime() - pStart);
+        }
+        catch (IOException | RuntimeException e) {
+            errors.incrementAndGet();
+        }
+    }
+}